@@ -3,44 +3,52 @@ package com.behrainwala;
 import com.behrainwala.Network.NetworkBuilder;
 import com.behrainwala.Network.NeuralNetwork;
 import com.behrainwala.data.DataReader;
-import com.behrainwala.data.Image;
+import com.behrainwala.data.Dataset;
+import com.behrainwala.data.FileDataset;
+import com.behrainwala.data.ImageAugmenter;
+import com.behrainwala.layers.ConvolutionMode;
 
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.Random;
 
 public class Main {
     public static void main(String[] args) {
         System.out.println("\n\n***Starting CNN***\n...loading data...\n");
-        List<Image> imagesTest = DataReader.readData("data/mnist_test.csv");
+        Dataset imagesTest = Dataset.of(DataReader.readCachedData("data/mnist_test.csv"));
         System.out.println("***Test Data Loaded***");
         System.out.println("Images in test data: "+imagesTest.size());
-        List<Image> imagesTrain = DataReader.readData("data/mnist_train.csv");
-        System.out.println("***Train Data Loaded***");
-        System.out.println("Images in train data: "+imagesTrain.size());
 
-        NetworkBuilder builder = new NetworkBuilder(28, 28, 256*100);
-        long SEED = 123;
-        builder.addConvolutionLayer(8, 5, 1, 0.1, SEED);
-        builder.addMaxPoolLayer(3, 2);
-        builder.addFullyConnectedLayer(10, 0.1, SEED);
+        try (FileDataset imagesTrain = DataReader.openCachedData("data/mnist_train.csv", Dataset.DEFAULT_CHUNK_SIZE)) {
+            System.out.println("***Train Data Loaded***");
+            System.out.println("Images in train data: "+imagesTrain.size());
 
-        NeuralNetwork net = builder.build();
+            NetworkBuilder builder = new NetworkBuilder(28, 28, 256*100);
+            long SEED = 123;
+            builder.addConvolutionLayer(8, 5, 1, 0.1, SEED);
+            builder.addMaxPoolLayer(3, 2);
+            builder.addFullyConnectedLayer(10, 0.1, SEED);
+            builder.setPrefetch(256, 2);
+            builder.setVectorKernels(true); //needs --add-modules jdk.incubator.vector, otherwise the scalar kernels are used
+            builder.setConvolutionMode(ConvolutionMode.IM2COL);
+            builder.setAugmentation(new ImageAugmenter(2, 10, 8, 4, 0.05), SEED);
+
+            NeuralNetwork net = builder.build();
+            Random random = new Random(SEED);
 
-        try {
             float rate;
             rate = net.test(imagesTest);
             System.out.println("Pre training success rate: "+rate);
 
             int epochs = 3;
             for (int i = 0; i < epochs; i++) {
-                Collections.shuffle(imagesTrain);
+                imagesTrain.shuffle(random);
                 net.train(imagesTrain);
                 rate = net.test(imagesTest);
                 System.out.println("Success rate after round " + i+1 + ": " + rate);
+                System.out.println("Prefetch: " + net.getPrefetcher().getStats());
             }
         }catch (Exception e) {
             System.out.println(e.getMessage()+":"+ Arrays.stream(e.getStackTrace()).toList());
         }
     }
-}
\ No newline at end of file
+}
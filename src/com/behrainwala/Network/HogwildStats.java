@@ -0,0 +1,60 @@
+package com.behrainwala.Network;
+
+import com.behrainwala.layers.UpdateLoss;
+
+/**
+ * What one {@link NeuralNetwork#trainHogwild} epoch did.<br/>
+ * <br/>
+ * workers -> how many workers trained at the same time (the replicas of the network).<br/>
+ * samples -> how many samples each worker trained on, they add up to the samples of the epoch.<br/>
+ * nanos -> how long the epoch took.<br/>
+ * lost -> the updates the workers wrote over each other, only measured while
+ * {@link NeuralNetwork#setMeasureLostUpdates} is on (otherwise null).<br/>
+ */
+public final class HogwildStats {
+    private final long[] _samples;
+    private final long _nanos;
+    private final UpdateLoss _lost;
+
+    HogwildStats(long[] samples, long nanos, UpdateLoss lost) {
+        _samples = samples.clone();
+        _nanos = nanos;
+        _lost = lost;
+    }
+
+    public int getWorkers() {
+        return _samples.length;
+    }
+
+    public long getSamples(int worker) {
+        return _samples[worker];
+    }
+
+    public long getSamples() {
+        long samples = 0;
+        for(long s:_samples)
+            samples += s;
+
+        return samples;
+    }
+
+    public long getNanos() {
+        return _nanos;
+    }
+
+    public UpdateLoss getLost() {
+        return _lost;
+    }
+
+    public String toString() {
+        StringBuilder text = new StringBuilder("workers="+getWorkers()+" samples=");
+        for(int w=0; w<_samples.length; w++)
+            text.append(w == 0 ? "" : "+").append(_samples[w]);
+
+        text.append(" ms=").append(_nanos/1_000_000);
+        if(_lost != null)
+            text.append(" lost=").append(String.format("%.3g", _lost.fraction()));
+
+        return text.toString();
+    }
+}
@@ -1,9 +1,14 @@
 package com.behrainwala.Network;
 
+import com.behrainwala.data.Augmentation;
+import com.behrainwala.data.Kernels;
+import com.behrainwala.data.Prefetcher;
 import com.behrainwala.layers.*;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class NetworkBuilder {
     private NeuralNetwork nn;
@@ -12,6 +17,23 @@ public class NetworkBuilder {
     private final double _scaleFactor;
     private final List<Layer> _layers = new ArrayList<>();
 
+    private static final int DEFAULT_PREFETCH_DEPTH = 256;
+    private int _prefetchDepth;
+    private int _prefetchProducers;
+    private Augmentation _augmentation;
+    private long _augmentationSeed;
+    private Kernels _kernels = Kernels.SCALAR;
+    private ConvolutionMode _convolutionMode = ConvolutionMode.DIRECT;
+    private WeightLayout _weightLayout = WeightLayout.AUTO;
+    private boolean _autotune;
+    private String _autotuneFile;
+    private long _autotuneMillis;
+    private boolean _autotuneVerbose;
+    private boolean _fuseConvolutionPool = true;
+    private int _replicas = 1;
+    //layers that always run on one provider, whatever the settings above
+    private final Map<Layer, String> _pinnedProviders = new IdentityHashMap<>();
+
     public NetworkBuilder(int inputRows, int inputCols, double scaleFactor) {
         _inputRows = inputRows;
         _inputCols = inputCols;
@@ -19,21 +41,28 @@ public class NetworkBuilder {
     }
 
     public void addConvolutionLayer(int numFilters, int filterSize, int stepSize, double learningRate, long SEED){
+        addConvolutionLayer(numFilters, filterSize, stepSize, learningRate, SEED, false);
+    }
+
+    /**
+     * With sumChannels the filters are as deep as the previous layer's output and the layer has numFilters output
+     * channels, instead of numFilters for every channel coming in (see {@link ConvolutionLayer}).
+     */
+    public void addConvolutionLayer(int numFilters, int filterSize, int stepSize, double learningRate, long SEED, boolean sumChannels){
         if(_layers.isEmpty())
-            _layers.add(new ConvolutionLayer(filterSize, stepSize, 1, _inputRows, _inputCols, SEED, numFilters, learningRate));
+            _layers.add(new ConvolutionLayer(filterSize, stepSize, 1, _inputRows, _inputCols, SEED, numFilters, learningRate, sumChannels));
         else{
             Layer prev = _layers.get(_layers.size()-1);
-            _layers.add(new ConvolutionLayer(filterSize, stepSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols(), SEED, numFilters, learningRate));
+            _layers.add(new ConvolutionLayer(filterSize, stepSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols(), SEED, numFilters, learningRate, sumChannels));
         }
     }
 
+    /**
+     * The same convolution layer, always run by the {@link KernelProviders#NAIVE} provider.
+     */
     public void addConvolutionLayer2(int numFilters, int filterSize, int stepSize, double learningRate, long SEED){
-        if(_layers.isEmpty())
-            _layers.add(new ConvolutionLayer2(filterSize, stepSize, 1, _inputRows, _inputCols, SEED, numFilters, learningRate));
-        else{
-            Layer prev = _layers.get(_layers.size()-1);
-            _layers.add(new ConvolutionLayer2(filterSize, stepSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols(), SEED, numFilters, learningRate));
-        }
+        addConvolutionLayer(numFilters, filterSize, stepSize, learningRate, SEED);
+        pinLastLayer(KernelProviders.NAIVE);
     }
 
     public void addMaxPoolLayer(int windowSize, int stepSize){
@@ -45,12 +74,32 @@ public class NetworkBuilder {
         }
     }
 
+    /**
+     * The same max pool layer, always run by the {@link KernelProviders#NAIVE} provider.
+     */
     public void addMaxPoolLayer2(int windowSize, int stepSize){
+        addMaxPoolLayer(windowSize, stepSize);
+        pinLastLayer(KernelProviders.NAIVE);
+    }
+
+    public void addAveragePoolLayer(int windowSize, int stepSize){
+        if(_layers.isEmpty())
+            _layers.add(new AveragePoolLayer(stepSize, windowSize, 1, _inputRows, _inputCols));
+        else{
+            Layer prev = _layers.get(_layers.size()-1);
+            _layers.add(new AveragePoolLayer(stepSize, windowSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols()));
+        }
+    }
+
+    /**
+     * Averages every channel to one value, e.g. to give a fully connected layer one input per channel.
+     */
+    public void addGlobalAveragePoolLayer(){
         if(_layers.isEmpty())
-            _layers.add(new MaxPoolLayer2(stepSize, windowSize, 1, _inputRows, _inputCols));
+            _layers.add(new GlobalAveragePoolLayer(1, _inputRows, _inputCols));
         else{
             Layer prev = _layers.get(_layers.size()-1);
-            _layers.add(new MaxPoolLayer2(stepSize, windowSize, prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols()));
+            _layers.add(new GlobalAveragePoolLayer(prev.getOutputLength(), prev.getOutputRows(), prev.getOutputCols()));
         }
     }
 
@@ -64,18 +113,159 @@ public class NetworkBuilder {
         }
     }
 
+    /**
+     * The same fully connected layer, always run by the {@link KernelProviders#NAIVE} provider.
+     */
     public void addFullyConnectedLayer2(int outLength, double learningRate, long SEED){
-        //public FullyConnectedLayer(int inLenght,int outLength, long seed, double learningRate)
-        if(_layers.isEmpty())
-            _layers.add(new FullyConnectedLayer2( _inputCols*_inputRows, outLength, SEED, learningRate));
-        else{
-            Layer prev = _layers.get(_layers.size()-1);
-            _layers.add(new FullyConnectedLayer2(prev.getOutputElements(), outLength, SEED, learningRate));
+        addFullyConnectedLayer(outLength, learningRate, SEED);
+        pinLastLayer(KernelProviders.NAIVE);
+    }
+
+    private void pinLastLayer(String provider){
+        _pinnedProviders.put(_layers.get(_layers.size()-1), provider);
+    }
+
+    /**
+     * Prepares the samples on producers background threads, keeping up to queueDepth samples ready per thread.
+     */
+    public void setPrefetch(int queueDepth, int producers){
+        _prefetchDepth = queueDepth;
+        _prefetchProducers = producers;
+    }
+
+    /**
+     * Augments every training sample, this runs on the prefetch threads (one is used if setPrefetch was not called).
+     */
+    public void setAugmentation(Augmentation augmentation, long SEED){
+        _augmentation = augmentation;
+        _augmentationSeed = SEED;
+    }
+
+    /**
+     * Runs the layers on the jdk.incubator.vector kernels when the module is available (see {@link Kernels}).
+     * The results can differ from the scalar kernels in the last bits.
+     */
+    public void setVectorKernels(boolean vector){
+        _kernels = vector ? Kernels.best() : Kernels.SCALAR;
+    }
+
+    /**
+     * How every convolution layer works out its convolutions, see {@link ConvolutionMode}.
+     */
+    public void setConvolutionMode(ConvolutionMode mode){
+        _convolutionMode = mode;
+    }
+
+    /**
+     * How every fully connected layer keeps its weights, see {@link WeightLayout}. AUTO by default, which picks from
+     * the kernels and the shape of each layer.
+     */
+    public void setWeightLayout(WeightLayout layout){
+        _weightLayout = layout;
+    }
+
+    /**
+     * Lets build time every {@link KernelProvider} on every layer and use the fastest, instead of the kernels and
+     * convolution mode set here. The choices are saved to cacheFile, so the next build with the same layers on the
+     * same machine reuses them without timing anything. With a null file they are not saved.
+     * See {@link KernelAutotuner}.
+     */
+    public void setAutotune(String cacheFile){
+        setAutotune(cacheFile, KernelAutotuner.DEFAULT_RUN_MILLIS, false);
+    }
+
+    /**
+     * The same, with every provider running for runMillis on every layer that is not in the file yet, and verbose
+     * printing every choice and the times it was picked from.
+     */
+    public void setAutotune(String cacheFile, long runMillis, boolean verbose){
+        if(runMillis < 0)
+            throw new IllegalArgumentException("The run time cannot be negative, not "+runMillis);
+
+        _autotune = true;
+        _autotuneFile = cacheFile;
+        _autotuneMillis = runMillis;
+        _autotuneVerbose = verbose;
+    }
+
+    /**
+     * The number of replicas {@link NeuralNetwork#train(com.behrainwala.data.Dataset, int)} splits every mini-batch
+     * over, usually one per core, see {@link NeuralNetwork#setReplicas}. 1 by default.
+     */
+    public void setReplicas(int replicas){
+        _replicas = replicas;
+    }
+
+    /**
+     * Whether a convolution layer followed by a max pool layer is built as one {@link ConvolutionPoolLayer}, which
+     * gives the same results without writing out the whole convolution. On by default.
+     */
+    public void setFuseConvolutionPool(boolean fuse){
+        _fuseConvolutionPool = fuse;
+    }
+
+    /**
+     * The layers with every convolution layer that is followed by a max pool layer fused with it. A fused layer runs
+     * on the provider its convolution (or else its pool) was pinned to.
+     */
+    private List<Layer> fuseLayers(){
+        List<Layer> layers = new ArrayList<>();
+
+        for(int i=0; i<_layers.size(); i++){
+            Layer layer = _layers.get(i);
+            Layer next = i+1 < _layers.size() ? _layers.get(i+1) : null;
+
+            if(layer instanceof ConvolutionLayer conv && next instanceof MaxPoolLayer pool){
+                ConvolutionPoolLayer fused = new ConvolutionPoolLayer(conv, pool);
+                String pinned = _pinnedProviders.getOrDefault(conv, _pinnedProviders.get(pool));
+                if(pinned != null)
+                    _pinnedProviders.put(fused, pinned);
+
+                layers.add(fused);
+                i++;
+            }
+            else
+                layers.add(layer);
         }
+
+        return layers;
     }
 
     public NeuralNetwork build(){
-        nn = new NeuralNetwork(_layers, _scaleFactor);
+        List<Layer> layers = _fuseConvolutionPool ? fuseLayers() : _layers;
+        KernelAutotuner autotuner = _autotune ? new KernelAutotuner(_autotuneFile, _autotuneMillis, _autotuneVerbose) : null;
+
+        for(int i=0; i<layers.size(); i++){
+            Layer layer = layers.get(i);
+            layer.setKernels(_kernels);
+
+            if(layer instanceof ConvolutionLayer conv)
+                conv.setMode(_convolutionMode);
+            else if(layer instanceof ConvolutionPoolLayer fused)
+                fused.setMode(_convolutionMode);
+            else if(layer instanceof FullyConnectedLayer fc)
+                fc.setLayout(_weightLayout);
+
+            String pinned = _pinnedProviders.get(layer);
+            if(pinned != null)
+                KernelProviders.install(KernelProviders.find(layer, pinned), layer);
+            else if(autotuner != null)
+                autotuner.tune(layer, i == 0 ? _inputRows*_inputCols : layers.get(i-1).getOutputElements());
+        }
+
+        if(autotuner != null)
+            autotuner.save();
+
+        nn = new NeuralNetwork(layers, _scaleFactor);
+        nn.setReplicas(_replicas);
+
+        if(_prefetchDepth > 0 || _augmentation != null){
+            Prefetcher prefetcher = new Prefetcher(_prefetchDepth > 0 ? _prefetchDepth : DEFAULT_PREFETCH_DEPTH,
+                    Math.max(1, _prefetchProducers), 1.0/_scaleFactor);
+            prefetcher.setAugmentation(_augmentation, _augmentationSeed);
+            nn.setPrefetcher(prefetcher);
+        }
+
         return nn;
     }
 }
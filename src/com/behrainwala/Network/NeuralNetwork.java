@@ -1,33 +1,123 @@
 package com.behrainwala.Network;
 
+import com.behrainwala.data.Dataset;
 import com.behrainwala.data.Image;
 import com.behrainwala.data.MatrixUtility;
+import com.behrainwala.data.Parallel;
+import com.behrainwala.data.Prefetcher;
+import com.behrainwala.data.Sample;
+import com.behrainwala.data.Tensor;
 import com.behrainwala.layers.Layer;
+import com.behrainwala.layers.UpdateLoss;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
+/**
+ * <b>NOTE:</b><br/>
+ * With more than one replica (see {@link #setReplicas}) every mini-batch is split into as many shards of samples one
+ * after the other, replica r taking samples r*batchSize/replicas to (r+1)*batchSize/replicas, and the replicas train
+ * their shards at the same time on the common ForkJoin pool. A replica is a copy of the layers that shares their weights
+ * but has its own buffers and gradients, so nothing a replica writes is seen by another.<br/>
+ *<br/>
+ * Their gradients are then added up in a tree: first replica r+1 into replica r for every even r, then r+2 into r for
+ * every r that is a multiple of 4 and so on, until all of them are in replica 0 (the layers of the network), which
+ * applies them to the shared weights. Every sum is worked out in the same order whichever thread does it, so for a
+ * given number of replicas the weights come out exactly the same for any number of threads.<br/>
+ *<br/>
+ * {@link #trainHogwild} uses the replicas as workers that do not wait for each other at all: every worker takes the
+ * next sample, runs it forward and back on its own buffers like {@link #train(Dataset)} and moves the shared weights
+ * straight away, without any lock. Two workers can read the same weight before either writes it back, then one of the
+ * two changes is lost. Each such loss is the change of one sample to one weight, and the fully connected layers only
+ * write the rows their sample moves (an input of 0 leaves its row alone), so with sparse inputs the workers mostly
+ * write different weights. How much was lost can be measured, see {@link #setMeasureLostUpdates}.<br/>
+ */
 public class NeuralNetwork {
     private final List<Layer> _layers;
-    private final double scaleFactor;
+    private final double _inputScale;
+
+    private Tensor _input;
+    private double[] _errors;
+    private Tensor _errorsTensor;
+
+    private Prefetcher _prefetcher;
+
+    //the inputs, labels and errors of a batch, kept between batches and pointed at the samples of the current one
+    private Tensor _batchInputs;
+    private int[] _batchLabels;
+    private Tensor _batchErrors;
+
+    //replica 0 is _layers, each replica has its own view of its shard of the batch and its own errors for it
+    private List<List<Layer>> _replicas;
+    private Tensor[] _replicaInputs;
+    private Tensor[] _replicaErrors;
+    private Tensor _lastInputs;
+    private int _lastBatchSize;
+    private int _reduceStep;
+    private final Parallel.Body _trainShards = this::trainShards;
+    private final Parallel.Body _reducePairs = this::reducePairs;
+
+    //Hogwild (see trainHogwild): the workers take turns at taking the next sample out of one of the two iterators and
+    //copy it into their own input, everything else they keep to themselves
+    private final Object _hogwildLock = new Object();
+    private Iterator<Image> _hogwildImages;
+    private Prefetcher.Epoch _hogwildSamples;
+    private Tensor[] _workerInputs;
+    private long[] _workerSamples;
+    private boolean _measureLostUpdates;
+    private volatile RuntimeException _hogwildFailure;
 
     public NeuralNetwork(List<Layer> layers, double scaleFactor) {
         _layers = layers;
-        this.scaleFactor = scaleFactor;
-        linkLayers();
+        _inputScale = 1.0/scaleFactor;
+        _replicas = List.of(layers);
+        _replicaInputs = new Tensor[1];
+        _replicaErrors = new Tensor[1];
+        linkLayers(_layers);
     }
 
-    private void linkLayers(){
-        if(_layers.size() < 2){
+    private static void linkLayers(List<Layer> layers){
+        if(layers.size() < 2){
             return;
         }
 
-        for(int i=0; i< _layers.size(); i++){
-            if(i!= _layers.size()-1)
-                _layers.get(i).set_nextLayer(_layers.get(i+1));
+        for(int i=0; i< layers.size(); i++){
+            if(i!= layers.size()-1)
+                layers.get(i).set_nextLayer(layers.get(i+1));
             if(i!=0)
-                _layers.get(i).set_previousLayer(_layers.get(i-1));
+                layers.get(i).set_previousLayer(layers.get(i-1));
+        }
+    }
+
+    public int getReplicas() {
+        return _replicas.size();
+    }
+
+    /**
+     * The number of replicas mini-batches are split over, see the note above. Set it once the layers are set up, as
+     * the replicas copy their kernels and settings and share their weights as they are.
+     */
+    public void setReplicas(int replicas) {
+        if(replicas < 1)
+            throw new IllegalArgumentException("There must be at least 1 replica, not "+replicas);
+
+        List<List<Layer>> list = new ArrayList<>();
+        list.add(_layers);
+
+        for(int r=1; r<replicas; r++){
+            List<Layer> replica = new ArrayList<>();
+            for(Layer layer:_layers)
+                replica.add(layer.replicate());
+
+            linkLayers(replica);
+            list.add(replica);
         }
+
+        _replicas = list;
+        _replicaInputs = new Tensor[replicas];
+        _replicaErrors = new Tensor[replicas];
     }
 
     public double[] getErrors(double[] networkOutput, int correctAnswer){
@@ -57,18 +147,69 @@ public class NeuralNetwork {
         return index;
     }
 
+    /**
+     * The image is normalized into the same input tensor every time instead of creating a new one per sample.
+     * The previous sample is no longer needed once the next one is fed in.
+     */
+    private Tensor toInput(Image image){
+        if(_input == null || _input.rows() != image.rows() || _input.cols() != image.cols())
+            _input = new Tensor(1, image.rows(), image.cols());
+
+        image.copyInto(_input, _inputScale);
+        return _input;
+    }
+
     public int guess(Image image) throws Exception {
-        List<double[][]> inList = new ArrayList<>();
-        inList.add(MatrixUtility.multiply(image.data(), (1.0/scaleFactor)));
+        return guess(toInput(image));
+    }
 
-        double[] out = _layers.get(0).getOutput(inList);
+    private int guess(Tensor input) throws Exception {
+        double[] out = _layers.get(0).getOutput(input);
 
         return getMaxIndex(out);
     }
 
+    /**
+     * Same as getErrors but written into an array that is kept between samples.
+     */
+    private Tensor errorsInto(double[] networkOutput, int correctAnswer){
+        if(_errors == null || _errors.length != networkOutput.length){
+            _errors = new double[networkOutput.length];
+            _errorsTensor = Tensor.vector(_errors);
+        }
+
+        System.arraycopy(networkOutput, 0, _errors, 0, networkOutput.length);
+        _errors[correctAnswer] += -1;
+
+        return _errorsTensor;
+    }
+
+    private void train(Tensor input, int label) throws Exception {
+        double[] out = _layers.get(0).getOutput(input);
+
+        _layers.get(_layers.size()-1).backPropagation(errorsInto(out, label));
+    }
+
     public float test (List<Image> images) throws Exception {
+        return test(Dataset.of(images));
+    }
+
+    public float test (Dataset images) throws Exception {
         int correct = 0;
 
+        if(_prefetcher != null){
+            try(Prefetcher.Epoch samples = _prefetcher.start(images, false)){
+                while(samples.hasNext()){
+                    Sample sample = samples.next();
+
+                    if(guess(sample.getInput()) == sample.getLabel())
+                        correct++;
+                }
+            }
+
+            return (float)correct/images.size();
+        }
+
         for(Image img:images){
             int guess = guess(img);
 
@@ -80,14 +221,428 @@ public class NeuralNetwork {
     }
 
     public void train(List<Image> images) throws Exception {
-        for(Image img:images){
-            List<double[][]> inList = new ArrayList<>();
-            inList.add(MatrixUtility.multiply(img.data(), (1.0/scaleFactor)));
+        train(Dataset.of(images));
+    }
+
+    /**
+     * With a prefetcher the samples are prepared (and augmented) on its threads while the network trains,
+     * otherwise every image is normalized on this thread just before it is used.
+     */
+    public void train(Dataset images) throws Exception {
+        if(_prefetcher != null){
+            try(Prefetcher.Epoch samples = _prefetcher.start(images, true)){
+                while(samples.hasNext()){
+                    Sample sample = samples.next();
+                    train(sample.getInput(), sample.getLabel());
+                }
+            }
+            return;
+        }
+
+        for(Image img:images)
+            train(toInput(img), img.label());
+    }
+
+    public void train(List<Image> images, int batchSize) throws Exception {
+        train(Dataset.of(images), batchSize);
+    }
+
+    /**
+     * Mini-batch training: batchSize samples at a time go through the layers together, every layer adds up the
+     * gradients of its weights over the batch and moves them once per batch by the mean of them. The last batch can
+     * have fewer samples. With a batch size of 1 the weights move after every sample, like {@link #train(Dataset)}.
+     */
+    public void train(Dataset images, int batchSize) throws Exception {
+        if(batchSize < 1)
+            throw new IllegalArgumentException("The batch size must be at least 1, not "+batchSize);
+
+        int count = 0;
+
+        if(_prefetcher != null){
+            try(Prefetcher.Epoch samples = _prefetcher.start(images, true)){
+                while(samples.hasNext()){
+                    Sample sample = samples.next();
+                    Tensor input = sample.getInput();
+
+                    System.arraycopy(input.data(), input.offset(), batchInput(input.rows(), input.cols(), batchSize),
+                            count*input.size(), input.size());
+                    _batchLabels[count++] = sample.getLabel();
+
+                    if(count == batchSize){
+                        trainBatch(count);
+                        count = 0;
+                    }
+                }
+            }
+        }
+        else {
+            for(Image img:images){
+                toInput(img);
+                System.arraycopy(_input.data(), 0, batchInput(img.rows(), img.cols(), batchSize),
+                        count*_input.size(), _input.size());
+                _batchLabels[count++] = img.label();
+
+                if(count == batchSize){
+                    trainBatch(count);
+                    count = 0;
+                }
+            }
+        }
+
+        if(count > 0)
+            trainBatch(count);
+    }
+
+    /**
+     * The array the inputs of a batch are copied into, one rows x cols sample after the other.
+     */
+    private double[] batchInput(int rows, int cols, int batchSize){
+        if(_batchInputs == null || _batchInputs.rows() != rows || _batchInputs.cols() != cols
+                || _batchInputs.data().length < batchSize*rows*cols){
+            _batchInputs = new Tensor(batchSize, rows, cols);
+            _batchLabels = new int[batchSize];
+        }
+
+        return _batchInputs.data();
+    }
+
+    /**
+     * view moved to count samples of batch starting at offset, or a new view when there is none yet or it is over
+     * another array or shape.
+     */
+    private static Tensor view(Tensor view, Tensor batch, int offset, int count){
+        if(view == null || view.data() != batch.data() || view.rows() != batch.rows() || view.cols() != batch.cols())
+            return new Tensor(batch.data(), offset, count, batch.rows(), batch.cols());
 
-            double[] out = _layers.get(0).getOutput(inList);
-            double[] dLdO = getErrors(out, img.label());
+        view.repoint(offset, count);
+        return view;
+    }
+
+    /**
+     * errors pointed at count samples of classes values, or a new tensor when there is none yet or its array is too
+     * small. The array keeps the size of the biggest batch, so a short last batch does not make it shrink and grow.
+     */
+    private static Tensor errors(Tensor errors, int count, int classes){
+        if(errors == null || errors.cols() != classes || errors.data().length < count*classes)
+            return new Tensor(count, 1, classes);
+
+        errors.repoint(0, count);
+        return errors;
+    }
+
+    /**
+     * Trains the first batchSize samples of the batch buffers, the error of every sample is its output minus the one
+     * hot vector of its label like for a single sample.
+     */
+    private void trainBatch(int batchSize) throws Exception {
+        Tensor inputs = _batchInputs;
+        inputs.repoint(0, batchSize);
 
-            _layers.get(_layers.size()-1).backPropagation(dLdO);
+        if(_replicas.size() > 1){
+            trainReplicas(inputs, batchSize);
+            return;
         }
+
+        double[] out = _layers.get(0).getOutputs(inputs, batchSize);
+
+        Layer last = _layers.get(_layers.size()-1);
+        int classes = last.getOutputElements();
+        _batchErrors = errors(_batchErrors, batchSize, classes);
+
+        double[] errors = _batchErrors.data();
+        System.arraycopy(out, 0, errors, 0, batchSize*classes);
+        for(int b=0; b<batchSize; b++)
+            errors[b*classes + _batchLabels[b]] += -1;
+
+        last.backPropagation(_batchErrors, batchSize);
+
+        for(Layer layer:_layers)
+            layer.applyGradients(batchSize);
+    }
+
+    /**
+     * Trains every replica on its shard of the batch, adds their gradients up in replica 0 and applies them.
+     */
+    private void trainReplicas(Tensor inputs, int batchSize){
+        int replicas = _replicas.size();
+        _lastInputs = inputs;
+        _lastBatchSize = batchSize;
+
+        Parallel.forRange(replicas, Parallel.TASK_WORK, _trainShards);
+        reduceReplicas();
+
+        for(Layer layer:_layers)
+            layer.applyGradients(batchSize);
+    }
+
+    /**
+     * Adds the gradients of all the replicas up in replica 0, in the tree of the note above.
+     */
+    private void reduceReplicas(){
+        int replicas = _replicas.size();
+
+        for(_reduceStep=1; _reduceStep<replicas; _reduceStep*=2)
+            Parallel.forRange((replicas + 2*_reduceStep-1)/(2*_reduceStep), Parallel.TASK_WORK, _reducePairs);
+    }
+
+    /**
+     * Forward and backward passes of the replicas from to to, each on its own shard.
+     */
+    private void trainShards(int from, int to){
+        int replicas = _replicas.size();
+
+        for(int r=from; r<to; r++){
+            int first = (int)((long)r*_lastBatchSize/replicas);
+            int shard = (int)((long)(r+1)*_lastBatchSize/replicas) - first;
+            if(shard == 0)
+                continue;
+
+            List<Layer> layers = _replicas.get(r);
+            Layer last = layers.get(layers.size()-1);
+            int size = _lastInputs.size()/_lastBatchSize;
+            int classes = last.getOutputElements();
+
+            Tensor inputs = _replicaInputs[r] = view(_replicaInputs[r], _lastInputs, _lastInputs.offset() + first*size, shard);
+            _replicaErrors[r] = errors(_replicaErrors[r], shard, classes);
+
+            try {
+                double[] out = layers.get(0).getOutputs(inputs, shard);
+
+                double[] errors = _replicaErrors[r].data();
+                System.arraycopy(out, 0, errors, 0, shard*classes);
+                for(int b=0; b<shard; b++)
+                    errors[b*classes + _batchLabels[first+b]] += -1;
+
+                last.backPropagation(_replicaErrors[r], shard);
+            }
+            catch(Exception e){
+                throw new IllegalStateException("Replica "+r+" failed", e);
+            }
+        }
+    }
+
+    /**
+     * The pairs from to to of the current step of the tree: pair k adds replica 2*k*step+step into 2*k*step.
+     */
+    private void reducePairs(int from, int to){
+        int replicas = _replicas.size();
+
+        for(int k=from; k<to; k++){
+            int target = 2*k*_reduceStep;
+            int source = target + _reduceStep;
+            if(source >= replicas)
+                continue;
+
+            List<Layer> layers = _replicas.get(target);
+            List<Layer> sources = _replicas.get(source);
+            for(int i=0; i<layers.size(); i++)
+                layers.get(i).reduceGradients(sources.get(i));
+        }
+    }
+
+    public boolean isMeasureLostUpdates() {
+        return _measureLostUpdates;
+    }
+
+    /**
+     * Whether {@link #trainHogwild} works out how much of the changes to the weights the workers lost. Every layer then
+     * also adds up every change it makes, which costs about as much again as the updates themselves. Off by default.
+     */
+    public void setMeasureLostUpdates(boolean measure) {
+        _measureLostUpdates = measure;
+    }
+
+    /**
+     * One epoch of Hogwild training on every replica at the same time, see the note above. Which worker gets which
+     * sample and in what order the updates land depends on the threads, so unlike the other ways of training the
+     * weights differ from run to run. With one replica it is the same as {@link #train(Dataset)}.<br/>
+     * Every worker gets a thread of its own for the epoch, so they keep out of the common ForkJoin pool the layers split
+     * their passes over. Once there are as many replicas as cores the layers are best not split at all (see
+     * {@link Layer#setParallel}).
+     */
+    public HogwildStats trainHogwild(Dataset images) throws Exception {
+        int workers = _replicas.size();
+        if(_workerInputs == null || _workerInputs.length != workers){
+            _workerInputs = new Tensor[workers];
+            _workerSamples = new long[workers];
+        }
+        Arrays.fill(_workerSamples, 0);
+
+        double[][] start = _measureLostUpdates ? startRecording() : null;
+        long begin = System.nanoTime();
+
+        if(_prefetcher != null){
+            try(Prefetcher.Epoch samples = _prefetcher.start(images, true)){
+                _hogwildSamples = samples;
+                runWorkers(workers);
+            }
+            finally {
+                _hogwildSamples = null;
+            }
+        }
+        else {
+            _hogwildImages = images.iterator();
+            try {
+                runWorkers(workers);
+            }
+            finally {
+                _hogwildImages = null;
+            }
+        }
+
+        long nanos = System.nanoTime() - begin;
+        return new HogwildStats(_workerSamples, nanos, start != null ? stopRecording(start) : null);
+    }
+
+    /**
+     * Starts a thread for every worker and waits for all of them to run out of samples. When a worker fails the others
+     * stop after their current sample and the failure is thrown here.
+     */
+    private void runWorkers(int workers){
+        _hogwildFailure = null;
+        HogwildWorker[] threads = new HogwildWorker[workers];
+        for(int w=0; w<workers; w++){
+            threads[w] = new HogwildWorker(w);
+            threads[w].start();
+        }
+
+        boolean interrupted = false;
+        for(HogwildWorker thread:threads){
+            while(thread.isAlive()){
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    //the workers stop on their own once the samples run out, keep waiting and pass the interrupt on
+                    interrupted = true;
+                }
+            }
+        }
+
+        if(interrupted)
+            Thread.currentThread().interrupt();
+
+        if(_hogwildFailure != null)
+            throw _hogwildFailure;
+    }
+
+    private class HogwildWorker extends Thread {
+        private final int _worker;
+
+        private HogwildWorker(int worker) {
+            super("hogwild-"+worker);
+            setDaemon(true);
+            _worker = worker;
+        }
+
+        /**
+         * Trains on samples until there are none left.
+         */
+        @Override
+        public void run() {
+            int w = _worker;
+            List<Layer> layers = _replicas.get(w);
+            Layer last = layers.get(layers.size()-1);
+
+            try {
+                int label;
+                while((label = nextSample(w)) >= 0){
+                    double[] out = layers.get(0).getOutput(_workerInputs[w]);
+
+                    int classes = out.length;
+                    _replicaErrors[w] = errors(_replicaErrors[w], 1, classes);
+
+                    double[] errors = _replicaErrors[w].data();
+                    System.arraycopy(out, 0, errors, 0, classes);
+                    errors[label] += -1;
+
+                    last.backPropagation(_replicaErrors[w]);
+                    _workerSamples[w]++;
+                }
+            }
+            catch(Exception e){
+                _hogwildFailure = new IllegalStateException("Worker "+w+" failed", e);
+            }
+        }
+    }
+
+    /**
+     * Copies the next sample of the epoch into the input of the worker and returns its label, or -1 once there are no
+     * samples left (or another worker failed). This is the only place the workers wait for each other.
+     */
+    private int nextSample(int worker){
+        synchronized(_hogwildLock){
+            if(_hogwildFailure != null)
+                return -1;
+
+            if(_hogwildSamples != null){
+                if(!_hogwildSamples.hasNext())
+                    return -1;
+
+                Sample sample = _hogwildSamples.next();
+                Tensor input = sample.getInput();
+                Tensor target = workerInput(worker, input.rows(), input.cols());
+                System.arraycopy(input.data(), input.offset(), target.data(), 0, input.size());
+                return sample.getLabel();
+            }
+
+            if(!_hogwildImages.hasNext())
+                return -1;
+
+            Image image = _hogwildImages.next();
+            image.copyInto(workerInput(worker, image.rows(), image.cols()), _inputScale);
+            return image.label();
+        }
+    }
+
+    private Tensor workerInput(int worker, int rows, int cols){
+        Tensor input = _workerInputs[worker];
+        if(input == null || input.rows() != rows || input.cols() != cols)
+            _workerInputs[worker] = input = new Tensor(1, rows, cols);
+
+        return input;
+    }
+
+    /**
+     * Keeps the weights of every layer as they are now and lets every replica record the changes it makes to them.
+     */
+    private double[][] startRecording(){
+        double[][] start = new double[_layers.size()][];
+        for(int i=0; i<_layers.size(); i++)
+            start[i] = _layers.get(i).copyWeights();
+
+        for(List<Layer> replica:_replicas){
+            for(Layer layer:replica)
+                layer.setRecordingUpdates(true);
+        }
+
+        return start;
+    }
+
+    /**
+     * Adds up what the replicas recorded and compares it with how far the weights actually moved from start.
+     */
+    private UpdateLoss stopRecording(double[][] start){
+        for(List<Layer> replica:_replicas){
+            for(Layer layer:replica)
+                layer.setRecordingUpdates(false);
+        }
+
+        reduceReplicas();
+
+        UpdateLoss lost = UpdateLoss.NONE;
+        for(int i=0; i<_layers.size(); i++){
+            if(start[i] != null)
+                lost = lost.plus(_layers.get(i).compareUpdates(start[i]));
+        }
+
+        return lost;
+    }
+
+    public Prefetcher getPrefetcher() {
+        return _prefetcher;
+    }
+
+    public void setPrefetcher(Prefetcher prefetcher) {
+        _prefetcher = prefetcher;
     }
 }
@@ -0,0 +1,12 @@
+package com.behrainwala.data;
+
+import java.util.Random;
+
+/**
+ * Changes the normalized pixels of one sample (the first channel of the tensor) in place, e.g. shifting or adding noise.<br/>
+ * It is run by the {@link Prefetcher} threads, so an implementation must be safe to call from several threads at once.
+ * All randomness has to come from the random passed in, which is seeded per sample so runs can be reproduced.
+ */
+public interface Augmentation {
+    void apply(Tensor pixels, Random random);
+}
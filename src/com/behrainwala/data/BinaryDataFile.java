@@ -0,0 +1,150 @@
+package com.behrainwala.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * <b>NOTE:</b><br/>
+ * Compact binary dataset format, so we do not have to parse the CSV files on every run.<br/>
+ * The layout follows the IDX files the MNIST data is originally published in (big endian):<br/>
+ *<br/>
+ * +--------+--------+--------+--------+-------------------------------------+<br/>
+ * | magic  | count  | rows   | cols   | count x (label byte + pixel bytes)  |<br/>
+ * +--------+--------+--------+--------+-------------------------------------+<br/>
+ *<br/>
+ * magic is 0x00000803 -> unsigned bytes, 3 dimensions (count, rows, cols).<br/>
+ * Every record is 1 label byte followed by rows*cols pixel bytes (0-255), row by row.<br/>
+ * The file is memory mapped when read, so images are served straight from the mapping.<br/>
+ */
+public class BinaryDataFile {
+
+    public static final int MAGIC = 0x00000803;
+    public static final int HEADER_BYTES = 16;
+
+    private BinaryDataFile(){}
+
+    public static List<Image> readData(String filePath) {
+        try(FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)){
+            return map(channel, 0, filePath);
+        }catch(Exception e){
+            System.out.println(e.getMessage());
+        }
+
+        return new ArrayList<>();
+    }
+
+    /**
+     * Maps the data that starts at offset in the file, the mapping stays valid after the channel is closed.
+     */
+    static List<Image> map(FileChannel channel, long offset, String filePath) throws IOException {
+        long dataSize = channel.size()-offset;
+
+        if(dataSize > Integer.MAX_VALUE)
+            throw new IOException("Binary data file is too large to map: "+filePath);
+
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, dataSize);
+
+        if(dataSize < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a binary data file: "+filePath);
+
+        int count = buffer.getInt(4);
+        int rows = buffer.getInt(8);
+        int cols = buffer.getInt(12);
+
+        if(HEADER_BYTES + (long)count*(1 + rows*cols) != dataSize)
+            throw new IOException("Binary data file is truncated: "+filePath);
+
+        return new MappedImageList(buffer, count, rows, cols);
+    }
+
+    public static void writeData(List<Image> images, String filePath) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath)))){
+            writeData(images, out);
+        }
+    }
+
+    static void writeData(List<Image> images, DataOutputStream out) throws IOException {
+        if(images.isEmpty())
+            throw new IOException("There are no images to write");
+
+        int rows = images.get(0).rows();
+        int cols = images.get(0).cols();
+
+        out.writeInt(MAGIC);
+        out.writeInt(images.size());
+        out.writeInt(rows);
+        out.writeInt(cols);
+
+        byte[] record = new byte[1 + rows*cols];
+
+        for(Image image:images){
+            if(image.rows() != rows || image.cols() != cols)
+                throw new IOException("All images must be "+rows+"x"+cols);
+
+            record[0] = toByte(image.label());
+            image.pixels().get(record, 1, rows*cols);
+
+            out.write(record);
+        }
+    }
+
+    /**
+     * Converts one of the CSV files read by {@link DataReader} into the binary format.
+     */
+    public static void convertCsv(String csvFilePath, String binaryFilePath) throws IOException {
+        writeData(DataReader.readData(csvFilePath), binaryFilePath);
+    }
+
+    private static byte toByte(int value){
+        if(value < 0 || value > 255)
+            throw new IllegalArgumentException("Value "+value+" does not fit in an unsigned byte");
+
+        return (byte)value;
+    }
+
+    /**
+     * Read only view over the mapped records. Nothing is parsed or copied, each image is a slice of the mapping.
+     */
+    private static class MappedImageList extends AbstractList<Image> implements RandomAccess {
+        private final ByteBuffer _buffer;
+        private final int _count;
+        private final int _rows;
+        private final int _cols;
+        private final int _recordBytes;
+
+        private MappedImageList(ByteBuffer buffer, int count, int rows, int cols) {
+            _buffer = buffer;
+            _count = count;
+            _rows = rows;
+            _cols = cols;
+            _recordBytes = 1 + rows*cols;
+        }
+
+        @Override
+        public Image get(int index) {
+            if(index < 0 || index >= _count)
+                throw new IndexOutOfBoundsException("Index: "+index+", Size: "+_count);
+
+            int position = HEADER_BYTES + index*_recordBytes;
+            int label = _buffer.get(position) & 0xff;
+
+            return new Image(_buffer.slice(position+1, _rows*_cols), _rows, _cols, label);
+        }
+
+        @Override
+        public int size() {
+            return _count;
+        }
+    }
+}
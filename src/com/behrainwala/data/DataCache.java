@@ -0,0 +1,111 @@
+package com.behrainwala.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * <b>NOTE:</b><br/>
+ * The parsed version of a data file, stored next to it as &lt;source&gt;.cache so later runs do not have to parse it again.<br/>
+ *<br/>
+ * +--------+---------+-------------+--------------+-------------+----------------------------+<br/>
+ * | magic  | version | source size | source mtime | source hash | {@link BinaryDataFile} data |<br/>
+ * +--------+---------+-------------+--------------+-------------+----------------------------+<br/>
+ *<br/>
+ * The cache is only used when the size, the last modified time and the CRC32C of the source all still match,
+ * otherwise it is rebuilt from the source. The images are kept as pixel bytes, the same compact form the {@link Image}
+ * holds them in, so the cache can be mapped and used without any conversion.<br/>
+ */
+class DataCache {
+    private static final int MAGIC = 0x434E4E43; // "CNNC"
+    private static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+
+    private static final long HASH_BLOCK_BYTES = 1 << 26;
+
+    private DataCache(){}
+
+    static Path cachePath(String sourcePath){
+        return Path.of(sourcePath+".cache");
+    }
+
+    /**
+     * Returns the cache of the source, building it first if it is missing or out of date.
+     */
+    static Path ensure(String sourcePath) throws IOException {
+        Path source = Path.of(sourcePath);
+        Path cache = cachePath(sourcePath);
+
+        long size = Files.size(source);
+        long modified = Files.getLastModifiedTime(source).toMillis();
+        long hash = hash(source);
+
+        if(!isValid(cache, size, modified, hash))
+            build(sourcePath, cache, size, modified, hash);
+
+        return cache;
+    }
+
+    private static boolean isValid(Path cache, long size, long modified, long hash) throws IOException {
+        if(!Files.exists(cache) || Files.size(cache) < HEADER_BYTES)
+            return false;
+
+        try(FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)){
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while(header.hasRemaining() && channel.read(header) >= 0);
+
+            return header.getInt(0) == MAGIC
+                    && header.getInt(4) == VERSION
+                    && header.getLong(8) == size
+                    && header.getLong(16) == modified
+                    && header.getLong(24) == hash;
+        }
+    }
+
+    /**
+     * Writes to a temporary file first, so a half written cache is never picked up.
+     */
+    private static void build(String sourcePath, Path cache, long size, long modified, long hash) throws IOException {
+        List<Image> images = DataReader.readData(sourcePath);
+        if(images.isEmpty())
+            throw new IOException("Could not read any images from "+sourcePath);
+
+        Path temp = cache.resolveSibling(cache.getFileName()+".tmp");
+        try {
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))){
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(size);
+                out.writeLong(modified);
+                out.writeLong(hash);
+
+                BinaryDataFile.writeData(images, out);
+            }
+
+            Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static long hash(Path source) throws IOException {
+        CRC32C crc = new CRC32C();
+
+        try(FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)){
+            long size = channel.size();
+
+            for(long position=0; position<size; position+=HASH_BLOCK_BYTES)
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(HASH_BLOCK_BYTES, size-position)));
+        }
+
+        return crc.getValue();
+    }
+}
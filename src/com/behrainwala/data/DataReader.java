@@ -1,42 +1,202 @@
 package com.behrainwala.data;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+/**
+ * <b>NOTE:</b><br/>
+ * Reads the MNIST CSV files, one image per line: the label followed by rows*columns pixel values (0-255).<br/>
+ *<br/>
+ * The file is split into byte ranges that start and end on line boundaries and every range is parsed on its own core.
+ * Each range is memory mapped and the digits are parsed straight from the bytes, so no String or String[] is created
+ * per line. The ranges are merged back in file order, so the images come out in the same order as the lines.<br/>
+ * All the pixels of a range end up in one shared byte array, every image is a view over its own part of it.<br/>
+ */
 public class DataReader {
 
     private static final int columns = 28;
     private static final int rows = 28;
 
+    private static final long MIN_CHUNK_BYTES = 1 << 20;
+    private static final long MAX_CHUNK_BYTES = 1 << 26;
+
     public static List<Image> readData(String filePath) {
         List<Image> images = new ArrayList<>();
 
-        try(BufferedReader dataReader = new BufferedReader(new FileReader(filePath))){
-            String line;
-
-            while((line = dataReader.readLine())!=null){
-                String[] imagePart = line.split(",");
-
-                double[][] data = new double[rows][columns];
-                int label = Integer.parseInt(imagePart[0]);
+        try(FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)){
+            long fileSize = channel.size();
 
-                int i=1;
+            List<Callable<Chunk>> tasks = new ArrayList<>();
+            long[] bounds = chunkBounds(channel, fileSize);
+            for(int i=0; i<bounds.length-1; i++){
+                long start = bounds[i];
+                long end = bounds[i+1];
+                tasks.add(() -> parseChunk(channel.map(FileChannel.MapMode.READ_ONLY, start, end-start), filePath));
+            }
 
-                for(int row = 0; row< rows; row++)
-                    for(int col = 0; col< columns; col++){
-                        data[row][col] =  Integer.parseInt(imagePart[i]);
-                        i++;
-                    }
+            for(Future<Chunk> future:ForkJoinPool.commonPool().invokeAll(tasks)){
+                Chunk chunk = future.get();
+                int imageSize = rows*columns;
 
-                images.add(new Image(data, label));
+                for(int n=0; n<chunk.count; n++)
+                    images.add(new Image(chunk.pixels, n*imageSize, rows, columns, chunk.labels[n]));
             }
 
         }catch(Exception e){
             System.out.println(e.getMessage());
+            images.clear();
         }
 
         return images;
     }
+
+    /**
+     * Same as {@link #readData} but loads the images from the cache next to the file, which is (re)built when needed.
+     * See {@link DataCache}.
+     */
+    public static List<Image> readCachedData(String filePath) {
+        try{
+            Path cache = DataCache.ensure(filePath);
+
+            try(FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)){
+                return BinaryDataFile.map(channel, DataCache.HEADER_BYTES, cache.toString());
+            }
+        }catch(Exception e){
+            System.out.println(e.getMessage());
+        }
+
+        return new ArrayList<>();
+    }
+
+    /**
+     * Streams the images from the cache next to the file, which is (re)built when needed. See {@link DataCache}.
+     */
+    public static FileDataset openCachedData(String filePath, int chunkSize) throws IOException {
+        Path cache = DataCache.ensure(filePath);
+        return new FileDataset(cache.toString(), chunkSize, DataCache.HEADER_BYTES);
+    }
+
+    /**
+     * Splits the file into about one range per core. Every range boundary is moved forward to the start of the next line.
+     */
+    private static long[] chunkBounds(FileChannel channel, long fileSize) throws IOException {
+        long chunks = Math.max(Runtime.getRuntime().availableProcessors(), (fileSize+MAX_CHUNK_BYTES-1)/MAX_CHUNK_BYTES);
+        chunks = Math.max(1, Math.min(chunks, fileSize/MIN_CHUNK_BYTES));
+
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+
+        for(long i=1; i<chunks; i++){
+            long start = nextLineStart(channel, i*fileSize/chunks);
+            if(start > bounds.get(bounds.size()-1) && start < fileSize)
+                bounds.add(start);
+        }
+
+        bounds.add(fileSize);
+        return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        while(true){
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if(read <= 0)
+                return channel.size();
+
+            for(int i=0; i<read; i++){
+                if(buffer.get(i) == '\n')
+                    return position+i+1;
+            }
+            position += read;
+        }
+    }
+
+    private static Chunk parseChunk(ByteBuffer bytes, String filePath) throws IOException {
+        int imageSize = rows*columns;
+        Chunk chunk = new Chunk(bytes.remaining()/(imageSize*2)+1, imageSize);
+
+        int field = 0;
+        int value = 0;
+        boolean digits = false;
+        int limit = bytes.limit();
+
+        for(int i=0; i<=limit; i++){
+            //the end of the range finishes the last line, even if the file does not end with a new line
+            byte b = i<limit ? bytes.get(i) : (byte)'\n';
+
+            if(b >= '0' && b <= '9'){
+                value = value*10 + (b-'0');
+                digits = true;
+                if(value > 255)
+                    throw new IOException("Value out of range in "+filePath);
+            }
+            else if(b == ','){
+                if(!digits || field == imageSize)
+                    throw new IOException("Expected "+(imageSize+1)+" values per line in "+filePath);
+
+                chunk.set(field, value);
+                field++;
+                value = 0;
+                digits = false;
+            }
+            else if(b == '\n'){
+                if(field == 0 && !digits)
+                    continue; //empty line
+
+                if(!digits || field != imageSize)
+                    throw new IOException("Expected "+(imageSize+1)+" values per line in "+filePath);
+
+                chunk.set(field, value);
+                chunk.count++;
+                field = 0;
+                value = 0;
+                digits = false;
+            }
+            else if(b != '\r' && b != ' '){
+                throw new IOException("Unexpected character '"+(char)b+"' in "+filePath);
+            }
+        }
+
+        chunk.pixels = Arrays.copyOf(chunk.pixels, chunk.count*imageSize);
+        return chunk;
+    }
+
+    private static class Chunk {
+        private final int imageSize;
+        private byte[] pixels;
+        private int[] labels;
+        private int count;
+
+        private Chunk(int expectedImages, int imageSize) {
+            this.imageSize = imageSize;
+            pixels = new byte[expectedImages*imageSize];
+            labels = new int[expectedImages];
+        }
+
+        /**
+         * Field 0 is the label, fields 1 to imageSize are the pixels of the image being parsed.
+         */
+        private void set(int field, int value){
+            if(count == labels.length){
+                labels = Arrays.copyOf(labels, count*2);
+                pixels = Arrays.copyOf(pixels, count*2*imageSize);
+            }
+
+            if(field == 0)
+                labels[count] = value;
+            else
+                pixels[count*imageSize+field-1] = (byte)value;
+        }
+    }
 }
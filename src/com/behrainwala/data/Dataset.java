@@ -0,0 +1,125 @@
+package com.behrainwala.data;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * <b>NOTE:</b><br/>
+ * A set of images that is read in chunks instead of being held in memory all at once.<br/>
+ *<br/>
+ * Iterating asks the implementation for the next chunkSize images, so at most one chunk has to be in memory at a
+ * time (plus whatever the caller keeps hold of).<br/>
+ * Shuffling never moves the images, it only shuffles a permutation of the indexes which decides the order the next
+ * iterations read them in. That is the only memory kept per image: a single int.<br/>
+ */
+public abstract class Dataset implements Iterable<Image> {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    private final int _chunkSize;
+    private int[] _order;
+
+    protected Dataset(int chunkSize) {
+        if(chunkSize < 1)
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+
+        _chunkSize = chunkSize;
+    }
+
+    public static Dataset of(List<Image> images){
+        return new ListDataset(images, DEFAULT_CHUNK_SIZE);
+    }
+
+    public abstract int size();
+
+    /**
+     * Reads the images at indices[0..count) into target[0..count), in the same order.
+     */
+    protected abstract void read(int[] indices, int count, Image[] target);
+
+    /**
+     * Shuffles the order the following iterations go through the images in.
+     * This must not be called while an iteration is running.
+     */
+    public void shuffle(Random random){
+        int size = size();
+
+        if(_order == null){
+            _order = new int[size];
+            for(int i=0; i<size; i++)
+                _order[i] = i;
+        }
+
+        //Fisher–Yates, same as Collections.shuffle
+        for(int i=size-1; i>0; i--){
+            int j = random.nextInt(i+1);
+            int swap = _order[i];
+            _order[i] = _order[j];
+            _order[j] = swap;
+        }
+    }
+
+    /**
+     * The index of the image that comes at the given position of an iteration.
+     */
+    public int indexAt(int position){
+        return _order == null ? position : _order[position];
+    }
+
+    /**
+     * Reads the images at positions [start, start+count) of the current order into target[0..count).
+     * indices must have room for count entries, it is only used as scratch space.
+     */
+    void readPositions(int start, int count, int[] indices, Image[] target){
+        for(int i=0; i<count; i++)
+            indices[i] = indexAt(start+i);
+
+        read(indices, count, target);
+    }
+
+    public int getChunkSize() {
+        return _chunkSize;
+    }
+
+    @Override
+    public Iterator<Image> iterator() {
+        return new ChunkIterator();
+    }
+
+    private class ChunkIterator implements Iterator<Image> {
+        private final int _size = size();
+        private final int[] _indices = new int[Math.min(_chunkSize, Math.max(_size, 1))];
+        private final Image[] _chunk = new Image[_indices.length];
+        private int _position;
+        private int _chunkStart;
+        private int _chunkEnd;
+
+        @Override
+        public boolean hasNext() {
+            return _position < _size;
+        }
+
+        @Override
+        public Image next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+
+            if(_position == _chunkEnd)
+                readChunk();
+
+            return _chunk[_position++ - _chunkStart];
+        }
+
+        private void readChunk(){
+            _chunkStart = _position;
+            _chunkEnd = Math.min(_size, _chunkStart+_indices.length);
+
+            //let go of the previous chunk before the next one is read
+            Arrays.fill(_chunk, null);
+            readPositions(_chunkStart, _chunkEnd-_chunkStart, _indices, _chunk);
+        }
+    }
+}
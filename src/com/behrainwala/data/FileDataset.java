@@ -0,0 +1,115 @@
+package com.behrainwala.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * <b>NOTE:</b><br/>
+ * Streams the images of a {@link BinaryDataFile} from disk one chunk at a time, so the file can be much larger
+ * than the heap.<br/>
+ *<br/>
+ * Every chunk is read into its own byte array and the images are views over it. Within a chunk the records are read
+ * in file order, and records that are next to each other in the file are read with a single call, even when the
+ * dataset has been shuffled. The images still come out in the shuffled order.<br/>
+ */
+public class FileDataset extends Dataset implements Closeable {
+    private final FileChannel _channel;
+    private final long _offset;
+    private final int _count;
+    private final int _rows;
+    private final int _cols;
+    private final int _recordBytes;
+
+    public FileDataset(String filePath) throws IOException {
+        this(filePath, DEFAULT_CHUNK_SIZE);
+    }
+
+    public FileDataset(String filePath, int chunkSize) throws IOException {
+        this(filePath, chunkSize, 0);
+    }
+
+    /**
+     * Reads binary data that starts at offset in the file instead of at the start, see {@link DataCache}.
+     */
+    FileDataset(String filePath, int chunkSize, long offset) throws IOException {
+        super(chunkSize);
+        _channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ);
+        _offset = offset;
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(BinaryDataFile.HEADER_BYTES);
+            readFully(header, offset);
+
+            if(header.getInt(0) != BinaryDataFile.MAGIC)
+                throw new IOException("Not a binary data file: "+filePath);
+
+            _count = header.getInt(4);
+            _rows = header.getInt(8);
+            _cols = header.getInt(12);
+            _recordBytes = 1 + _rows*_cols;
+
+            if(offset + BinaryDataFile.HEADER_BYTES + (long)_count*_recordBytes != _channel.size())
+                throw new IOException("Binary data file is truncated: "+filePath);
+        } catch (IOException e) {
+            _channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int size() {
+        return _count;
+    }
+
+    @Override
+    protected void read(int[] indices, int count, Image[] target) {
+        //sort by index, remembering which slot each record goes to
+        long[] sorted = new long[count];
+        for(int i=0; i<count; i++)
+            sorted[i] = ((long)indices[i] << 32) | i;
+        Arrays.sort(sorted);
+
+        byte[] records = new byte[count*_recordBytes];
+
+        try {
+            int start = 0;
+            while(start < count){
+                int end = start+1;
+                while(end < count && (sorted[end] >>> 32) == (sorted[end-1] >>> 32)+1)
+                    end++;
+
+                long filePosition = _offset + BinaryDataFile.HEADER_BYTES + (sorted[start] >>> 32)*_recordBytes;
+                readFully(ByteBuffer.wrap(records, start*_recordBytes, (end-start)*_recordBytes), filePosition);
+                start = end;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        for(int k=0; k<count; k++){
+            int slot = (int)sorted[k];
+            int position = k*_recordBytes;
+            target[slot] = new Image(records, position+1, _rows, _cols, records[position] & 0xff);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()){
+            int read = _channel.read(buffer, position);
+            if(read < 0)
+                throw new IOException("Unexpected end of binary data file");
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        _channel.close();
+    }
+}
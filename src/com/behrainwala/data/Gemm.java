@@ -0,0 +1,211 @@
+package com.behrainwala.data;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <b>NOTE:</b><br/>
+ * Matrix multiplication on flat row major arrays: C = alpha*op(A)*op(B) + beta*C, where op(A) is m x k, op(B) is
+ * k x n and C is m x n. op(X) is X or X transposed. The ld arguments are the distance between the rows of each array
+ * as it is stored, so a matrix can be part of a bigger one.<br/>
+ *<br/>
+ * The work is split in blocks that fit in the cache:<br/>
+ * 1. KC values of k at a time, so the block of B that is used stays in the cache.<br/>
+ * 2. MC rows of op(A) at a time, copied (packed) into a contiguous array together with alpha, which is also where the
+ *    transpose of A is handled. B is only packed when it is transposed.<br/>
+ * 3. NC columns at a time, each 4 rows of C at a time go to {@link Kernels#multiplyAdd}, which keeps them in
+ *    registers.<br/>
+ *<br/>
+ * Every value of C adds up its products one after the other in the order of k, however it is split up, so the result
+ * does not depend on the block sizes or the number of threads. Large multiplications are split by rows of C over the
+ * common ForkJoin pool. The packing arrays are kept per thread, so nothing is allocated after the first call.<br/>
+ */
+public final class Gemm {
+    private static final int MC = 64;
+    private static final int KC = 256;
+    private static final int NC = 512;
+
+    //multiplications (m*n*k) below this are not worth splitting over threads
+    private static final long PARALLEL_THRESHOLD = 1L << 22;
+
+    private final Kernels _kernels;
+    private final ThreadLocal<Scratch> _scratch = ThreadLocal.withInitial(Scratch::new);
+
+    Gemm(Kernels kernels) {
+        _kernels = kernels;
+    }
+
+    /**
+     * C = alpha*op(A)*op(B) + beta*C
+     */
+    public void multiply(boolean transA, boolean transB, int m, int n, int k,
+                         double alpha, double[] a, int aOffset, int lda,
+                         double[] b, int bOffset, int ldb,
+                         double beta, double[] c, int cOffset, int ldc) {
+        if(m == 0 || n == 0)
+            return;
+
+        if((long)m*n*k >= PARALLEL_THRESHOLD && m > MC && ForkJoinPool.getCommonPoolParallelism() > 1){
+            ForkJoinPool.commonPool().invoke(new RowsTask(transA, transB, 0, m, n, k, alpha, a, aOffset, lda,
+                    b, bOffset, ldb, beta, c, cOffset, ldc));
+            return;
+        }
+
+        multiplyRows(transA, transB, 0, m, n, k, alpha, a, aOffset, lda, b, bOffset, ldb, beta, c, cOffset, ldc);
+    }
+
+    /**
+     * y = alpha*op(A)*x + beta*y, where A is stored as m x n, so y has m values (n when transposed).
+     */
+    public void multiplyVector(boolean transA, int m, int n, double alpha, double[] a, int aOffset, int lda,
+                               double[] x, int xOffset, double beta, double[] y, int yOffset) {
+        int length = transA ? n : m;
+        scale(beta, y, yOffset, length);
+
+        if(transA){
+            //y += (alpha*x[i]) * row i of A, each y adds its products in the order of the rows
+            for(int i=0; i<m; i++)
+                _kernels.axpy(alpha*x[xOffset+i], a, aOffset + i*lda, y, yOffset, n);
+        } else {
+            for(int i=0; i<m; i++)
+                y[yOffset+i] += alpha*_kernels.dot(0, a, aOffset + i*lda, x, xOffset, n);
+        }
+    }
+
+    /**
+     * C rows from to to.
+     */
+    private void multiplyRows(boolean transA, boolean transB, int from, int to, int n, int k,
+                              double alpha, double[] a, int aOffset, int lda,
+                              double[] b, int bOffset, int ldb,
+                              double beta, double[] c, int cOffset, int ldc) {
+        for(int i=from; i<to; i++)
+            scale(beta, c, cOffset + i*ldc, n);
+
+        if(alpha == 0 || k == 0)
+            return;
+
+        Scratch scratch = _scratch.get();
+
+        for(int p0=0; p0<k; p0+=KC){
+            int depth = Math.min(KC, k-p0);
+
+            for(int j0=0; j0<n; j0+=NC){
+                int width = Math.min(NC, n-j0);
+
+                double[] packedB = b;
+                int packedBOffset = bOffset + p0*ldb + j0;
+                int packedLdb = ldb;
+                if(transB){
+                    packedB = scratch.packB(b, bOffset, ldb, p0, depth, j0, width);
+                    packedBOffset = 0;
+                    packedLdb = width;
+                }
+
+                for(int i0=from; i0<to; i0+=MC){
+                    int height = Math.min(MC, to-i0);
+                    double[] packedA = scratch.packA(transA, alpha, a, aOffset, lda, i0, height, p0, depth);
+
+                    for(int i=0; i<height; i+=4){
+                        int rows = Math.min(4, height-i);
+                        _kernels.multiplyAdd(rows, depth, width, packedA, i*depth, packedB, packedBOffset, packedLdb,
+                                c, cOffset + (i0+i)*ldc + j0, ldc);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void scale(double beta, double[] y, int offset, int length){
+        if(beta == 0)
+            Arrays.fill(y, offset, offset+length, 0);
+        else if(beta != 1)
+            for(int i=0; i<length; i++)
+                y[offset+i] *= beta;
+    }
+
+    private static class Scratch {
+        private double[] a = new double[MC*KC];
+        private double[] b = new double[0];
+
+        /**
+         * alpha*op(A) rows i0 to i0+height and columns p0 to p0+depth, as height x depth.
+         */
+        private double[] packA(boolean transA, double alpha, double[] source, int offset, int lda, int i0, int height, int p0, int depth){
+            for(int i=0; i<height; i++){
+                for(int p=0; p<depth; p++){
+                    double value = transA ? source[offset + (p0+p)*lda + i0+i] : source[offset + (i0+i)*lda + p0+p];
+                    a[i*depth + p] = alpha == 1 ? value : alpha*value;
+                }
+            }
+
+            return a;
+        }
+
+        /**
+         * op(B) = B^T rows p0 to p0+depth and columns j0 to j0+width, as depth x width.
+         */
+        private double[] packB(double[] source, int offset, int ldb, int p0, int depth, int j0, int width){
+            if(b.length < depth*width)
+                b = new double[KC*NC];
+
+            for(int j=0; j<width; j++){
+                int column = offset + (j0+j)*ldb + p0;
+                for(int p=0; p<depth; p++)
+                    b[p*width + j] = source[column + p];
+            }
+
+            return b;
+        }
+    }
+
+    /**
+     * Splits the rows of C in half until a part is at most MC rows or small enough, every part writes its own rows.
+     */
+    @SuppressWarnings("serial") //never serialized, RecursiveAction is only Serializable by inheritance
+    private class RowsTask extends RecursiveAction {
+        private final boolean _transA, _transB;
+        private final int _from, _to, _n, _k;
+        private final double _alpha, _beta;
+        private final double[] _a, _b, _c;
+        private final int _aOffset, _lda, _bOffset, _ldb, _cOffset, _ldc;
+
+        private RowsTask(boolean transA, boolean transB, int from, int to, int n, int k,
+                         double alpha, double[] a, int aOffset, int lda, double[] b, int bOffset, int ldb,
+                         double beta, double[] c, int cOffset, int ldc) {
+            _transA = transA;
+            _transB = transB;
+            _from = from;
+            _to = to;
+            _n = n;
+            _k = k;
+            _alpha = alpha;
+            _a = a;
+            _aOffset = aOffset;
+            _lda = lda;
+            _b = b;
+            _bOffset = bOffset;
+            _ldb = ldb;
+            _beta = beta;
+            _c = c;
+            _cOffset = cOffset;
+            _ldc = ldc;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = _to-_from;
+            if(rows <= MC || (long)rows*_n*_k < PARALLEL_THRESHOLD/4){
+                multiplyRows(_transA, _transB, _from, _to, _n, _k, _alpha, _a, _aOffset, _lda, _b, _bOffset, _ldb,
+                        _beta, _c, _cOffset, _ldc);
+                return;
+            }
+
+            //split on a multiple of MC so the blocks are the same as without threads
+            int middle = _from + (rows/2 + MC-1)/MC*MC;
+            invokeAll(new RowsTask(_transA, _transB, _from, middle, _n, _k, _alpha, _a, _aOffset, _lda, _b, _bOffset, _ldb, _beta, _c, _cOffset, _ldc),
+                    new RowsTask(_transA, _transB, middle, _to, _n, _k, _alpha, _a, _aOffset, _lda, _b, _bOffset, _ldb, _beta, _c, _cOffset, _ldc));
+        }
+    }
+}
@@ -1,29 +1,57 @@
 package com.behrainwala.data;
 
-public record Image(double[][] data, int label) {
-    public Image(double[][] data, int label) {
-        this.label = label;
+import java.nio.ByteBuffer;
 
-        if (data == null) {
-            this.data = null;
-            return;
-        }
+/**
+ * <b>NOTE:</b><br/>
+ * An image is kept as its raw pixel bytes (0-255), one byte per pixel stored row by row.<br/>
+ * The bytes are never copied: the buffer is either wrapped around an array (which can be shared by the whole
+ * dataset) or is a slice of a memory mapped {@link BinaryDataFile}. The buffer is read only so the data cannot
+ * be changed through the image.<br/>
+ * Pixels are read with absolute indexes only, so the same image can safely be read by several threads.<br/>
+ */
+public record Image(ByteBuffer pixels, int rows, int cols, int label) {
+    public Image {
+        if (pixels.remaining() < rows * cols)
+            throw new IllegalArgumentException("Expected " + rows * cols + " pixels but got " + pixels.remaining());
 
-        int length = data.length;
-        this.data = new double[length][data[0].length];
-        for (int i = 0; i < length; i++) {
-            System.arraycopy(data[i], 0, this.data[i], 0, data[i].length);
-        }
+        pixels = pixels.slice(pixels.position(), rows * cols).asReadOnlyBuffer();
+    }
+
+    public Image(byte[] pixels, int rows, int cols, int label) {
+        this(ByteBuffer.wrap(pixels), rows, cols, label);
     }
 
+    public Image(byte[] pixels, int offset, int rows, int cols, int label) {
+        this(ByteBuffer.wrap(pixels, offset, rows * cols), rows, cols, label);
+    }
+
+    /**
+     * A read only view over the pixels, with its own position and limit.
+     */
     @Override
-    public double[][] data() {
-        int length = this.data.length;
-        double[][] target = new double[length][this.data[0].length];
-        for (int i = 0; i < length; i++) {
-            System.arraycopy(this.data[i], 0, target[i], 0, this.data[i].length);
-        }
-        return target;
+    public ByteBuffer pixels() {
+        return pixels.duplicate();
+    }
+
+    public int pixel(int row, int col) {
+        return pixels.get(row * cols + col) & 0xff;
+    }
+
+    /**
+     * Writes the pixels multiplied by scale into the first channel of target, which must be rows x cols.
+     * This is how the network normalizes its input without creating any new arrays.
+     */
+    public void copyInto(Tensor target, double scale) {
+        if (target.rows() != rows || target.cols() != cols)
+            throw new IllegalArgumentException("Expected a " + rows + "x" + cols + " tensor but got " + target);
+
+        double[] data = target.data();
+        int offset = target.offset();
+        int size = rows * cols;
+
+        for (int i = 0; i < size; i++)
+            data[offset + i] = (pixels.get(i) & 0xff) * scale;
     }
 
     public String toString() {
@@ -32,13 +60,14 @@ public record Image(double[][] data, int label) {
         sb.append(label);
         sb.append("\n");
 
-        for (double[] datum : data) {
-            for (int j = 0; j < data[0].length; j++) {
-                if(datum[j]>=192)
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                int value = pixel(r, c);
+                if(value>=192)
                     sb.append("▓▓");
-                else if(datum[j]>=128)
+                else if(value>=128)
                     sb.append("▒▒");
-                else if(datum[j]>=64)
+                else if(value>=64)
                     sb.append("░░");
                 else
                     sb.append("  ");
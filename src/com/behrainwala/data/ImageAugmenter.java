@@ -0,0 +1,178 @@
+package com.behrainwala.data;
+
+import java.util.Random;
+
+/**
+ * <b>NOTE:</b><br/>
+ * Creates a new variant of a sample every time it is applied, so the network sees different versions of the same
+ * digit every epoch without keeping any extra copies of the dataset.<br/>
+ *<br/>
+ * All the geometric changes are combined into one mapping from every output pixel back to a position in the original
+ * image, which is then read with bilinear interpolation (pixels outside the image are 0):<br/>
+ * 1. shift -> move the image up to maxShift pixels in both directions.<br/>
+ * 2. rotation -> rotate around the centre by up to maxRotationDegrees either way.<br/>
+ * 3. elastic distortion -> move every pixel by a random displacement field that is smoothed with a gaussian of
+ *    elasticSigma and scaled by elasticAlpha (Simard et al., "Best practices for convolutional neural networks").<br/>
+ * 4. noise -> add gaussian noise with a standard deviation of noise times the brightest pixel of the sample.<br/>
+ * Setting a value to 0 turns that step off.<br/>
+ *<br/>
+ * Every thread gets its own scratch arrays the first time it runs, after that nothing is allocated.
+ * All randomness comes from the random that is passed in, so the output only depends on its seed.<br/>
+ */
+public class ImageAugmenter implements Augmentation {
+    private final double _maxShift;
+    private final double _maxRotation;
+    private final double _elasticAlpha;
+    private final double[] _kernel;
+    private final double _noise;
+
+    private final ThreadLocal<Scratch> _scratch = ThreadLocal.withInitial(Scratch::new);
+
+    public ImageAugmenter(double maxShift, double maxRotationDegrees, double elasticAlpha, double elasticSigma, double noise) {
+        _maxShift = maxShift;
+        _maxRotation = Math.toRadians(maxRotationDegrees);
+        _elasticAlpha = elasticAlpha;
+        _kernel = elasticAlpha > 0 ? gaussianKernel(elasticSigma) : null;
+        _noise = noise;
+    }
+
+    @Override
+    public void apply(Tensor pixels, Random random) {
+        int rows = pixels.rows();
+        int cols = pixels.cols();
+        double[] data = pixels.data();
+        int offset = pixels.offset();
+
+        Scratch scratch = _scratch.get();
+        scratch.ensure(rows, cols);
+        double[] source = scratch.source;
+
+        double max = 0;
+        for(int i=0; i<rows*cols; i++){
+            source[i] = data[offset+i];
+            max = Math.max(max, source[i]);
+        }
+
+        double shiftRow = (random.nextDouble()*2-1)*_maxShift;
+        double shiftCol = (random.nextDouble()*2-1)*_maxShift;
+        double angle = (random.nextDouble()*2-1)*_maxRotation;
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+
+        boolean elastic = _kernel != null;
+        if(elastic){
+            displacementField(scratch.dRow, scratch.temp, rows, cols, random);
+            displacementField(scratch.dCol, scratch.temp, rows, cols, random);
+        }
+
+        double centreRow = (rows-1)/2.0;
+        double centreCol = (cols-1)/2.0;
+
+        int i=0;
+        for(int r=0; r<rows; r++){
+            for(int c=0; c<cols; c++){
+                //where this output pixel comes from in the original image
+                double y = r - shiftRow - centreRow;
+                double x = c - shiftCol - centreCol;
+                double sourceRow = cos*y - sin*x + centreRow;
+                double sourceCol = sin*y + cos*x + centreCol;
+
+                if(elastic){
+                    sourceRow += scratch.dRow[i];
+                    sourceCol += scratch.dCol[i];
+                }
+
+                double value = bilinear(source, rows, cols, sourceRow, sourceCol);
+
+                if(_noise > 0)
+                    value = Math.max(0, value + random.nextGaussian()*_noise*max);
+
+                data[offset+i] = value;
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Random values between -1 and 1, smoothed with the gaussian kernel (one pass per direction) and scaled by alpha.
+     */
+    private void displacementField(double[] field, double[] temp, int rows, int cols, Random random){
+        int size = rows*cols;
+        for(int i=0; i<size; i++)
+            field[i] = random.nextDouble()*2-1;
+
+        int radius = _kernel.length/2;
+
+        for(int r=0; r<rows; r++)
+            for(int c=0; c<cols; c++){
+                double sum = 0;
+                for(int k=-radius; k<=radius; k++){
+                    int col = c+k;
+                    if(col >= 0 && col < cols)
+                        sum += _kernel[k+radius]*field[r*cols+col];
+                }
+                temp[r*cols+c] = sum;
+            }
+
+        for(int r=0; r<rows; r++)
+            for(int c=0; c<cols; c++){
+                double sum = 0;
+                for(int k=-radius; k<=radius; k++){
+                    int row = r+k;
+                    if(row >= 0 && row < rows)
+                        sum += _kernel[k+radius]*temp[row*cols+c];
+                }
+                field[r*cols+c] = sum*_elasticAlpha;
+            }
+    }
+
+    private static double bilinear(double[] source, int rows, int cols, double row, double col){
+        int r0 = (int)Math.floor(row);
+        int c0 = (int)Math.floor(col);
+        double fr = row-r0;
+        double fc = col-c0;
+
+        return (1-fr)*((1-fc)*pixel(source, rows, cols, r0, c0) + fc*pixel(source, rows, cols, r0, c0+1))
+                + fr*((1-fc)*pixel(source, rows, cols, r0+1, c0) + fc*pixel(source, rows, cols, r0+1, c0+1));
+    }
+
+    private static double pixel(double[] source, int rows, int cols, int row, int col){
+        if(row < 0 || col < 0 || row >= rows || col >= cols)
+            return 0;
+
+        return source[row*cols+col];
+    }
+
+    private static double[] gaussianKernel(double sigma){
+        int radius = Math.max(1, (int)Math.ceil(3*sigma));
+        double[] kernel = new double[2*radius+1];
+
+        double sum = 0;
+        for(int k=-radius; k<=radius; k++){
+            kernel[k+radius] = Math.exp(-(k*k)/(2*sigma*sigma));
+            sum += kernel[k+radius];
+        }
+
+        for(int k=0; k<kernel.length; k++)
+            kernel[k] /= sum;
+
+        return kernel;
+    }
+
+    private static class Scratch {
+        private double[] source = new double[0];
+        private double[] dRow = new double[0];
+        private double[] dCol = new double[0];
+        private double[] temp = new double[0];
+
+        private void ensure(int rows, int cols){
+            int size = rows*cols;
+            if(source.length != size){
+                source = new double[size];
+                dRow = new double[size];
+                dCol = new double[size];
+                temp = new double[size];
+            }
+        }
+    }
+}
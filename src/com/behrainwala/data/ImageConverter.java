@@ -3,10 +3,26 @@ package com.behrainwala.data;
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
 
 public class ImageConverter {
+    private static final List<String> EXTENSIONS = List.of(".png", ".jpg", ".jpeg", ".bmp", ".gif");
+    private static final int IO_THREADS_PER_CORE = 4;
+
     private final int size;
 
     public ImageConverter(int size){
@@ -14,36 +30,117 @@ public class ImageConverter {
     }
 
     public Image getImage(String file, int label) throws IOException {
-        File input = new File(file);
+        BufferedImage originalImage = ImageIO.read(new File(file));
+
+        if(originalImage == null)
+            throw new IOException("Unsupported image format: "+file);
+
+        return convert(originalImage, label);
+    }
+
+    /**
+     * <b>NOTE:</b><br/>
+     * Converts every image under the directory, the label of an image is the name of the folder it is in
+     * (e.g. directory/7/scan001.png has label 7).<br/>
+     *<br/>
+     * Reading and decoding the files waits on the disk, so it runs on a pool with several threads per core.
+     * Resizing and converting to grayscale only needs the CPU, so that runs on a pool with one thread per core.
+     * The number of decoded images waiting to be resized is bounded, so a fast disk cannot fill up the heap.<br/>
+     * The images are returned in the order of their paths, however the work was scheduled.<br/>
+     */
+    public List<Image> getImages(String directory) throws IOException {
+        List<Path> files;
+        try(Stream<Path> paths = Files.walk(Path.of(directory))){
+            files = paths.filter(Files::isRegularFile).filter(ImageConverter::isImage).sorted().toList();
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        ExecutorService ioPool = Executors.newFixedThreadPool(cores*IO_THREADS_PER_CORE);
+        ExecutorService cpuPool = Executors.newFixedThreadPool(cores);
+        Semaphore inFlight = new Semaphore(cores*IO_THREADS_PER_CORE*2);
 
-        BufferedImage originalImage = ImageIO.read(input);
+        try {
+            List<CompletableFuture<Image>> futures = new ArrayList<>(files.size());
 
+            for(Path file:files){
+                int label = labelOf(file);
+                inFlight.acquire();
+
+                futures.add(CompletableFuture
+                        .supplyAsync(() -> read(file), ioPool)
+                        .thenApplyAsync(original -> convert(original, label), cpuPool)
+                        .whenComplete((image, failure) -> inFlight.release()));
+            }
+
+            List<Image> images = new ArrayList<>(futures.size());
+            for(CompletableFuture<Image> future:futures)
+                images.add(future.join());
+
+            return images;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while converting "+directory, e);
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException io)
+                throw io.getCause();
+            throw e;
+        } finally {
+            ioPool.shutdownNow();
+            cpuPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Resizes the image and converts it to grayscale by averaging the red, green and blue values.<br/>
+     * The pixels are read straight from the int array behind the raster, instead of calling getRGB for every pixel.
+     */
+    private Image convert(BufferedImage originalImage, int label) {
         BufferedImage resizedImage = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
         Graphics2D graphics2D = resizedImage.createGraphics();
         graphics2D.drawImage(originalImage, 0, 0, size, size, null);
         graphics2D.dispose();
 
-        // Convert to grayscale and place it in the data buffer
-        double[][] data = new double[size][size];
-        for (int y = 0; y < resizedImage.getHeight(); y++) {
-            for (int x = 0; x < resizedImage.getWidth(); x++) {
-                int p = resizedImage.getRGB(x, y);
+        int[] rgb = ((DataBufferInt) resizedImage.getRaster().getDataBuffer()).getData();
+
+        byte[] data = new byte[size*size];
+        for (int i = 0; i < data.length; i++) {
+            int p = rgb[i];
+
+            int r = (p >> 16) & 0xff;
+            int g = (p >> 8) & 0xff;
+            int b = p & 0xff;
 
-                int a = (p >> 24) & 0xff;
-                int r = (p >> 16) & 0xff;
-                int g = (p >> 8) & 0xff;
-                int b = p & 0xff;
+            // Calculate average
+            data[i] = (byte)((r + g + b) / 3);
+        }
+        return new Image(data, size, size, label);
+    }
 
-                // Calculate average
-                int avg = (r + g + b) / 3;
+    private static BufferedImage read(Path file) {
+        try {
+            BufferedImage image = ImageIO.read(file.toFile());
 
-                // Replace RGB value with avg
-                p = (a << 24) | (avg << 16) | (avg << 8) | avg;
+            if(image == null)
+                throw new IOException("Unsupported image format: "+file);
 
-                resizedImage.setRGB(x, y, p); // generate the greyscale image.
-                data[x][y] = avg;
-            }
+            return image;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean isImage(Path file){
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        return EXTENSIONS.stream().anyMatch(name::endsWith);
+    }
+
+    private static int labelOf(Path file) throws IOException {
+        Path folder = file.getParent();
+
+        try {
+            return Integer.parseInt(folder.getFileName().toString());
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new IOException("The folder of "+file+" is not a label", e);
         }
-        return new Image(data, label);
     }
 }
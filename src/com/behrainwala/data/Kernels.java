@@ -0,0 +1,92 @@
+package com.behrainwala.data;
+
+/**
+ * <b>NOTE:</b><br/>
+ * The inner loops of the layers, on flat arrays with offsets so they can work on any part of a {@link Tensor}.<br/>
+ *<br/>
+ * {@link #SCALAR} is plain java. {@link #best()} returns a version built on the jdk.incubator.vector module when it
+ * is available (run with --add-modules jdk.incubator.vector), otherwise it falls back to the scalar one.<br/>
+ *<br/>
+ * axpy, multiplyAdd, updateAndAxpy and the update in updateAndDot do exactly the same multiplications and additions in
+ * every version, so they give the same results. dot adds the products up in a different order when vectorized (one
+ * partial sum per lane), so its result can differ in the last bits.<br/>
+ */
+public abstract class Kernels {
+    public static final Kernels SCALAR = new ScalarKernels();
+
+    private static final Kernels VECTOR = loadVector();
+
+    private final Gemm _gemm = new Gemm(this);
+
+    /**
+     * The vectorized kernels are only loaded when the module is there, so the class is never linked without it.
+     */
+    private static Kernels loadVector(){
+        if(ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+            return null;
+
+        try {
+            return (Kernels)Class.forName("com.behrainwala.data.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public static boolean isVectorAvailable(){
+        return VECTOR != null;
+    }
+
+    /**
+     * The vectorized kernels if they are available, otherwise the scalar ones.
+     */
+    public static Kernels best(){
+        return VECTOR != null ? VECTOR : SCALAR;
+    }
+
+    /**
+     * sum + a[aOffset..aOffset+length)·b[bOffset..bOffset+length)
+     */
+    public abstract double dot(double sum, double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    /**
+     * y = alpha*x + y, over length values starting at the given offsets.
+     */
+    public abstract void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+    /**
+     * Returns the sum of g[j]*w[j] using the old weights, and then updates them as w[j] -= g[j]*x*rate.<br/>
+     * This is one row of the weights of a fully connected layer in its backward pass, when the weights of an input are
+     * in a row: g is dL/dZ, x the input of the row.
+     */
+    public abstract double updateAndDot(double[] g, int gOffset, double x, double rate, double[] w, int wOffset, int length);
+
+    /**
+     * dx[k] += g*w[k] using the old weights, and then w[k] -= g*x[k]*rate, for k < length.<br/>
+     * This is (part of) one row of the weights of a fully connected layer in its backward pass, when the weights of an
+     * output are in a row: w are the weights of the output, g its dL/dZ, x the inputs and dx their dL/dX. Over all the
+     * rows it is the rank-1 update of the weights.
+     */
+    public abstract void updateAndAxpy(double g, double rate, double[] x, int xOffset, double[] w, int wOffset,
+                                       double[] dx, int dxOffset, int length);
+
+    /**
+     * The register blocked inner loop of {@link Gemm}: for r < rows (at most 4) and j < length<br/>
+     * c[cOffset + r*ldc + j] += a[aOffset + r*depth + p] * b[bOffset + p*ldb + j], for p = 0 to depth-1 in that order.<br/>
+     * a is a packed block of rows x depth values. The values of c are kept in registers over the whole depth.
+     */
+    public abstract void multiplyAdd(int rows, int depth, int length, double[] a, int aOffset,
+                                     double[] b, int bOffset, int ldb, double[] c, int cOffset, int ldc);
+
+    /**
+     * The matrix multiplications on these kernels.
+     */
+    public Gemm gemm(){
+        return _gemm;
+    }
+
+    public abstract String getName();
+
+    public String toString(){
+        return getName();
+    }
+}
@@ -0,0 +1,26 @@
+package com.behrainwala.data;
+
+import java.util.List;
+
+/**
+ * A dataset over images that are already in memory, e.g. from {@link DataReader} or {@link BinaryDataFile#readData}.
+ */
+class ListDataset extends Dataset {
+    private final List<Image> _images;
+
+    ListDataset(List<Image> images, int chunkSize) {
+        super(chunkSize);
+        _images = images;
+    }
+
+    @Override
+    public int size() {
+        return _images.size();
+    }
+
+    @Override
+    protected void read(int[] indices, int count, Image[] target) {
+        for(int i=0; i<count; i++)
+            target[i] = _images.get(indices[i]);
+    }
+}
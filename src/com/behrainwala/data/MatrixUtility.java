@@ -1,5 +1,11 @@
 package com.behrainwala.data;
 
+/**
+ * <b>NOTE:</b><br/>
+ * add, multiply and the flips return a new array every time, which is fine outside of training.<br/>
+ * axpy adds into an array the caller passes in instead, so the layers can keep their buffers between samples and a
+ * training step does not create any garbage.<br/>
+ */
 public class MatrixUtility {
 
     private MatrixUtility(){}
@@ -47,6 +53,25 @@ public class MatrixUtility {
         return out;
     }
 
+    /**
+     * y = alpha*x + y, over length values starting at the given offsets.
+     */
+    public static void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length){
+        for(int i=0; i<length; i++){
+            y[yOffset+i] += alpha*x[xOffset+i];
+        }
+    }
+
+    /**
+     * y = alpha*x + y
+     */
+    public static void axpy(double alpha, Tensor x, Tensor y){
+        if(x.size() != y.size())
+            throw new IllegalArgumentException("Cannot add "+x+" to "+y);
+
+        axpy(alpha, x.data(), x.offset(), y.data(), y.offset(), x.size());
+    }
+
     public static double[][] flipMatrixHorizontal(double[][] input){
         int rows = input.length;
         int cols = input[0].length;
@@ -0,0 +1,69 @@
+package com.behrainwala.data;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <b>NOTE:</b><br/>
+ * Splits a loop over independent items (the filters or channels of a layer) over the common ForkJoin pool.<br/>
+ *<br/>
+ * The range is halved until a part is worth about TASK_WORK operations, small loops are run straight on the calling
+ * thread without creating any task. Every item must only write its own part of the results, then the results do not
+ * depend on how the range was split or on the number of threads.<br/>
+ */
+public final class Parallel {
+    //operations (about one multiply-add each) a task should at least have, so the forking pays for itself
+    public static final long TASK_WORK = 1L << 15;
+
+    private Parallel() {
+    }
+
+    /**
+     * Runs the items from to to (exclusive) of a loop, in order.
+     */
+    public interface Body {
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs body over the items 0 to count, in parallel when there is more than one thread and the count times the
+     * work of an item is worth at least two tasks.
+     */
+    public static void forRange(int count, long workPerItem, Body body){
+        long work = count*Math.max(1, workPerItem);
+
+        if(count < 2 || work < 2*TASK_WORK || ForkJoinPool.getCommonPoolParallelism() < 2){
+            body.run(0, count);
+            return;
+        }
+
+        int grain = (int)Math.max(1, TASK_WORK/Math.max(1, workPerItem));
+        ForkJoinPool.commonPool().invoke(new RangeTask(body, 0, count, grain));
+    }
+
+    @SuppressWarnings("serial") //never serialized, RecursiveAction is only Serializable by inheritance
+    private static final class RangeTask extends RecursiveAction {
+        private final Body _body;
+        private final int _from;
+        private final int _to;
+        private final int _grain;
+
+        private RangeTask(Body body, int from, int to, int grain) {
+            _body = body;
+            _from = from;
+            _to = to;
+            _grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if(_to-_from <= _grain){
+                _body.run(_from, _to);
+                return;
+            }
+
+            int middle = (_from+_to) >>> 1;
+            invokeAll(new RangeTask(_body, _from, middle, _grain), new RangeTask(_body, middle, _to, _grain));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.behrainwala.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a {@link Prefetcher}, to check that the training loop never has to wait for data.<br/>
+ * <br/>
+ * consumerStalls -> how many times the trainer asked for a sample and none was ready yet.<br/>
+ * consumerWaitNanos -> how long the trainer spent waiting in total.<br/>
+ * producerStalls -> how many times a producer had a sample ready but the queue was full (the trainer is the bottleneck, which is what we want).<br/>
+ */
+public final class PrefetchStats {
+    private final AtomicLong _produced = new AtomicLong();
+    private final AtomicLong _consumed = new AtomicLong();
+    private final AtomicLong _consumerStalls = new AtomicLong();
+    private final AtomicLong _consumerWaitNanos = new AtomicLong();
+    private final AtomicLong _producerStalls = new AtomicLong();
+
+    void produced(){
+        _produced.incrementAndGet();
+    }
+
+    void consumed(){
+        _consumed.incrementAndGet();
+    }
+
+    void consumerStalled(long waitNanos){
+        _consumerStalls.incrementAndGet();
+        _consumerWaitNanos.addAndGet(waitNanos);
+    }
+
+    void producerStalled(){
+        _producerStalls.incrementAndGet();
+    }
+
+    public long getProduced() {
+        return _produced.get();
+    }
+
+    public long getConsumed() {
+        return _consumed.get();
+    }
+
+    public long getConsumerStalls() {
+        return _consumerStalls.get();
+    }
+
+    public long getConsumerWaitNanos() {
+        return _consumerWaitNanos.get();
+    }
+
+    public long getProducerStalls() {
+        return _producerStalls.get();
+    }
+
+    public String toString() {
+        return "produced="+getProduced()
+                +" consumed="+getConsumed()
+                +" consumerStalls="+getConsumerStalls()
+                +" consumerWaitMs="+getConsumerWaitNanos()/1_000_000
+                +" producerStalls="+getProducerStalls();
+    }
+}
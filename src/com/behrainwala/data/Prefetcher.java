@@ -0,0 +1,259 @@
+package com.behrainwala.data;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <b>NOTE:</b><br/>
+ * Prepares the samples for the training loop ahead of time on background threads.<br/>
+ *<br/>
+ * Every producer thread owns whole chunks of the dataset: producer k reads chunks k, k+N, k+2N... (N producers),
+ * normalizes (and optionally augments) each image into a reusable {@link Sample} and puts it on its own bounded queue.
+ * The consumer takes the samples from the queue of the producer that owns the chunk of the next position, so the
+ * samples come out in exactly the same order as iterating the dataset, however many producers there are.<br/>
+ *<br/>
+ * Each producer only ever has queueDepth+2 samples: queueDepth waiting on the queue, one it is filling and one the
+ * consumer is using. A sample goes back to its producer when the consumer takes the next one.<br/>
+ *<br/>
+ * The random used for augmentation is seeded from (seed, epoch, position), so the augmented samples are the same for
+ * every run with the same seed, independent of the number of producers or how the threads were scheduled.<br/>
+ *<br/>
+ * Closing an epoch never interrupts the producers: an interrupt in the middle of a read closes the FileChannel of a
+ * {@link FileDataset} for good. The producers are told to stop, the queues they may be waiting on are emptied or
+ * given a sample, and close waits for them to finish the read they are in, so no producer outlives its epoch.<br/>
+ */
+public class Prefetcher {
+    private final int _queueDepth;
+    private final int _producers;
+    private final double _scale;
+    private final PrefetchStats _stats = new PrefetchStats();
+
+    private Augmentation _augmentation;
+    private long _seed;
+    private int _epoch;
+
+    public Prefetcher(int queueDepth, int producers, double scale) {
+        if(queueDepth < 1 || producers < 1)
+            throw new IllegalArgumentException("Queue depth and number of producers must be at least 1");
+
+        _queueDepth = queueDepth;
+        _producers = producers;
+        _scale = scale;
+    }
+
+    public void setAugmentation(Augmentation augmentation, long seed) {
+        _augmentation = augmentation;
+        _seed = seed;
+    }
+
+    public int getQueueDepth() {
+        return _queueDepth;
+    }
+
+    public int getProducers() {
+        return _producers;
+    }
+
+    public PrefetchStats getStats() {
+        return _stats;
+    }
+
+    /**
+     * Starts the producers for one pass over the dataset. Every augmented pass counts as a new epoch.
+     */
+    public Epoch start(Dataset dataset, boolean augment) {
+        Augmentation augmentation = augment ? _augmentation : null;
+        return new Epoch(dataset, augmentation, augmentation == null ? 0 : _epoch++);
+    }
+
+    public class Epoch implements Iterator<Sample>, AutoCloseable {
+        private final int _size;
+        private final int _chunkSize;
+        private final Producer[] _producerList;
+        private int _position;
+        private Sample _current;
+        private Producer _currentOwner;
+
+        private Epoch(Dataset dataset, Augmentation augmentation, int epoch) {
+            _size = dataset.size();
+            _chunkSize = dataset.getChunkSize();
+            _producerList = new Producer[_producers];
+
+            for(int k=0; k<_producers; k++){
+                _producerList[k] = new Producer(dataset, augmentation, epoch, k);
+                _producerList[k].start();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return _position < _size;
+        }
+
+        @Override
+        public Sample next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+
+            recycleCurrent();
+
+            Producer owner = _producerList[(_position/_chunkSize) % _producers];
+            Sample sample = owner._ready.poll();
+
+            if(sample == null){
+                long start = System.nanoTime();
+                try {
+                    sample = owner._ready.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for a sample", e);
+                }
+                _stats.consumerStalled(System.nanoTime()-start);
+            }
+
+            if(sample.getFailure() != null)
+                throw sample.getFailure();
+
+            _stats.consumed();
+            _position++;
+            _current = sample;
+            _currentOwner = owner;
+            return sample;
+        }
+
+        private void recycleCurrent(){
+            if(_current != null){
+                _currentOwner._free.offer(_current);
+                _current = null;
+            }
+        }
+
+        /**
+         * Stops the producers, also when the pass was not finished, and waits for them to end.
+         */
+        @Override
+        public void close() {
+            recycleCurrent();
+            for(Producer producer:_producerList)
+                producer.stopProducing();
+
+            boolean interrupted = false;
+            for(Producer producer:_producerList){
+                while(producer.isAlive()){
+                    try {
+                        producer.join();
+                    } catch (InterruptedException e) {
+                        //the producers are already stopping, keep waiting and pass the interrupt on afterwards
+                        interrupted = true;
+                    }
+                }
+            }
+
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Producer extends Thread {
+        private final Dataset _dataset;
+        private final Augmentation _augmentation;
+        private final int _epoch;
+        private final int _index;
+        private final BlockingQueue<Sample> _ready = new ArrayBlockingQueue<>(_queueDepth);
+        private final BlockingQueue<Sample> _free = new ArrayBlockingQueue<>(_queueDepth+2);
+        private final Random _random = new Random();
+        private int _created;
+        private volatile boolean _stopped;
+
+        private Producer(Dataset dataset, Augmentation augmentation, int epoch, int index) {
+            super("prefetch-"+index);
+            setDaemon(true);
+            _dataset = dataset;
+            _augmentation = augmentation;
+            _epoch = epoch;
+            _index = index;
+        }
+
+        @Override
+        public void run() {
+            int size = _dataset.size();
+            int chunkSize = _dataset.getChunkSize();
+            int[] indices = new int[chunkSize];
+            Image[] chunk = new Image[chunkSize];
+
+            try {
+                for(int start = _index*chunkSize; start < size && !_stopped; start += _producers*chunkSize){
+                    int count = Math.min(chunkSize, size-start);
+                    Arrays.fill(chunk, null);
+                    _dataset.readPositions(start, count, indices, chunk);
+
+                    for(int i=0; i<count && !_stopped; i++){
+                        Sample sample = prepare(chunk[i], start+i);
+                        if(sample != null)
+                            publish(sample);
+                    }
+                }
+            } catch (InterruptedException e) {
+                //nothing interrupts the producers, but if something does the epoch cannot go on
+            } catch (RuntimeException e) {
+                Sample failure = new Sample(0, 0);
+                failure.setFailure(e);
+                try {
+                    _ready.put(failure);
+                } catch (InterruptedException ignored) {
+                    //see above
+                }
+            }
+        }
+
+        /**
+         * Makes the producer stop after the sample it is working on. Emptying the ready queue wakes it up when it is
+         * waiting to put a sample and a sample on the free queue when it is waiting for one to fill.
+         */
+        private void stopProducing(){
+            _stopped = true;
+            _ready.clear();
+            _free.offer(new Sample(0, 0));
+        }
+
+        /**
+         * The sample with the image in it, or null when the epoch was closed while waiting for a free sample.
+         */
+        private Sample prepare(Image image, int position) throws InterruptedException {
+            Sample sample = _free.poll();
+            if(sample == null){
+                if(_created < _queueDepth+2){
+                    sample = new Sample(image.rows(), image.cols());
+                    _created++;
+                }
+                else
+                    sample = _free.take();
+            }
+
+            if(_stopped)
+                return null;
+
+            image.copyInto(sample.getInput(), _scale);
+            sample.setLabel(image.label());
+
+            if(_augmentation != null){
+                _random.setSeed(_seed + _epoch*0x9E3779B97F4A7C15L + position*0xBF58476D1CE4E5B9L);
+                _augmentation.apply(sample.getInput(), _random);
+            }
+
+            return sample;
+        }
+
+        private void publish(Sample sample) throws InterruptedException {
+            if(!_ready.offer(sample)){
+                _stats.producerStalled();
+                _ready.put(sample);
+            }
+            _stats.produced();
+        }
+    }
+}
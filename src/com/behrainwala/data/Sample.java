@@ -0,0 +1,35 @@
+package com.behrainwala.data;
+
+/**
+ * A prepared input for the network: the normalized (and possibly augmented) pixels of one image and its label.<br/>
+ * Samples handed out by a {@link Prefetcher} are reused, a sample is only valid until the next one is taken.
+ */
+public final class Sample {
+    private final Tensor _input;
+    private int _label;
+    private RuntimeException _failure;
+
+    Sample(int rows, int cols) {
+        _input = new Tensor(1, rows, cols);
+    }
+
+    public Tensor getInput() {
+        return _input;
+    }
+
+    public int getLabel() {
+        return _label;
+    }
+
+    void setLabel(int label) {
+        _label = label;
+    }
+
+    RuntimeException getFailure() {
+        return _failure;
+    }
+
+    void setFailure(RuntimeException failure) {
+        _failure = failure;
+    }
+}
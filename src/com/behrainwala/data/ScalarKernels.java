@@ -0,0 +1,109 @@
+package com.behrainwala.data;
+
+class ScalarKernels extends Kernels {
+
+    @Override
+    public double dot(double sum, double[] a, int aOffset, double[] b, int bOffset, int length) {
+        for(int i=0; i<length; i++)
+            sum += a[aOffset+i]*b[bOffset+i];
+
+        return sum;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        MatrixUtility.axpy(alpha, x, xOffset, y, yOffset, length);
+    }
+
+    @Override
+    public double updateAndDot(double[] g, int gOffset, double x, double rate, double[] w, int wOffset, int length) {
+        double sum = 0;
+
+        for(int j=0; j<length; j++){
+            double weight = w[wOffset+j];
+            w[wOffset+j] -= g[gOffset+j]*x*rate;
+            sum += g[gOffset+j]*weight;
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void updateAndAxpy(double g, double rate, double[] x, int xOffset, double[] w, int wOffset,
+                              double[] dx, int dxOffset, int length) {
+        for(int k=0; k<length; k++){
+            dx[dxOffset+k] += g*w[wOffset+k];
+            w[wOffset+k] -= g*x[xOffset+k]*rate;
+        }
+    }
+
+    /**
+     * 4 rows x 4 columns of c at a time in 16 local variables, the rest of the columns and rows one by one.
+     */
+    @Override
+    public void multiplyAdd(int rows, int depth, int length, double[] a, int aOffset,
+                            double[] b, int bOffset, int ldb, double[] c, int cOffset, int ldc) {
+        int j = 0;
+
+        if(rows == 4){
+            int a0 = aOffset, a1 = a0+depth, a2 = a1+depth, a3 = a2+depth;
+            int c0 = cOffset, c1 = c0+ldc, c2 = c1+ldc, c3 = c2+ldc;
+
+            for(; j+4<=length; j+=4){
+                double c00 = c[c0+j], c01 = c[c0+j+1], c02 = c[c0+j+2], c03 = c[c0+j+3];
+                double c10 = c[c1+j], c11 = c[c1+j+1], c12 = c[c1+j+2], c13 = c[c1+j+3];
+                double c20 = c[c2+j], c21 = c[c2+j+1], c22 = c[c2+j+2], c23 = c[c2+j+3];
+                double c30 = c[c3+j], c31 = c[c3+j+1], c32 = c[c3+j+2], c33 = c[c3+j+3];
+
+                for(int p=0; p<depth; p++){
+                    int row = bOffset + p*ldb + j;
+                    double b0 = b[row], b1 = b[row+1], b2 = b[row+2], b3 = b[row+3];
+
+                    double v = a[a0+p];
+                    c00 += v*b0; c01 += v*b1; c02 += v*b2; c03 += v*b3;
+                    v = a[a1+p];
+                    c10 += v*b0; c11 += v*b1; c12 += v*b2; c13 += v*b3;
+                    v = a[a2+p];
+                    c20 += v*b0; c21 += v*b1; c22 += v*b2; c23 += v*b3;
+                    v = a[a3+p];
+                    c30 += v*b0; c31 += v*b1; c32 += v*b2; c33 += v*b3;
+                }
+
+                c[c0+j] = c00; c[c0+j+1] = c01; c[c0+j+2] = c02; c[c0+j+3] = c03;
+                c[c1+j] = c10; c[c1+j+1] = c11; c[c1+j+2] = c12; c[c1+j+3] = c13;
+                c[c2+j] = c20; c[c2+j+1] = c21; c[c2+j+2] = c22; c[c2+j+3] = c23;
+                c[c3+j] = c30; c[c3+j+1] = c31; c[c3+j+2] = c32; c[c3+j+3] = c33;
+            }
+
+            //the last columns one at a time, still with a sum per row so the additions do not wait on each other
+            for(; j<length; j++){
+                double s0 = c[c0+j], s1 = c[c1+j], s2 = c[c2+j], s3 = c[c3+j];
+
+                for(int p=0; p<depth; p++){
+                    double v = b[bOffset + p*ldb + j];
+                    s0 += a[a0+p]*v;
+                    s1 += a[a1+p]*v;
+                    s2 += a[a2+p]*v;
+                    s3 += a[a3+p]*v;
+                }
+
+                c[c0+j] = s0; c[c1+j] = s1; c[c2+j] = s2; c[c3+j] = s3;
+            }
+        }
+
+        for(int r=0; r<rows; r++){
+            for(int col=j; col<length; col++){
+                double sum = c[cOffset + r*ldc + col];
+                for(int p=0; p<depth; p++)
+                    sum += a[aOffset + r*depth + p]*b[bOffset + p*ldb + col];
+
+                c[cOffset + r*ldc + col] = sum;
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+}
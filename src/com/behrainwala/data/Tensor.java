@@ -0,0 +1,145 @@
+package com.behrainwala.data;
+
+import java.util.Arrays;
+
+/**
+ * <b>NOTE:</b><br/>
+ * A stack of channels (feature maps) of rows x cols values, all kept in one flat double array.<br/>
+ *<br/>
+ * The value at (channel, row, col) is at data[offset + channel*channelStride + row*rowStride + col], where
+ * channelStride = rows*cols and rowStride = cols. So the channels are stored one after the other, each row by row,
+ * which is the same order the old matrixToVector produced.<br/>
+ *<br/>
+ * A tensor can be a view over part of another tensor's array (see {@link #channels} and {@link #reshape}).
+ * Views never copy, so e.g. the output of a pooling layer can be read as a vector by a fully connected layer as is.<br/>
+ *<br/>
+ * The strides always follow from the shape, there are no strided views. Every view the layers take (a channel, a
+ * sample of a batch, a reshape) is one run of the array anyway, and the kernels, Gemm and axpy all read a tensor as
+ * size() values from offset() in data(). A transposed read goes through the transA/transB flags of {@link Gemm} instead
+ * of through a view.<br/>
+ */
+public final class Tensor {
+    private final double[] _data;
+    private int _offset;
+    private int _channels;
+    private final int _rows;
+    private final int _cols;
+
+    public Tensor(int channels, int rows, int cols) {
+        this(new double[channels*rows*cols], 0, channels, rows, cols);
+    }
+
+    public Tensor(double[] data, int offset, int channels, int rows, int cols) {
+        if(channels < 0 || rows < 0 || cols < 0 || offset < 0 || offset + channels*rows*cols > data.length)
+            throw new IllegalArgumentException("Shape "+channels+"x"+rows+"x"+cols+" at "+offset+" does not fit in "+data.length+" values");
+
+        _data = data;
+        _offset = offset;
+        _channels = channels;
+        _rows = rows;
+        _cols = cols;
+    }
+
+    /**
+     * A 1 x 1 x length view over the array.
+     */
+    public static Tensor vector(double[] data) {
+        return new Tensor(data, 0, 1, 1, data.length);
+    }
+
+    public double[] data() {
+        return _data;
+    }
+
+    public int offset() {
+        return _offset;
+    }
+
+    public int channels() {
+        return _channels;
+    }
+
+    public int rows() {
+        return _rows;
+    }
+
+    public int cols() {
+        return _cols;
+    }
+
+    public int size() {
+        return _channels*_rows*_cols;
+    }
+
+    public int channelStride() {
+        return _rows*_cols;
+    }
+
+    public int rowStride() {
+        return _cols;
+    }
+
+    public int index(int channel, int row, int col) {
+        return _offset + channel*channelStride() + row*rowStride() + col;
+    }
+
+    public double get(int channel, int row, int col) {
+        return _data[index(channel, row, col)];
+    }
+
+    public void set(int channel, int row, int col, double value) {
+        _data[index(channel, row, col)] = value;
+    }
+
+    public void add(int channel, int row, int col, double value) {
+        _data[index(channel, row, col)] += value;
+    }
+
+    /**
+     * A view over count channels starting at channel from.
+     */
+    public Tensor channels(int from, int count) {
+        if(from < 0 || from + count > _channels)
+            throw new IllegalArgumentException("Channels "+from+" to "+(from+count)+" out of "+_channels);
+
+        return new Tensor(_data, _offset + from*channelStride(), count, _rows, _cols);
+    }
+
+    public Tensor channel(int channel) {
+        return channels(channel, 1);
+    }
+
+    /**
+     * The same values seen with a different shape, e.g. a vector seen as channels x rows x cols.
+     */
+    public Tensor reshape(int channels, int rows, int cols) {
+        if(channels*rows*cols != size())
+            throw new IllegalArgumentException("Cannot reshape "+_channels+"x"+_rows+"x"+_cols+" to "+channels+"x"+rows+"x"+cols);
+
+        if(channels == _channels && rows == _rows && cols == _cols)
+            return this;
+
+        return new Tensor(_data, _offset, channels, rows, cols);
+    }
+
+    /**
+     * Points this view at count channels of the same array starting at offset, keeping rows and cols, so e.g. the
+     * batches of an epoch can be walked with one view instead of a new one for every batch. Only for views the caller
+     * made itself: whatever else holds this tensor sees it move as well.
+     */
+    public void repoint(int offset, int count) {
+        if(count < 0 || offset < 0 || offset + count*_rows*_cols > _data.length)
+            throw new IllegalArgumentException("Shape "+count+"x"+_rows+"x"+_cols+" at "+offset+" does not fit in "+_data.length+" values");
+
+        _offset = offset;
+        _channels = count;
+    }
+
+    public void fill(double value) {
+        Arrays.fill(_data, _offset, _offset + size(), value);
+    }
+
+    public String toString() {
+        return "Tensor["+_channels+"x"+_rows+"x"+_cols+"]";
+    }
+}
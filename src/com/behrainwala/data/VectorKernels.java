@@ -0,0 +1,189 @@
+package com.behrainwala.data;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * <b>NOTE:</b><br/>
+ * Only loaded through {@link Kernels#best()}, this class cannot be linked without the jdk.incubator.vector module.<br/>
+ * Uses the widest vectors the cpu has (4 doubles for AVX2, 8 for AVX-512), the values that do not fill a whole vector
+ * at the end are done one by one. Multiplications and additions are kept separate (no fma) so axpy and the weight
+ * update round the same way as the scalar version.<br/>
+ */
+class VectorKernels extends Kernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public double dot(double sum, double[] a, int aOffset, double[] b, int bOffset, int length) {
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+
+        if(bound > 0){
+            DoubleVector acc = DoubleVector.zero(SPECIES);
+            for(; i<bound; i+=SPECIES.length()){
+                DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset+i);
+                DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset+i);
+                acc = acc.add(va.mul(vb));
+            }
+            sum += acc.reduceLanes(VectorOperators.ADD);
+        }
+
+        for(; i<length; i++)
+            sum += a[aOffset+i]*b[bOffset+i];
+
+        return sum;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+
+        for(; i<bound; i+=SPECIES.length()){
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOffset+i);
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOffset+i);
+            vy.add(vx.mul(alpha)).intoArray(y, yOffset+i);
+        }
+
+        for(; i<length; i++)
+            y[yOffset+i] += alpha*x[xOffset+i];
+    }
+
+    @Override
+    public double updateAndDot(double[] g, int gOffset, double x, double rate, double[] w, int wOffset, int length) {
+        double sum = 0;
+        int j = 0;
+        int bound = SPECIES.loopBound(length);
+
+        if(bound > 0){
+            DoubleVector acc = DoubleVector.zero(SPECIES);
+            for(; j<bound; j+=SPECIES.length()){
+                DoubleVector vg = DoubleVector.fromArray(SPECIES, g, gOffset+j);
+                DoubleVector vw = DoubleVector.fromArray(SPECIES, w, wOffset+j);
+                vw.sub(vg.mul(x).mul(rate)).intoArray(w, wOffset+j);
+                acc = acc.add(vg.mul(vw));
+            }
+            sum = acc.reduceLanes(VectorOperators.ADD);
+        }
+
+        for(; j<length; j++){
+            double weight = w[wOffset+j];
+            w[wOffset+j] -= g[gOffset+j]*x*rate;
+            sum += g[gOffset+j]*weight;
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void updateAndAxpy(double g, double rate, double[] x, int xOffset, double[] w, int wOffset,
+                              double[] dx, int dxOffset, int length) {
+        int k = 0;
+        int bound = SPECIES.loopBound(length);
+
+        for(; k<bound; k+=SPECIES.length()){
+            DoubleVector vw = DoubleVector.fromArray(SPECIES, w, wOffset+k);
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOffset+k);
+            DoubleVector.fromArray(SPECIES, dx, dxOffset+k).add(vw.mul(g)).intoArray(dx, dxOffset+k);
+            vw.sub(vx.mul(g).mul(rate)).intoArray(w, wOffset+k);
+        }
+
+        for(; k<length; k++){
+            dx[dxOffset+k] += g*w[wOffset+k];
+            w[wOffset+k] -= g*x[xOffset+k]*rate;
+        }
+    }
+
+    /**
+     * 4 rows of c, one vector of columns at a time, in 4 vector registers (fewer rows are done one row at a time).
+     */
+    @Override
+    public void multiplyAdd(int rows, int depth, int length, double[] a, int aOffset,
+                            double[] b, int bOffset, int ldb, double[] c, int cOffset, int ldc) {
+        int j = 0;
+
+        if(rows == 4){
+            int bound = SPECIES.loopBound(length);
+            int a0 = aOffset, a1 = a0+depth, a2 = a1+depth, a3 = a2+depth;
+            int c0 = cOffset, c1 = c0+ldc, c2 = c1+ldc, c3 = c2+ldc;
+
+            for(; j<bound; j+=SPECIES.length()){
+                DoubleVector v0 = DoubleVector.fromArray(SPECIES, c, c0+j);
+                DoubleVector v1 = DoubleVector.fromArray(SPECIES, c, c1+j);
+                DoubleVector v2 = DoubleVector.fromArray(SPECIES, c, c2+j);
+                DoubleVector v3 = DoubleVector.fromArray(SPECIES, c, c3+j);
+
+                for(int p=0; p<depth; p++){
+                    DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset + p*ldb + j);
+                    v0 = v0.add(vb.mul(a[a0+p]));
+                    v1 = v1.add(vb.mul(a[a1+p]));
+                    v2 = v2.add(vb.mul(a[a2+p]));
+                    v3 = v3.add(vb.mul(a[a3+p]));
+                }
+
+                v0.intoArray(c, c0+j);
+                v1.intoArray(c, c1+j);
+                v2.intoArray(c, c2+j);
+                v3.intoArray(c, c3+j);
+            }
+        } else {
+            int bound = SPECIES.loopBound(length);
+
+            for(int r=0; r<rows; r++){
+                int row = aOffset + r*depth;
+                int out = cOffset + r*ldc;
+
+                for(int col=0; col<bound; col+=SPECIES.length()){
+                    DoubleVector v = DoubleVector.fromArray(SPECIES, c, out+col);
+                    for(int p=0; p<depth; p++)
+                        v = v.add(DoubleVector.fromArray(SPECIES, b, bOffset + p*ldb + col).mul(a[row+p]));
+
+                    v.intoArray(c, out+col);
+                }
+            }
+
+            j = bound;
+        }
+
+        //the columns left over after the vectors, with 4 rows every row keeps its own sum so the 4 additions do not
+        //wait on each other, which matters for narrow matrices where these columns are a good part of the work
+        if(rows == 4){
+            int a0 = aOffset, a1 = a0+depth, a2 = a1+depth, a3 = a2+depth;
+
+            for(int col=j; col<length; col++){
+                int c0 = cOffset + col;
+                double s0 = c[c0], s1 = c[c0+ldc], s2 = c[c0+2*ldc], s3 = c[c0+3*ldc];
+
+                for(int p=0; p<depth; p++){
+                    double v = b[bOffset + p*ldb + col];
+                    s0 += a[a0+p]*v;
+                    s1 += a[a1+p]*v;
+                    s2 += a[a2+p]*v;
+                    s3 += a[a3+p]*v;
+                }
+
+                c[c0] = s0;
+                c[c0+ldc] = s1;
+                c[c0+2*ldc] = s2;
+                c[c0+3*ldc] = s3;
+            }
+            return;
+        }
+
+        for(int r=0; r<rows; r++){
+            for(int col=j; col<length; col++){
+                double sum = c[cOffset + r*ldc + col];
+                for(int p=0; p<depth; p++)
+                    sum += a[aOffset + r*depth + p]*b[bOffset + p*ldb + col];
+
+                c[cOffset + r*ldc + col] = sum;
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "vector("+SPECIES.length()+" doubles)";
+    }
+}
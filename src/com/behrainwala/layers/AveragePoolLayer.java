@@ -0,0 +1,256 @@
+package com.behrainwala.layers;
+
+import com.behrainwala.data.Parallel;
+import com.behrainwala.data.Tensor;
+
+import java.util.Arrays;
+
+/**
+ * <b>NOTE:</b><br/>
+ * Output (r,c) of every channel is the mean of the windowSize x windowSize inputs at row r*stepSize and column
+ * c*stepSize, going back every one of them gets error/(windowSize*windowSize).<br/>
+ *<br/>
+ * Like {@link MaxPooling} both passes are split in two, so an output takes 2*windowSize additions instead of
+ * windowSize*windowSize: going forward the windows are summed across every input row into rows (inRows x outCols)
+ * and then the windowSize sums of every output row are added up. Going back the errors are first spread down the
+ * rows of the windows into rows and then across the columns.<br/>
+ *<br/>
+ * Like the max pool a batch is pooled as one input with the channels of all its samples (see {@link MaxPoolLayer}).<br/>
+ */
+public class AveragePoolLayer extends Layer {
+
+    private final int _stepSize;
+    private final int _windowSize;
+    private final int _inLength;
+    private final int _inRows;
+    private final int _inCols;
+
+    //kept between samples so a training step does not allocate anything, _rows holds the sums of the windows across
+    //every input row going forward and the errors of the input rows going back. All of them have room for the
+    //channels of the biggest batch so far and _channels are in use
+    private Tensor _output;
+    private Tensor _dLdX;
+    private Tensor _rows;
+    private int _channels;
+
+    //every channel is pooled on its own, so both passes are split over the channels (see Parallel)
+    private Tensor _lastInput;
+    private Tensor _lastError;
+    private final Parallel.Body _poolChannels = this::poolChannels;
+    private final Parallel.Body _errorChannels = this::errorChannels;
+
+    public AveragePoolLayer(int _stepSize, int _windowSize, int _inLength, int inRows, int inCols) {
+        this._stepSize = _stepSize;
+        this._windowSize = _windowSize;
+        this._inLength = _inLength;
+        _inRows = inRows;
+        _inCols = inCols;
+
+        setBatchSize(1);
+    }
+
+    /**
+     * Makes room for the channels of batchSize samples.
+     */
+    private void setBatchSize(int batchSize){
+        _channels = batchSize*_inLength;
+        _output = batchTensor(_output, batchSize, _inLength, getOutputRows(), getOutputCols());
+        _dLdX = batchTensor(_dLdX, batchSize, _inLength, _inRows, _inCols);
+        _rows = batchTensor(_rows, batchSize, _inLength, _inRows, getOutputCols());
+    }
+
+    private Tensor averagePoolForwardPass(Tensor input, int batchSize){
+        setBatchSize(batchSize);
+        _lastInput = input;
+        forRange(_channels, 2L*_inRows*_inCols, _poolChannels);
+
+        return _output;
+    }
+
+    private void poolChannels(int from, int to){
+        for(int l=from; l<to; l++)
+            pool(_lastInput, l);
+    }
+
+    /**
+     * Averages channel l of the input (read straight from its array) into channel l of the output.
+     */
+    private void pool(Tensor input, int l){
+        double[] in = input.data();
+        double[] rows = _rows.data();
+        double[] out = _output.data();
+        int outRows = getOutputRows();
+        int outCols = getOutputCols();
+
+        for(int row=0; row<_inRows; row++){
+            if(!isUsed(row))
+                continue;
+
+            int from = input.offset() + (l*_inRows + row)*_inCols;
+            int sums = _rows.index(l, row, 0);
+
+            for(int c=0; c<outCols; c++){
+                int col = from + c*_stepSize;
+                double sum = 0;
+
+                for(int y=0; y<_windowSize; y++)
+                    sum += in[col+y];
+
+                rows[sums+c] = sum;
+            }
+        }
+
+        double scale = 1.0/(_windowSize*_windowSize);
+
+        for(int r=0; r<outRows; r++){
+            int o = _output.index(l, r, 0);
+            int first = _rows.index(l, r*_stepSize, 0);
+
+            System.arraycopy(rows, first, out, o, outCols);
+            for(int x=1; x<_windowSize; x++){
+                int sums = first + x*outCols;
+                for(int c=0; c<outCols; c++)
+                    out[o+c] += rows[sums+c];
+            }
+
+            for(int c=0; c<outCols; c++)
+                out[o+c] *= scale;
+        }
+    }
+
+    /**
+     * Whether a window covers input row r, the other rows are neither summed nor get an error.
+     */
+    private boolean isUsed(int r){
+        return r < (getOutputRows()-1)*_stepSize + _windowSize && r%_stepSize < _windowSize;
+    }
+
+    @Override
+    public double[] getOutput(Tensor input) throws Exception {
+        if(input.size() != _inLength*_inRows*_inCols)
+            throw new Exception("Expected "+_inLength*_inRows*_inCols+" inputs but got "+input.size());
+
+        Tensor outputPool = averagePoolForwardPass(input, 1);
+
+        if(get_nextLayer()!=null)
+            return get_nextLayer().getOutput(outputPool);
+        else
+            throw new Exception("This cannot be the last layer");
+    }
+
+    @Override
+    public double[] getOutputs(Tensor inputs, int batchSize) throws Exception {
+        if(inputs.size() != batchSize*_inLength*_inRows*_inCols)
+            throw new Exception("Expected "+batchSize+"x"+_inLength*_inRows*_inCols+" inputs but got "+inputs.size());
+
+        Tensor outputPool = averagePoolForwardPass(inputs, batchSize);
+
+        if(get_nextLayer()!=null)
+            return get_nextLayer().getOutputs(outputPool, batchSize);
+        else
+            throw new Exception("This cannot be the last layer");
+    }
+
+    @Override
+    public void backPropagation(Tensor dLdO) {
+        if(dLdO.size() != getOutputElements())
+            throw new IllegalArgumentException("Expected "+getOutputElements()+" errors but got "+dLdO.size());
+
+        _lastError = dLdO;
+        forRange(_channels, 2L*_inRows*_inCols, _errorChannels);
+
+        if(get_previousLayer()!=null)
+            get_previousLayer().backPropagation(_dLdX);
+    }
+
+    @Override
+    public void backPropagation(Tensor dLdO, int batchSize) {
+        if(dLdO.size() != batchSize*getOutputElements())
+            throw new IllegalArgumentException("Expected "+batchSize+"x"+getOutputElements()+" errors but got "+dLdO.size());
+
+        _lastError = dLdO;
+        forRange(_channels, 2L*_inRows*_inCols, _errorChannels);
+
+        if(get_previousLayer()!=null)
+            get_previousLayer().backPropagation(_dLdX, batchSize);
+    }
+
+    /**
+     * Passes the error of every output of the channels from to to back to every input of its window, spread down the
+     * rows first and then across the columns.
+     */
+    private void errorChannels(int from, int to){
+        double[] error = _lastError.data();
+        double[] rows = _rows.data();
+        double[] dLdX = _dLdX.data();
+        int outRows = getOutputRows();
+        int outCols = getOutputCols();
+        double scale = 1.0/(_windowSize*_windowSize);
+
+        for(int l=from; l<to; l++){
+            int channel = _rows.index(l, 0, 0);
+            Arrays.fill(rows, channel, channel + _inRows*outCols, 0);
+
+            for(int r=0; r<outRows; r++){
+                int e = _lastError.offset() + (l*outRows + r)*outCols;
+                int first = _rows.index(l, r*_stepSize, 0);
+
+                for(int x=0; x<_windowSize; x++){
+                    int errors = first + x*outCols;
+                    for(int c=0; c<outCols; c++)
+                        rows[errors+c] += error[e+c]*scale;
+                }
+            }
+
+            int plane = _dLdX.index(l, 0, 0);
+            Arrays.fill(dLdX, plane, plane + _inRows*_inCols, 0);
+
+            for(int row=0; row<_inRows; row++){
+                if(!isUsed(row))
+                    continue;
+
+                int errors = _rows.index(l, row, 0);
+                int inRow = plane + row*_inCols;
+
+                for(int c=0; c<outCols; c++){
+                    int col = inRow + c*_stepSize;
+                    for(int y=0; y<_windowSize; y++)
+                        dLdX[col+y] += rows[errors+c];
+                }
+            }
+        }
+    }
+
+    @Override
+    public Layer replicate() {
+        return withSettings(new AveragePoolLayer(_stepSize, _windowSize, _inLength, _inRows, _inCols));
+    }
+
+    @Override
+    public int getOutputLength() {
+        return _inLength;
+    }
+
+    @Override
+    public int getOutputRows() {
+        return (_inRows-_windowSize)/_stepSize + 1;
+    }
+
+    @Override
+    public int getOutputCols() {
+        return (_inCols-_windowSize)/_stepSize + 1;
+    }
+
+    @Override
+    public int getOutputElements() {
+        return _inLength*getOutputRows()*getOutputCols();
+    }
+
+    /**
+     * The shape of the layer, e.g. "AveragePoolLayer 8x24x24 window 3 step 2".
+     */
+    @Override
+    public String toString() {
+        return "AveragePoolLayer "+_inLength+"x"+_inRows+"x"+_inCols+" window "+_windowSize+" step "+_stepSize;
+    }
+}
@@ -1,109 +1,330 @@
 package com.behrainwala.layers;
 
+import com.behrainwala.data.Kernels;
 import com.behrainwala.data.MatrixUtility;
+import com.behrainwala.data.Parallel;
+import com.behrainwala.data.Tensor;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Random;
 
 public class ConvolutionLayer extends Layer{
 
     private final long seed;
-    private List<double[][]> _filters;
-    private List<double[][]> _lastInput;
+    private Tensor _filters;
+    private Tensor _lastInput;
+    private Tensor _lastOutput;
+    private Tensor _lastError;
+    //where the DIRECT passes add the filter deltas and dL/dX to, see addGradients
+    private Tensor _lastDelta;
+    private Tensor _lastDLdX;
+    //the columns of _lastError that are not 0, see backward
+    private int[] _errorColumns;
+    private int[] _errorRows;
     private final int _filterSize;
     private final int _stepSize;
 
     private final int _inLength;
     private final int _inRows;
     private final int _inCols;
+    private final int _numFilters;
+    //every filter has a channel per input channel and the outputs of all of them are added up
+    private final boolean _sumChannels;
     private final double learningRate;
 
+    //kept between samples so a training step does not allocate anything
+    private final Tensor _output;
+    private final Tensor _filtersDelta;
+    private final Tensor _dLdX;
+
+    //the batches, see getOutputs, _filtersGradient adds up -learningRate*dL/dF over the samples until it is applied
+    private Tensor _lastInputs;
+    private Tensor _batchOutput;
+    private Tensor _batchDLdX;
+    private Tensor _filtersGradient;
+
+    private ConvolutionMode _mode = ConvolutionMode.DIRECT;
+    private Im2ColConvolution _im2col;
+    private WinogradConvolution _winograd;
+    private FftConvolution _fft;
+    //the winograd and fft filter transforms have to be redone after every update
+    private boolean _filtersChanged = true;
+
+    //the DIRECT passes, split over the output channels, the filter channels and the input channels (see Parallel)
+    private final Parallel.Body _convolveOutputs = this::convolveOutputs;
+    private final Parallel.Body _filterGradients = this::filterGradients;
+    private final Parallel.Body _inputGradients = this::inputGradients;
+
     public ConvolutionLayer(int filterSize, int stepSize, int inLength, int inRows, int inCols, long seed, int numFilters, double learningRate) {
+        this(filterSize, stepSize, inLength, inRows, inCols, seed, numFilters, learningRate, false);
+    }
+
+    /**
+     * With sumChannels every filter is as deep as the input and the layer has one output channel per filter, like
+     * most convolution layers. Without it every input channel is convolved with every filter on its own and the layer
+     * has inLength*numFilters output channels, so every layer stacked on it multiplies the number of channels.
+     */
+    public ConvolutionLayer(int filterSize, int stepSize, int inLength, int inRows, int inCols, long seed, int numFilters, double learningRate, boolean sumChannels) {
+        this(filterSize, stepSize, inLength, inRows, inCols, seed, numFilters, learningRate, sumChannels, null);
+    }
+
+    /**
+     * A layer on the given filters, or new random ones when they are null, see {@link #replicate}.
+     */
+    private ConvolutionLayer(int filterSize, int stepSize, int inLength, int inRows, int inCols, long seed, int numFilters, double learningRate, boolean sumChannels, Tensor filters) {
         this.seed = seed;
         _filterSize = filterSize;
         _stepSize = stepSize;
         _inLength = inLength;
         _inRows = inRows;
         _inCols = inCols;
+        _numFilters = numFilters;
+        _sumChannels = sumChannels;
         this.learningRate = learningRate;
 
-        generateFilters(numFilters);
+        if(filters == null)
+            generateFilters(numFilters*getFilterDepth());
+        else
+            _filters = filters;
+
+        _output = new Tensor(getOutputLength(), getOutputRows(), getOutputCols());
+        _filtersDelta = new Tensor(_filters.channels(), _filterSize, _filterSize);
+        _dLdX = new Tensor(_inLength, _inRows, _inCols);
     }
 
-    private void generateFilters(int numFilters){
-        List<double[][]> filters = new ArrayList<>(numFilters);
+    /**
+     * All the filters are kept in one tensor, filter n is channel n. When summing over the channels, channel i of
+     * filter f is channel f*inLength+i, so every filter is one row of inLength*filterSize*filterSize values.
+     */
+    private void generateFilters(int channels){
+        Tensor filters = new Tensor(channels, _filterSize, _filterSize);
         Random rand = new Random(seed);
 
-        for(int n=0; n<numFilters; n++){
-            double[][] newFilter = new double[_filterSize][_filterSize];
-
+        for(int n=0; n<channels; n++){
             for(int i=0; i<_filterSize; i++){
                 for(int j=0; j<_filterSize; j++){
-                    newFilter[i][j] = rand.nextGaussian();
+                    filters.set(n, i, j, rand.nextGaussian());
                 }
             }
-
-            filters.add(newFilter);
         }
 
         _filters = filters;
     }
 
-    private List<double[][]> convolutionForwardPass(List<double[][]> list){
-        _lastInput = list;
+    Tensor getFilters(){
+        return _filters;
+    }
+
+    /**
+     * The number of channels of every filter.
+     */
+    public int getFilterDepth(){
+        return _sumChannels ? _inLength : 1;
+    }
+
+    int getFilterSize(){
+        return _filterSize;
+    }
 
-        List<double[][]> output = new ArrayList<>();
+    int getInputElements(){
+        return _inLength*_inRows*_inCols;
+    }
 
-        for (double[][] input : list) {
-            for (double[][] filter : _filters) {
-                output.add(convolve(input, filter, _stepSize));
-            }
+    /**
+     * A tensor of batchSize inputs for this layer, see {@link Layer#batchTensor}.
+     */
+    Tensor inputBatch(Tensor buffer, int batchSize){
+        return batchTensor(buffer, batchSize, _inLength, _inRows, _inCols);
+    }
+
+    /**
+     * Sample b of a batch of inputs for this layer.
+     */
+    Tensor inputSample(Tensor inputs, int b){
+        return sample(inputs, b, _inLength, _inRows, _inCols);
+    }
+
+    public boolean isSummingChannels(){
+        return _sumChannels;
+    }
+
+    public ConvolutionMode getMode() {
+        return _mode;
+    }
+
+    /**
+     * AUTO is replaced by the mode it picks for this layer, which depends on the kernels, so set those first.
+     */
+    public void setMode(ConvolutionMode mode) {
+        if(mode == ConvolutionMode.AUTO)
+            mode = ConvolutionMode.choose(_filterSize, _stepSize, _inRows, _inCols, getKernels() != Kernels.SCALAR);
+
+        if(!supportsMode(mode))
+            throw new IllegalArgumentException("Winograd needs 3x3 filters with a step size of 1, not "+_filterSize+"x"+_filterSize+" with "+_stepSize);
+
+        _mode = mode;
+        _filtersChanged = true;
+
+        if(mode != ConvolutionMode.DIRECT && _im2col == null)
+            _im2col = new Im2ColConvolution(_inLength, _inRows, _inCols, _filterSize, _stepSize, _numFilters, _sumChannels);
+
+        if(mode == ConvolutionMode.WINOGRAD && _winograd == null)
+            _winograd = new WinogradConvolution(_inLength, _inRows, _inCols, _numFilters,
+                    WinogradConvolution.DEFAULT_TILE_SIZE, _sumChannels);
+
+        if(mode == ConvolutionMode.FFT && _fft == null)
+            _fft = new FftConvolution(_inLength, _inRows, _inCols, _numFilters, _filterSize, _stepSize, _sumChannels);
+    }
+
+    /**
+     * Winograd only works out 3x3 filters with a step size of 1, every other mode works on any layer.
+     */
+    boolean supportsMode(ConvolutionMode mode){
+        return mode != ConvolutionMode.WINOGRAD || (_filterSize == 3 && _stepSize == 1);
+    }
+
+    Tensor convolutionForwardPass(Tensor input){
+        return convolutionForwardPass(input, _output);
+    }
+
+    /**
+     * Writes the convolution of input to output and keeps the input for the backward pass.
+     */
+    Tensor convolutionForwardPass(Tensor input, Tensor output){
+        _lastInput = input;
+        _lastOutput = output;
+
+        if(_mode == ConvolutionMode.IM2COL){
+            _im2col.forward(input, _filters, output, getKernels());
+            return output;
+        }
+
+        if(_mode == ConvolutionMode.WINOGRAD){
+            if(_filtersChanged)
+                _winograd.setFilters(_filters);
+            _filtersChanged = false;
+
+            _winograd.forward(input, output);
+            return output;
+        }
+
+        if(_mode == ConvolutionMode.FFT){
+            if(_filtersChanged)
+                _fft.setFilters(_filters);
+            _filtersChanged = false;
+
+            _fft.forward(input, output);
+            return output;
         }
 
+        long work = (long)getOutputRows()*getOutputCols()*_filterSize*_filterSize*(_sumChannels ? _inLength : 1);
+        forRange(getOutputLength(), work, _convolveOutputs);
+
         return output;
     }
 
+    /**
+     * Works out the output channels from to to of the last input. Every output channel is only written here, by
+     * itself, so they can be done on any number of threads.
+     */
+    private void convolveOutputs(int from, int to){
+        int outCols = getOutputCols();
+
+        for(int o=from; o<to; o++){
+            int outIndex = _lastOutput.index(o, 0, 0);
+
+            for(int r=0; r<getOutputRows(); r++)
+                convolveOutputRow(_lastInput, o, r, _lastOutput.data(), outIndex + r*outCols);
+        }
+    }
+
+    /**
+     * Writes row r of output channel o for the input to out at outRow. Only the input rows under the filter are read,
+     * so a {@link ConvolutionPoolLayer} can work out the rows it needs one at a time.
+     */
+    void convolveOutputRow(Tensor input, int o, int r, double[] out, int outRow){
+        if(!_sumChannels){
+            convolveRow(input, o/_numFilters, o%_numFilters, r, out, outRow, false);
+            return;
+        }
+
+        //the first channel sets the output and the others are added to it
+        for(int i=0; i<_inLength; i++)
+            convolveRow(input, i, filterChannel(o, i), r, out, outRow, i > 0);
+    }
+
+    /**
+     * The DIRECT passes of a {@link ConvolutionPoolLayer} go through convolveOutputRow, which does not keep the input.
+     */
+    void setLastInput(Tensor input){
+        _lastInput = input;
+    }
+
+    /**
+     * The channel of _filters that is applied to input channel i for filter f.
+     */
+    private int filterChannel(int f, int i){
+        return _sumChannels ? f*_inLength+i : f;
+    }
 
-    private double[][] convolve(double[][] input, double[][] filter, int stepSize){
-        int outRows = (input.length - filter.length)/stepSize+1;
-        int outCols = (input[0].length - filter[0].length)/stepSize+1;
+    /**
+     * The output channel input channel i goes to for filter f.
+     */
+    private int outputChannel(int f, int i){
+        return _sumChannels ? f : i*_numFilters+f;
+    }
 
-        int inRows = input.length;
-        int inCols = input[0].length;
+    /**
+     * Convolves channel inChannel of input with filter channel f into output row r at outRow, or adds the
+     * convolution to it when accumulate is set.
+     * The channels are addressed by index so no views have to be created.<br/>
+     * With a step size of 1 a whole output row is done at a time: for every filter value the matching input row is
+     * multiplied by it and added to the output row. Every output value still adds up the same products in the same
+     * order, this just lets the kernels work on long rows instead of one filter row at a time.
+     */
+    private void convolveRow(Tensor input, int inChannel, int f, int r, double[] out, int outRow, boolean accumulate){
+        int fRows = _filterSize;
+        int fCols = _filterSize;
+        int outCols = getOutputCols();
 
-        int fRows = filter.length;
-        int fCols = filter[0].length;
+        double[] in = input.data();
+        double[] filter = _filters.data();
 
-        double[][] output = new double[outRows][outCols];
+        int inRow = input.offset() + inChannel*_inRows*_inCols + r*_stepSize*_inCols;
+        int filterBase = _filters.index(f, 0, 0);
 
-        int outRow=0;
+        if(_stepSize == 1){
+            if(!accumulate)
+                Arrays.fill(out, outRow, outRow+outCols, 0);
 
-        for(int i=0; i<= inRows - fRows; i+=stepSize){
-            int outCol=0;
-            for(int j=0; j<= inCols - fCols; j+=stepSize){
-                double sum = 0;
-                //Apply the filter around this position
-                for(int x=0; x<fRows; x++){
-                    for(int y=0; y<fCols; y++){
-                        int inputRowIndex = i+x;
-                        int inputColIndex = j+y;
-
-                        double value = filter[x][y]*input[inputRowIndex][inputColIndex];
-                        sum+=value;
-                    }
+            for(int x=0; x<fRows; x++){
+                for(int y=0; y<fCols; y++){
+                    getKernels().axpy(filter[filterBase + x*fCols + y], in, inRow + x*_inCols + y, out, outRow, outCols);
                 }
-                output[outRow][outCol] = sum;
-                outCol++;
             }
-            outRow++;
+            return;
         }
 
-        return output;
+        for(int c=0; c<outCols; c++){
+            double sum = accumulate ? out[outRow+c] : 0;
+            //Apply the filter around this position
+            for(int x=0; x<fRows; x++){
+                for(int y=0; y<fCols; y++){
+                    double value = filter[filterBase + x*fCols + y]*in[inRow + x*_inCols + c*_stepSize + y];
+                    sum+=value;
+                }
+            }
+            out[outRow+c] = sum;
+        }
     }
 
+    /**
+     * The input is read straight from its array, so it can come in any shape with the right number of values.
+     */
     @Override
-    public double[] getOutput(List<double[][]> input) throws Exception {
+    public double[] getOutput(Tensor input) throws Exception {
+        if(input.size() != _inLength*_inRows*_inCols)
+            throw new Exception("Expected "+_inLength*_inRows*_inCols+" inputs but got "+input.size());
 
         if(get_nextLayer()!=null)
             return get_nextLayer().getOutput(convolutionForwardPass(input));
@@ -111,9 +332,26 @@ public class ConvolutionLayer extends Layer{
             throw new Exception("This cannot be the last layer");
     }
 
+    /**
+     * The samples are convolved one after the other, each of them split over the threads like a single sample (in the
+     * IM2COL mode every sample is one matrix multiplication).
+     */
     @Override
-    public double[] getOutput(double[] input) throws Exception {
-        return getOutput(convolutionForwardPass(vectorToMatrix(input, _inLength, _inRows, _inCols)));
+    public double[] getOutputs(Tensor inputs, int batchSize) throws Exception {
+        int inputElements = getInputElements();
+        if(inputs.size() != batchSize*inputElements)
+            throw new Exception("Expected "+batchSize+"x"+inputElements+" inputs but got "+inputs.size());
+        if(get_nextLayer()==null)
+            throw new Exception("This cannot be the last layer");
+
+        _lastInputs = inputs;
+        _batchOutput = batchTensor(_batchOutput, batchSize, getOutputLength(), getOutputRows(), getOutputCols());
+
+        for(int b=0; b<batchSize; b++)
+            convolutionForwardPass(inputSample(inputs, b),
+                    sample(_batchOutput, b, getOutputLength(), getOutputRows(), getOutputCols()));
+
+        return get_nextLayer().getOutputs(_batchOutput, batchSize);
     }
 
     /**
@@ -155,7 +393,7 @@ public class ConvolutionLayer extends Layer{
      * dO/dF -> change in output relative to change in filter value<br/>
      * dL/dF11 = dL/dO*dO/dF11 = (dL/dO11*dO11/dF11)+(dL/dO12*dO12/dF11)+(dL/dO21*dO21/dF11)+(dL/dO22*dO22/dF11)<br/>
      *<br/>
-     * F11 -> filter value at List(double[][]) _filters->filter[1][1]<br/>
+     * F11 -> filter value at _filters.get(filter, 1, 1)<br/>
      *<br/>
      * When calculating O11 in the forward pass we do<br/>
      * O11 = X11*F11+S12*F12+X13*F13 + X21*F21+X22*F22+X23*F23 + X31*F31+X32*F32+X33*F33<br/>
@@ -178,79 +416,290 @@ public class ConvolutionLayer extends Layer{
      */
 
     @Override
-    public void backPropagation(List<double[][]> dLdO) {
+    public void backPropagation(Tensor dLdO) {
+        if(dLdO.size() != getOutputElements())
+            throw new IllegalArgumentException("Expected "+getOutputElements()+" errors but got "+dLdO.size());
+
+        Tensor dLdX = backward(dLdO, null, null, get_previousLayer()!=null);
 
-        List<double[][]> filtersDelta = new ArrayList<>();
-        List<double[][]> dLdOPreviousLayer = new ArrayList<>();
+        if(get_previousLayer()!=null)
+        {
+            get_previousLayer().backPropagation(dLdX);
+        }
+    }
 
-        for(int f=0; f< _filters.size(); f++){
-            filtersDelta.add(new double[_filterSize][_filterSize]);
+    @Override
+    public void backPropagation(Tensor dLdO, int batchSize) {
+        if(dLdO.size() != batchSize*getOutputElements())
+            throw new IllegalArgumentException("Expected "+batchSize+"x"+getOutputElements()+" errors but got "+dLdO.size());
+
+        boolean inputGradient = get_previousLayer()!=null;
+        if(inputGradient)
+            _batchDLdX = inputBatch(_batchDLdX, batchSize);
+
+        for(int b=0; b<batchSize; b++){
+            addGradients(inputSample(_lastInputs, b),
+                    sample(dLdO, b, getOutputLength(), getOutputRows(), getOutputCols()), null, null,
+                    inputGradient ? inputSample(_batchDLdX, b) : null);
         }
 
-        for(int i=0; i<_lastInput.size(); i++){
-            double[][] errorForInput = new double[_inRows][_inCols];
-            for(int f=0; f< _filters.size(); f++){
-                double[][] currFilter = _filters.get(f);
-                double[][] error = dLdO.get(i*_filters.size()+f);
+        if(inputGradient)
+            get_previousLayer().backPropagation(_batchDLdX, batchSize);
+    }
+
+    /**
+     * Adds -learningRate*dL/dF for dL/dO of input to the gradient of the batch without changing the filters, and writes
+     * dL/dX to dLdX unless it is null. See {@link #backward} for errorColumns and errorRows.
+     */
+    void addGradients(Tensor input, Tensor dLdO, int[] errorColumns, int[] errorRows, Tensor dLdX){
+        if(_filtersGradient == null)
+            _filtersGradient = new Tensor(_filters.channels(), _filterSize, _filterSize);
 
-                double[][] spacedError = spaceArray(error);
-                double[][] dLdF= convolve(_lastInput.get(i), spacedError, 1);
+        _lastInput = input;
+        //the columns the IM2COL forward pass left behind are of the last sample of the batch, so every sample is unrolled
+        gradients(dLdO, errorColumns, errorRows, _filtersGradient, dLdX, _mode != ConvolutionMode.DIRECT);
+    }
 
-                double[][] delta = MatrixUtility.multiply(dLdF, learningRate*-1);
-                double[][] newDelta = MatrixUtility.add(filtersDelta.get(f), delta);
-                filtersDelta.set(f, newDelta);
+    @Override
+    public void applyGradients(int samples) {
+        if(_filtersGradient == null)
+            return;
 
-                if(get_previousLayer()!=null) {
-                    double[][] flippedError = MatrixUtility.flipMatrixHorizontal(MatrixUtility.flipMatrixVertical(spacedError));
-                    errorForInput = MatrixUtility.add(errorForInput, fullConvolve(currFilter, flippedError));
-                }
-            }
+        MatrixUtility.axpy(1.0/samples, _filtersGradient, _filters);
+        _filtersGradient.fill(0);
+        _filtersChanged = true;
+    }
+
+    /**
+     * The replica shares the filters tensor, its own winograd and fft transforms of them are redone after every update.
+     */
+    @Override
+    public Layer replicate() {
+        ConvolutionLayer replica = withSettings(new ConvolutionLayer(_filterSize, _stepSize, _inLength, _inRows, _inCols,
+                seed, _numFilters, learningRate, _sumChannels, _filters));
+        replica.setMode(_mode);
+        return replica;
+    }
 
-            if(get_previousLayer()!=null)
-                dLdOPreviousLayer.add(errorForInput);
+    @Override
+    public void reduceGradients(Layer replica) {
+        ConvolutionLayer layer = (ConvolutionLayer)replica;
+        //the filters are shared, they change when this layer applies the sum
+        layer._filtersChanged = true;
+        if(layer._filtersGradient == null)
+            return;
+
+        if(_filtersGradient == null)
+            _filtersGradient = new Tensor(_filters.channels(), _filterSize, _filterSize);
+
+        MatrixUtility.axpy(1, layer._filtersGradient, _filtersGradient);
+        layer._filtersGradient.fill(0);
+    }
+
+    @Override
+    public double[] copyWeights() {
+        return Arrays.copyOfRange(_filters.data(), _filters.offset(), _filters.offset()+_filters.size());
+    }
+
+    @Override
+    public void restoreWeights(double[] weights) {
+        System.arraycopy(weights, 0, _filters.data(), _filters.offset(), _filters.size());
+        _filtersChanged = true;
+    }
+
+    /**
+     * The recorded changes are -learningRate*dL/dF like the gradients of a batch, the filters moved by them.
+     */
+    @Override
+    public UpdateLoss compareUpdates(double[] start) {
+        if(_filtersGradient == null)
+            return UpdateLoss.NONE;
+
+        double[] filters = _filters.data();
+        double[] changes = _filtersGradient.data();
+        double lost = 0;
+        double recorded = 0;
+
+        for(int i=0; i<start.length; i++){
+            double change = changes[_filtersGradient.offset()+i];
+            lost += Math.abs(filters[_filters.offset()+i] - start[i] - change);
+            recorded += Math.abs(change);
         }
 
-        for(int f=0; f< _filters.size(); f++){
-            double[][] modified = MatrixUtility.add(filtersDelta.get(f), _filters.get(f));
-            _filters.set(f, modified);
+        _filtersGradient.fill(0);
+        return new UpdateLoss(lost, recorded);
+    }
+
+    /**
+     * Updates the filters for dL/dO and returns dL/dX, which is only worked out with inputGradient.<br/>
+     * When most of dL/dO is 0, as behind a max pool, the DIRECT mode can skip the zeros: the errors of row r of
+     * output channel o that are not 0 are in the columns errorColumns[n] for errorRows[o*(outputRows+1)+r] &lt;= n &lt;
+     * errorRows[o*(outputRows+1)+r+1], in order. The products that are left are added up in the same order as when
+     * going over every error, so the results are the same. Pass null for both to use every error.
+     */
+    Tensor backward(Tensor dLdO, int[] errorColumns, int[] errorRows, boolean inputGradient){
+        _filtersDelta.fill(0);
+
+        gradients(dLdO, errorColumns, errorRows, _filtersDelta, inputGradient ? _dLdX : null,
+                _mode != ConvolutionMode.DIRECT && _mode != ConvolutionMode.IM2COL);
+
+        MatrixUtility.axpy(1, _filtersDelta, _filters);
+        _filtersChanged = true;
+
+        if(isRecordingUpdates()){
+            if(_filtersGradient == null)
+                _filtersGradient = new Tensor(_filters.channels(), _filterSize, _filterSize);
+            MatrixUtility.axpy(1, _filtersDelta, _filtersGradient);
         }
 
-        if(get_previousLayer()!=null)
-        {
-            get_previousLayer().backPropagation(dLdOPreviousLayer);
+        return _dLdX;
+    }
+
+    /**
+     * Adds -learningRate*dL/dF for dL/dO of the last input to delta and writes dL/dX to dLdX unless it is null. The
+     * modes other than DIRECT need the columns of the input, which the IM2COL forward pass leaves behind.
+     */
+    private void gradients(Tensor dLdO, int[] errorColumns, int[] errorRows, Tensor delta, Tensor dLdX, boolean unroll){
+        if(dLdX != null)
+            dLdX.fill(0);
+
+        if(unroll)
+            _im2col.unroll(_lastInput);
+
+        if(_mode != ConvolutionMode.DIRECT){
+            _im2col.backward(dLdO, _filters, delta, dLdX, learningRate, getKernels());
+            return;
         }
+
+        int outSize = getOutputRows()*getOutputCols();
+        _lastError = dLdO;
+        _errorColumns = errorColumns;
+        _errorRows = errorRows;
+        _lastDelta = delta;
+        _lastDLdX = dLdX;
+        long work = (long)outSize*_filterSize*_filterSize;
+
+        forRange(_filters.channels(), work*(_sumChannels ? 1 : _inLength), _filterGradients);
+        if(dLdX != null)
+            forRange(_inLength, work*_numFilters, _inputGradients);
     }
 
-    @Override
-    public void backPropagation(double[] dLdO) {
-        backPropagation(vectorToMatrix(dLdO, _inLength, _inRows, _inCols));
+    /**
+     * The deltas of the filter channels from to to. A filter channel adds up the input channels it is used on in the
+     * same order on any thread, so the deltas do not depend on how the channels were split.
+     */
+    private void filterGradients(int from, int to){
+        for(int k=from; k<to; k++){
+            if(_sumChannels){
+                addFilterDelta(k%_inLength, k/_inLength, k);
+                continue;
+            }
+
+            for(int i=0; i<_inLength; i++)
+                addFilterDelta(i, i*_numFilters+k, k);
+        }
     }
 
     /**
-     * This will create a spaced out matrix based on our input.
+     * dL/dX of the input channels from to to, every one of them adds up all the filters in order.
      */
-    private double[][] spaceArray(double[][] input){
-        if(_stepSize < 2){
-            return input;
+    private void inputGradients(int from, int to){
+        for(int i=from; i<to; i++){
+            for(int f=0; f<_numFilters; f++)
+                addInputGradient(filterChannel(f, i), outputChannel(f, i), i);
         }
+    }
 
-        int outRows = (input.length - 1)* _stepSize + 1;
-        int outCols = (input[0].length -1)*_stepSize+1;
+    /**
+     * Adds -learningRate*dL/dF to the delta of filter channel f for the error of output channel o, see the note above:<br/>
+     * dL/dF[x][y] = sum of dL/dO[r][c]*X[r*stepSize+x][c*stepSize+y] over every output position (r,c)
+     */
+    private void addFilterDelta(int inChannel, int o, int f){
+        double[] in = _lastInput.data();
+        double[] error = _lastError.data();
+        int inBase = _lastInput.offset() + inChannel*_inRows*_inCols;
+        int outRows = getOutputRows();
+        int outCols = getOutputCols();
+        int errorOffset = _lastError.offset() + o*outRows*outCols;
+
+        for(int x=0; x<_filterSize; x++){
+            for(int y=0; y<_filterSize; y++){
+                double sum = 0;
+                for(int r=0; r<outRows; r++){
+                    if(_errorColumns != null){
+                        int row = o*(outRows+1) + r;
+                        for(int n=_errorRows[row]; n<_errorRows[row+1]; n++){
+                            int c = _errorColumns[n];
+                            sum += error[errorOffset + r*outCols + c]*in[inBase + (r*_stepSize+x)*_inCols + c*_stepSize+y];
+                        }
+                        continue;
+                    }
 
-        double[][] output = new double[outRows][outCols];
+                    if(_stepSize == 1){
+                        sum = getKernels().dot(sum, error, errorOffset + r*outCols, in, inBase + (r+x)*_inCols + y, outCols);
+                        continue;
+                    }
 
-        for(int i = 0; i < input.length; i++){
-            for(int j = 0; j < input[0].length; j++){
-                output[i*_stepSize][j*_stepSize] = input[i][j];
+                    for(int c=0; c<outCols; c++){
+                        sum += error[errorOffset + r*outCols + c]*in[inBase + (r*_stepSize+x)*_inCols + c*_stepSize+y];
+                    }
+                }
+                _lastDelta.add(f, x, y, sum*(learningRate*-1));
             }
         }
+    }
 
-        return output;
+    /**
+     * Adds the part of dL/dX that goes through filter channel f from output channel o to input channel inChannel.
+     * Every input value X[i][j] is used by O[r][c] with the filter value F[i-r*stepSize][j-c*stepSize], so:<br/>
+     * dL/dX[r*stepSize+x][c*stepSize+y] += dL/dO[r][c]*F[x][y] for every output position (r,c) and filter position (x,y)<br/>
+     * This is the full convolution of the spaced out error with the flipped filter, but the step size is taken care of
+     * by the indices so nothing has to be spaced out or flipped. Input values no output position reaches get nothing.
+     */
+    private void addInputGradient(int f, int o, int inChannel){
+        double[] filter = _filters.data();
+        double[] error = _lastError.data();
+        double[] dLdX = _lastDLdX.data();
+        int filterBase = _filters.index(f, 0, 0);
+        int inBase = _lastDLdX.index(inChannel, 0, 0);
+        int outRows = getOutputRows();
+        int outCols = getOutputCols();
+        int errorOffset = _lastError.offset() + o*outRows*outCols;
+
+        for(int r=0; r<outRows; r++){
+            int errorRow = errorOffset + r*outCols;
+            int row = o*(outRows+1) + r;
+
+            for(int x=0; x<_filterSize; x++){
+                for(int y=0; y<_filterSize; y++){
+                    double value = filter[filterBase + x*_filterSize + y];
+                    int to = inBase + (r*_stepSize + x)*_inCols + y;
+
+                    if(_errorColumns != null){
+                        for(int n=_errorRows[row]; n<_errorRows[row+1]; n++){
+                            int c = _errorColumns[n];
+                            dLdX[to + c*_stepSize] += value*error[errorRow + c];
+                        }
+                        continue;
+                    }
+
+                    //with a step size of 1 an error row is added to an input row
+                    if(_stepSize == 1){
+                        getKernels().axpy(value, error, errorRow, dLdX, to, outCols);
+                        continue;
+                    }
+
+                    for(int c=0; c<outCols; c++){
+                        dLdX[to + c*_stepSize] += value*error[errorRow + c];
+                    }
+                }
+            }
+        }
     }
 
     @Override
     public int getOutputLength() {
-        return _filters.size()*_inLength;
+        return _sumChannels ? _numFilters : _numFilters*_inLength;
     }
 
     @Override
@@ -268,42 +717,12 @@ public class ConvolutionLayer extends Layer{
         return getOutputRows()*getOutputCols()*getOutputLength();
     }
 
-    private double[][] fullConvolve(double[][] input, double[][] filter){
-        int outRows = (input.length + filter.length)+1;
-        int outCols = (input[0].length + filter[0].length)+1;
-
-        int inRows = input.length;
-        int inCols = input[0].length;
-
-        int fRows = filter.length;
-        int fCols = filter[0].length;
-
-        double[][] output = new double[outRows][outCols];
-
-        int outRow=0;
-
-        for(int i= -fRows + 1; i> inRows - fRows; i++){
-            int outCol=0;
-            for(int j= -fCols+1; j> inCols - fCols; j++){
-                double sum = 0;
-                //Apply the filter around this position
-                for(int x=0; x<fRows; x++){
-                    for(int y=0; y<fCols; y++){
-                        int inputRowIndex = i+x;
-                        int inputColIndex = j+y;
-
-                        if(inputRowIndex >=0 && inputColIndex >=0 && inputRowIndex < inRows && inputColIndex < inCols){
-                            double value = filter[x][y]*input[inputRowIndex][inputColIndex];
-                            sum+=value;
-                        }
-                    }
-                }
-                output[outRow][outCol] = sum;
-                outCol++;
-            }
-            outRow++;
-        }
-
-        return output;
+    /**
+     * The shape of the layer, e.g. "ConvolutionLayer 1x28x28 8 filters 5x5 step 1".
+     */
+    @Override
+    public String toString() {
+        return "ConvolutionLayer "+_inLength+"x"+_inRows+"x"+_inCols+" "+_numFilters+" filters "+_filterSize+"x"+_filterSize
+                +" step "+_stepSize+(_sumChannels ? " summed" : "");
     }
 }
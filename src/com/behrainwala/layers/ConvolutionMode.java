@@ -0,0 +1,52 @@
+package com.behrainwala.layers;
+
+/**
+ * How a {@link ConvolutionLayer} works out its convolutions.
+ */
+public enum ConvolutionMode {
+    /**
+     * One output value at a time, straight from the input.
+     */
+    DIRECT,
+    /**
+     * The input patches are unrolled into a column matrix first, so every pass is a matrix multiplication over all the
+     * filters at once.
+     */
+    IM2COL,
+    /**
+     * Winograd's F(2x2,3x3) for the forward pass, only for 3x3 filters with a step size of 1.
+     * The backward pass is done the same way as IM2COL.
+     */
+    WINOGRAD,
+    /**
+     * Through the fast fourier transform for the forward pass, for big filters and images.
+     * The backward pass is done the same way as IM2COL.
+     */
+    FFT,
+    /**
+     * Every layer picks one of the others from its filter size, input shape and kernels, see {@link #choose}.
+     */
+    AUTO;
+
+    //filters from this size on images of at least this many values go through FFT
+    private static final int FFT_FILTER_SIZE = 15;
+    private static final int FFT_IMAGE_SIZE = 128*128;
+
+    /**
+     * The mode that is fastest for the shape, the limits come from timing every mode (see ConvolutionCheck).<br/>
+     * With the plain java kernels WINOGRAD wins for 3x3 filters (0.14 ms against 0.20 ms for IM2COL on 8x26x26).
+     * The vector kernels speed up the matrix multiplications of IM2COL but not the winograd transforms, so then
+     * IM2COL wins (0.08 ms against 0.14 ms).<br/>
+     * FFT only wins for big filters on big images (15x15 on 128x128: 6.8 ms against 16 ms DIRECT and 31 ms IM2COL),
+     * for 11x11 on 28x28 or 7x7 on 128x128 IM2COL and DIRECT are still faster.
+     */
+    public static ConvolutionMode choose(int filterSize, int stepSize, int inRows, int inCols, boolean vectorKernels){
+        if(stepSize == 1 && filterSize == 3)
+            return vectorKernels ? IM2COL : WINOGRAD;
+
+        if(stepSize == 1 && filterSize >= FFT_FILTER_SIZE && inRows*inCols >= FFT_IMAGE_SIZE)
+            return FFT;
+
+        return IM2COL;
+    }
+}
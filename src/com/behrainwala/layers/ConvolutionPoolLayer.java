@@ -0,0 +1,368 @@
+package com.behrainwala.layers;
+
+import com.behrainwala.data.Kernels;
+import com.behrainwala.data.Parallel;
+import com.behrainwala.data.Tensor;
+
+import java.util.Arrays;
+
+/**
+ * <b>NOTE:</b><br/>
+ * A {@link ConvolutionLayer} followed by a {@link MaxPoolLayer} in one layer, {@link com.behrainwala.Network.NetworkBuilder}
+ * puts one in for every such pair. The results are the same as those of the two layers.<br/>
+ *<br/>
+ * In the DIRECT mode the convolution is never written out in full: for every channel each row a window of the pool
+ * needs is worked out into one row buffer and goes through the first pass of {@link MaxPooling} straight away, while it
+ * is still in the cache, before the next row overwrites it. Convolution rows no window reaches are not worked out at all.
+ * The other modes work out the whole convolution first (their transforms and GEMMs go over all of it at once) and are
+ * pooled from there.<br/>
+ *<br/>
+ * The max of every window is kept as one index into its convolution channel, r*columns+c, or -1 when no value was
+ * above 0. Going back only the winners get an error, so the DIRECT backward pass of the convolution only goes
+ * through them instead of over every position of the convolution (on the vector kernels only when the winners are few
+ * enough, see VECTOR_SPARSITY).<br/>
+ *<br/>
+ * A batch goes through one sample at a time, every sample split over the channels like a single one. Only the outputs
+ * and the winners are kept for the whole batch, the convolution and its errors are worked out again for every
+ * sample.<br/>
+ */
+public class ConvolutionPoolLayer extends Layer {
+    //the vector kernels go over whole rows of errors faster than the scalar loop goes over the winners unless at most
+    //one in this many values is a winner, with 2x2 windows of step 2 (one in 4) the rows took about half the time
+    private static final int VECTOR_SPARSITY = 8;
+
+    private final ConvolutionLayer _convolution;
+    private final int _windowSize;
+    private final int _stepSize;
+
+    //the shape of the convolution coming out of _convolution
+    private final int _channels;
+    private final int _convRows;
+    private final int _convCols;
+
+    //kept between samples so a training step does not allocate anything, _output and _argmax have room for the whole
+    //batch, the winners of sample b start at b*getOutputElements()
+    private Tensor _output;
+    private int[] _argmax;
+    private final double[] _convRow;
+    private final MaxPooling[] _pooling;
+    private final Tensor _convError;
+    private final int[] _errorColumns;
+    private final int[] _errorRows;
+
+    //every channel is pooled on its own, so both passes are split over the channels (see Parallel)
+    private Tensor _lastInput;
+    private Tensor _lastInputs;
+    private Tensor _lastConvolution;
+    private Tensor _lastError;
+    private Tensor _batchDLdX;
+    //the sample of the batch the passes are working on
+    private int _sample;
+    private final Parallel.Body _poolChannels = this::poolChannels;
+    private final Parallel.Body _errorChannels = this::errorChannels;
+
+    /**
+     * Takes over the convolution, filters and all, the pool only gives its window and step size.
+     */
+    public ConvolutionPoolLayer(ConvolutionLayer convolution, MaxPoolLayer pool) {
+        _convolution = convolution;
+        _windowSize = pool.getWindowSize();
+        _stepSize = pool.getStepSize();
+
+        _channels = convolution.getOutputLength();
+        _convRows = convolution.getOutputRows();
+        _convCols = convolution.getOutputCols();
+
+        int[] poolInput = pool.getInputShape();
+        if(poolInput[0] != _channels || poolInput[1] != _convRows || poolInput[2] != _convCols)
+            throw new IllegalArgumentException("The pool takes "+poolInput[0]+"x"+poolInput[1]+"x"+poolInput[2]
+                    +" but the convolution gives "+_channels+"x"+_convRows+"x"+_convCols);
+
+        _output = new Tensor(_channels, getOutputRows(), getOutputCols());
+        _argmax = new int[getOutputElements()];
+        _convRow = new double[_channels*_convCols];
+        _convError = new Tensor(_channels, _convRows, _convCols);
+        _errorColumns = new int[_convError.size()];
+        _errorRows = new int[_channels*(_convRows+1)];
+
+        _pooling = new MaxPooling[_channels];
+        for(int o=0; o<_channels; o++)
+            _pooling[o] = new MaxPooling(_windowSize, _stepSize, _convRows, _convCols);
+    }
+
+    ConvolutionLayer getConvolution() {
+        return _convolution;
+    }
+
+    public ConvolutionMode getMode() {
+        return _convolution.getMode();
+    }
+
+    /**
+     * See {@link ConvolutionLayer#setMode}, only DIRECT is worked out row by row.
+     */
+    public void setMode(ConvolutionMode mode) {
+        _convolution.setMode(mode);
+    }
+
+    @Override
+    public void setKernels(Kernels kernels) {
+        super.setKernels(kernels);
+        _convolution.setKernels(kernels);
+    }
+
+    @Override
+    public void setParallel(boolean parallel) {
+        super.setParallel(parallel);
+        _convolution.setParallel(parallel);
+    }
+
+    @Override
+    public void setRecordingUpdates(boolean recording) {
+        super.setRecordingUpdates(recording);
+        _convolution.setRecordingUpdates(recording);
+    }
+
+    private Tensor forwardPass(Tensor inputs, int batchSize){
+        _lastInputs = inputs;
+        _output = batchTensor(_output, batchSize, _channels, getOutputRows(), getOutputCols());
+        if(_argmax.length < _output.size())
+            _argmax = new int[_output.size()];
+
+        for(int b=0; b<batchSize; b++){
+            _sample = b;
+            forwardSample(batchSize == 1 ? inputs : _convolution.inputSample(inputs, b));
+        }
+
+        return _output;
+    }
+
+    private void forwardSample(Tensor input){
+        _lastInput = input;
+
+        if(getMode() == ConvolutionMode.DIRECT){
+            _lastConvolution = null;
+            _convolution.setLastInput(input);
+        }
+        else
+            _lastConvolution = _convolution.convolutionForwardPass(input);
+
+        long work = (long)_convRows*_convCols*_convolution.getFilterSize()*_convolution.getFilterSize()
+                *_convolution.getFilterDepth();
+        forRange(_channels, work, _poolChannels);
+    }
+
+    private void poolChannels(int from, int to){
+        for(int o=from; o<to; o++)
+            pool(o);
+    }
+
+    /**
+     * Pools channel o, output (r,c) is the max of the window at convolution row r*stepSize and column c*stepSize.
+     * Without a whole convolution to read from, every row a window needs is worked out into the row buffer of the
+     * channel just before it is pooled.
+     */
+    private void pool(int o){
+        MaxPooling pooling = _pooling[o];
+
+        for(int r=0; r<_convRows; r++){
+            if(!pooling.isUsed(r))
+                continue;
+
+            if(_lastConvolution == null){
+                _convolution.convolveOutputRow(_lastInput, o, r, _convRow, o*_convCols);
+                pooling.poolRow(_convRow, o*_convCols, r);
+            }
+            else
+                pooling.poolRow(_lastConvolution.data(), _lastConvolution.index(o, r, 0), r);
+        }
+
+        int pooled = getOutputRows()*getOutputCols();
+        int channel = _sample*_channels + o;
+        pooling.poolColumns(_output.data(), _output.index(channel, 0, 0), _argmax, channel*pooled);
+    }
+
+    @Override
+    public double[] getOutput(Tensor input) throws Exception {
+        if(input.size() != _convolution.getInputElements())
+            throw new Exception("Expected "+_convolution.getInputElements()+" inputs but got "+input.size());
+
+        Tensor output = forwardPass(input, 1);
+
+        if(get_nextLayer()!=null)
+            return get_nextLayer().getOutput(output);
+        else
+            throw new Exception("This cannot be the last layer");
+    }
+
+    @Override
+    public double[] getOutputs(Tensor inputs, int batchSize) throws Exception {
+        if(inputs.size() != batchSize*_convolution.getInputElements())
+            throw new Exception("Expected "+batchSize+"x"+_convolution.getInputElements()+" inputs but got "+inputs.size());
+
+        Tensor outputs = forwardPass(inputs, batchSize);
+
+        if(get_nextLayer()!=null)
+            return get_nextLayer().getOutputs(outputs, batchSize);
+        else
+            throw new Exception("This cannot be the last layer");
+    }
+
+    /**
+     * Passes the errors to the winners of their windows, and then back through the convolution.
+     */
+    @Override
+    public void backPropagation(Tensor dLdO) {
+        if(dLdO.size() != getOutputElements())
+            throw new IllegalArgumentException("Expected "+getOutputElements()+" errors but got "+dLdO.size());
+
+        _lastError = dLdO;
+        _sample = 0;
+        forRange(_channels, (long)_convRows*_convCols, _errorChannels);
+
+        boolean sparse = isSparse();
+        Tensor dLdX = _convolution.backward(_convError, sparse ? _errorColumns : null, sparse ? _errorRows : null,
+                get_previousLayer()!=null);
+
+        if(get_previousLayer()!=null)
+            get_previousLayer().backPropagation(dLdX);
+    }
+
+    /**
+     * Passes the errors of every sample to the winners of its windows and adds up the gradients of the convolution for
+     * it, one sample after the other.
+     */
+    @Override
+    public void backPropagation(Tensor dLdO, int batchSize) {
+        if(dLdO.size() != batchSize*getOutputElements())
+            throw new IllegalArgumentException("Expected "+batchSize+"x"+getOutputElements()+" errors but got "+dLdO.size());
+
+        boolean inputGradient = get_previousLayer()!=null;
+        if(inputGradient)
+            _batchDLdX = _convolution.inputBatch(_batchDLdX, batchSize);
+
+        _lastError = dLdO;
+        for(int b=0; b<batchSize; b++){
+            _sample = b;
+            forRange(_channels, (long)_convRows*_convCols, _errorChannels);
+
+            boolean sparse = isSparse();
+            _convolution.addGradients(_convolution.inputSample(_lastInputs, b), _convError,
+                    sparse ? _errorColumns : null, sparse ? _errorRows : null,
+                    inputGradient ? _convolution.inputSample(_batchDLdX, b) : null);
+        }
+
+        if(inputGradient)
+            get_previousLayer().backPropagation(_batchDLdX, batchSize);
+    }
+
+    @Override
+    public void applyGradients(int samples) {
+        _convolution.applyGradients(samples);
+    }
+
+    @Override
+    public double[] copyWeights() {
+        return _convolution.copyWeights();
+    }
+
+    @Override
+    public void restoreWeights(double[] weights) {
+        _convolution.restoreWeights(weights);
+    }
+
+    @Override
+    public UpdateLoss compareUpdates(double[] start) {
+        return _convolution.compareUpdates(start);
+    }
+
+    @Override
+    public Layer replicate() {
+        return withSettings(new ConvolutionPoolLayer((ConvolutionLayer)_convolution.replicate(),
+                new MaxPoolLayer(_stepSize, _windowSize, _channels, _convRows, _convCols)));
+    }
+
+    @Override
+    public void reduceGradients(Layer replica) {
+        _convolution.reduceGradients(((ConvolutionPoolLayer)replica)._convolution);
+    }
+
+    /**
+     * Whether the DIRECT backward pass only goes through the winners, see VECTOR_SPARSITY.
+     */
+    private boolean isSparse(){
+        return getMode() == ConvolutionMode.DIRECT
+                && (getKernels() == Kernels.SCALAR || winners()*VECTOR_SPARSITY <= _convError.size());
+    }
+
+    /**
+     * Adds the error of every output of the channels from to to of the current sample, in order, to the winner of its window. Then lists the
+     * columns that got an error in every row of the convolution, see {@link ConvolutionLayer#backward}.
+     */
+    private void errorChannels(int from, int to){
+        double[] error = _lastError.data();
+        double[] convError = _convError.data();
+        int pooled = getOutputRows()*getOutputCols();
+
+        for(int o=from; o<to; o++){
+            int base = _convError.index(o, 0, 0);
+            Arrays.fill(convError, base, base+_convRows*_convCols, 0);
+
+            int channel = _sample*_channels + o;
+            int e = _lastError.offset() + channel*pooled;
+            for(int k=channel*pooled; k<(channel+1)*pooled; k++, e++){
+                if(_argmax[k] != -1)
+                    convError[base + _argmax[k]] += error[e];
+            }
+
+            int n = base;
+            for(int r=0; r<_convRows; r++){
+                _errorRows[o*(_convRows+1) + r] = n;
+
+                for(int c=0; c<_convCols; c++){
+                    if(convError[base + r*_convCols + c] != 0)
+                        _errorColumns[n++] = c;
+                }
+            }
+            _errorRows[o*(_convRows+1) + _convRows] = n;
+        }
+    }
+
+    /**
+     * The number of convolution values that got an error.
+     */
+    private int winners(){
+        int winners = 0;
+        for(int o=0; o<_channels; o++)
+            winners += _errorRows[o*(_convRows+1) + _convRows] - _errorRows[o*(_convRows+1)];
+        return winners;
+    }
+
+    @Override
+    public int getOutputLength() {
+        return _channels;
+    }
+
+    @Override
+    public int getOutputRows() {
+        return (_convRows-_windowSize)/_stepSize + 1;
+    }
+
+    @Override
+    public int getOutputCols() {
+        return (_convCols-_windowSize)/_stepSize + 1;
+    }
+
+    @Override
+    public int getOutputElements() {
+        return _channels*getOutputRows()*getOutputCols();
+    }
+
+    /**
+     * The shape of the layer, e.g. "ConvolutionPoolLayer of ConvolutionLayer 1x28x28 8 filters 5x5 step 1, pool 3 step 2".
+     */
+    @Override
+    public String toString() {
+        return "ConvolutionPoolLayer of "+_convolution+", pool "+_windowSize+" step "+_stepSize;
+    }
+}
@@ -0,0 +1,253 @@
+package com.behrainwala.layers;
+
+import com.behrainwala.data.Tensor;
+
+import java.util.Arrays;
+
+/**
+ * <b>NOTE:</b><br/>
+ * The forward pass of a {@link ConvolutionLayer} through the fast fourier transform, for big filters and images.<br/>
+ *<br/>
+ * The input and the filters are padded with zeros to N x N, N the next power of 2 of the biggest input side.
+ * Multiplying the transform of an input channel by the complex conjugate of the transform of a filter and transforming
+ * back gives their circular cross correlation:<br/>
+ * out[r][c] = sum of in[(r+x) mod N][(c+y) mod N]*filter[x][y]<br/>
+ * which is the convolution of the layer for every r &lt;= inRows-filterSize, as those never wrap around.<br/>
+ *<br/>
+ * Every input channel and filter is transformed once, so a pass costs about (inLength*(numFilters+1) + numFilters)
+ * transforms of N^2 log N instead of filterSize^2 multiplications per output value (inLength+numFilters when the
+ * layer sums over the channels). With a step size above 1 only
+ * every step'th value of the result is used.<br/>
+ * The rows of the padding are all 0 going in, and only the output rows are needed coming out, so those rows are
+ * skipped: going in the rows are transformed before the columns, coming out the columns before the rows.<br/>
+ */
+final class FftConvolution {
+    private final int _inLength;
+    private final int _inRows;
+    private final int _inCols;
+    private final int _numFilters;
+    private final int _filterSize;
+    private final int _stepSize;
+    private final int _outRows;
+    private final int _outCols;
+    //channels of a group are summed into the same outputs, every group has its own outputs
+    private final int _groups;
+    private final int _groupChannels;
+
+    private final int _n;
+    private final int _log;
+    private final double[] _cos;
+    private final double[] _sin;
+    private final int[] _reverse;
+
+    //the transforms of every filter (every channel of it when summing), real and imaginary part, N x N each
+    private final double[] _filterRe;
+    private final double[] _filterIm;
+
+    //the transforms of every input channel
+    private final double[] _inputRe;
+    private final double[] _inputIm;
+    private final double[] _re;
+    private final double[] _im;
+    private final double[] _swap;
+
+    FftConvolution(int inLength, int inRows, int inCols, int numFilters, int filterSize, int stepSize, boolean sumChannels) {
+        _inLength = inLength;
+        _inRows = inRows;
+        _inCols = inCols;
+        _numFilters = numFilters;
+        _filterSize = filterSize;
+        _stepSize = stepSize;
+        _outRows = (inRows-filterSize)/stepSize+1;
+        _outCols = (inCols-filterSize)/stepSize+1;
+        _groups = sumChannels ? 1 : inLength;
+        _groupChannels = sumChannels ? inLength : 1;
+
+        _n = Math.max(2, Integer.highestOneBit(Math.max(inRows, inCols)-1) << 1);
+        _log = Integer.numberOfTrailingZeros(_n);
+
+        _cos = new double[_n/2];
+        _sin = new double[_n/2];
+        for(int k=0; k<_n/2; k++){
+            _cos[k] = Math.cos(2*Math.PI*k/_n);
+            _sin[k] = -Math.sin(2*Math.PI*k/_n);
+        }
+
+        _reverse = new int[_n];
+        for(int k=0; k<_n; k++)
+            _reverse[k] = Integer.reverse(k) >>> (32-_log);
+
+        _filterRe = new double[numFilters*_groupChannels*_n*_n];
+        _filterIm = new double[numFilters*_groupChannels*_n*_n];
+        _inputRe = new double[inLength*_n*_n];
+        _inputIm = new double[inLength*_n*_n];
+        _re = new double[_n*_n];
+        _im = new double[_n*_n];
+        _swap = new double[_n];
+    }
+
+    /**
+     * Transforms every filter (every channel of it when summing), this has to be called again every time the filters
+     * change.
+     */
+    void setFilters(Tensor filters){
+        int size = _n*_n;
+
+        for(int f=0; f<filters.channels(); f++){
+            Arrays.fill(_re, 0);
+            Arrays.fill(_im, 0);
+
+            for(int x=0; x<_filterSize; x++)
+                for(int y=0; y<_filterSize; y++)
+                    _re[x*_n + y] = filters.get(f, x, y);
+
+            //the rows after the filter are 0 and stay 0
+            for(int r=0; r<_filterSize; r++)
+                transform(_re, _im, r*_n, false);
+            transformColumns(_re, _im, 0, false);
+
+            System.arraycopy(_re, 0, _filterRe, f*size, size);
+            System.arraycopy(_im, 0, _filterIm, f*size, size);
+        }
+    }
+
+    /**
+     * Writes the convolution of every input channel with every filter into output, channel i*numFilters+f, or the
+     * sums over the channels into channel f. When summing, the products are added up before transforming back, so there
+     * is one transform back per filter instead of one per channel and filter.
+     */
+    void forward(Tensor input, Tensor output){
+        int size = _n*_n;
+        double scale = 1.0/size;
+
+        Arrays.fill(_inputRe, 0);
+        Arrays.fill(_inputIm, 0);
+
+        for(int i=0; i<_inLength; i++){
+            int channel = input.offset() + i*_inRows*_inCols;
+            int transform = i*size;
+
+            for(int r=0; r<_inRows; r++)
+                System.arraycopy(input.data(), channel + r*_inCols, _inputRe, transform + r*_n, _inCols);
+
+            for(int r=0; r<_inRows; r++)
+                transform(_inputRe, _inputIm, transform + r*_n, false);
+            transformColumns(_inputRe, _inputIm, transform, false);
+        }
+
+        for(int g=0; g<_groups; g++){
+            for(int f=0; f<_numFilters; f++){
+                Arrays.fill(_re, 0);
+                Arrays.fill(_im, 0);
+
+                //input * conjugate(filter), over every channel of the group
+                for(int j=0; j<_groupChannels; j++){
+                    int in = (g*_groupChannels+j)*size;
+                    int filter = (f*_groupChannels+j)*size;
+
+                    for(int k=0; k<size; k++){
+                        double a = _inputRe[in+k], b = _inputIm[in+k];
+                        double c = _filterRe[filter+k], d = _filterIm[filter+k];
+                        _re[k] += a*c + b*d;
+                        _im[k] += b*c - a*d;
+                    }
+                }
+
+                //back through the columns first, so only the rows that are used have to be transformed
+                transformColumns(_re, _im, 0, true);
+
+                int out = g*_numFilters+f;
+                for(int r=0; r<_outRows; r++){
+                    int row = r*_stepSize*_n;
+                    transform(_re, _im, row, true);
+
+                    int index = output.index(out, r, 0);
+                    for(int c=0; c<_outCols; c++)
+                        output.data()[index+c] = _re[row + c*_stepSize]*scale;
+                }
+            }
+        }
+    }
+
+    /**
+     * Iterative radix 2 transform of the N values of the row at offset, in place. The inverse is not scaled.
+     */
+    private void transform(double[] re, double[] im, int offset, boolean inverse){
+        for(int k=0; k<_n; k++){
+            int j = _reverse[k];
+            if(j > k){
+                int a = offset + k, b = offset + j;
+                double t = re[a]; re[a] = re[b]; re[b] = t;
+                t = im[a]; im[a] = im[b]; im[b] = t;
+            }
+        }
+
+        for(int length=2; length<=_n; length<<=1){
+            int half = length/2;
+            int step = _n/length;
+
+            for(int start=0; start<_n; start+=length){
+                for(int k=0; k<half; k++){
+                    double wr = _cos[k*step];
+                    double wi = inverse ? -_sin[k*step] : _sin[k*step];
+
+                    int a = offset + start + k;
+                    int b = a + half;
+
+                    double xr = re[b]*wr - im[b]*wi;
+                    double xi = re[b]*wi + im[b]*wr;
+
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+
+    /**
+     * The same transform on every column at once: whole rows are swapped and combined, so the inner loop always
+     * goes along a row instead of jumping N values for every step down a column.
+     */
+    private void transformColumns(double[] re, double[] im, int offset, boolean inverse){
+        for(int k=0; k<_n; k++){
+            int j = _reverse[k];
+            if(j > k){
+                swapRows(re, offset, k, j);
+                swapRows(im, offset, k, j);
+            }
+        }
+
+        for(int length=2; length<=_n; length<<=1){
+            int half = length/2;
+            int step = _n/length;
+
+            for(int start=0; start<_n; start+=length){
+                for(int k=0; k<half; k++){
+                    double wr = _cos[k*step];
+                    double wi = inverse ? -_sin[k*step] : _sin[k*step];
+
+                    int a = offset + (start+k)*_n;
+                    int b = a + half*_n;
+
+                    for(int c=0; c<_n; c++){
+                        double xr = re[b+c]*wr - im[b+c]*wi;
+                        double xi = re[b+c]*wi + im[b+c]*wr;
+
+                        re[b+c] = re[a+c] - xr;
+                        im[b+c] = im[a+c] - xi;
+                        re[a+c] += xr;
+                        im[a+c] += xi;
+                    }
+                }
+            }
+        }
+    }
+
+    private void swapRows(double[] values, int offset, int a, int b){
+        System.arraycopy(values, offset + a*_n, _swap, 0, _n);
+        System.arraycopy(values, offset + b*_n, values, offset + a*_n, _n);
+        System.arraycopy(_swap, 0, values, offset + b*_n, _n);
+    }
+}
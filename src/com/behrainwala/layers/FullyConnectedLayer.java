@@ -1,14 +1,43 @@
 package com.behrainwala.layers;
 
-import java.util.List;
+import com.behrainwala.data.Gemm;
+import com.behrainwala.data.Kernels;
+import com.behrainwala.data.Parallel;
+import com.behrainwala.data.Tensor;
+
+import java.util.Arrays;
 import java.util.Random;
 
 public class FullyConnectedLayer extends Layer{
-    private final double[][] _weights;
+    //one flat array, weight (i,j) of input i and output j is at i*_outputLength + j BY_INPUT and at
+    //j*_inputLength + i BY_OUTPUT (see WeightLayout)
+    private double[] _weights;
+    private WeightLayout _layout = WeightLayout.BY_INPUT;
     private final int _inputLength;
     private final int _outputLength;
-    private double[] lastZ; //should be the size of _outputLength
-    private double[] lastInput; //should be the size of _inputLength
+    private final double[] lastZ; //should be the size of _outputLength
+    private Tensor lastInput; //should be the size of _inputLength
+
+    //kept between samples so a training step does not allocate anything
+    private final double[] _output;
+    private final Tensor _outputTensor;
+    private final double[] _dLdZ;
+    private final double[] _dLdX;
+    private final Tensor _dLdXTensor;
+
+    //the batches (see getOutputs), every buffer has a row of _outputLength or _inputLength values per sample and is only
+    //allocated once the first batch comes in, _gradients adds up dL/dW in the layout of the weights (also what the
+    //single samples change while recording, see Layer.setRecordingUpdates)
+    private Tensor _lastInputs;
+    private Tensor _batchZ;
+    private Tensor _batchOutput;
+    private Tensor _batchDLdZ;
+    private Tensor _batchDLdX;
+    private double[] _gradients;
+
+    //the forward pass is split over the outputs and the backward pass over the inputs (see Parallel)
+    private final Parallel.Body _forwardOutputs = this::forwardOutputs;
+    private final Parallel.Body _backwardInputs = this::backwardInputs;
 
     private final long SEED;
     private final double LEARNING_RATE;
@@ -16,51 +45,116 @@ public class FullyConnectedLayer extends Layer{
     private static final double LEEK = 0.01;
 
     public FullyConnectedLayer(int inLenght, int outLength, long seed, double learningRate){
+        this(inLenght, outLength, seed, learningRate, new double[inLenght*outLength]);
+        setRandomWeights();
+    }
+
+    /**
+     * A layer on the given weights, see {@link #replicate}.
+     */
+    private FullyConnectedLayer(int inLenght, int outLength, long seed, double learningRate, double[] weights){
         this._inputLength = inLenght;
         this._outputLength = outLength;
 
-        this._weights = new double[inLenght][outLength];
+        this._weights = weights;
         this.SEED = seed;
         this.LEARNING_RATE = learningRate;
 
-        setRandomWeights();
+        lastZ = new double[outLength];
+        _output = new double[outLength];
+        _outputTensor = Tensor.vector(_output);
+        _dLdZ = new double[outLength];
+        _dLdX = new double[inLenght];
+        _dLdXTensor = Tensor.vector(_dLdX);
     }
 
-    private double[] fullyConnectedForwardPass(double[] input){
-        lastInput = input;
+    public WeightLayout getLayout() {
+        return _layout;
+    }
 
-        double[] out = new double[_outputLength];
-        lastZ = new double[_outputLength];
+    /**
+     * Moves the weights over to the layout, the outputs stay the same (up to the last bits on the vector kernels).
+     * AUTO is replaced by the layout it picks for this layer, which depends on the kernels, so set those first.
+     */
+    public void setLayout(WeightLayout layout){
+        if(layout == WeightLayout.AUTO)
+            layout = WeightLayout.choose(_outputLength, getKernels() != Kernels.SCALAR);
 
+        if(layout == _layout)
+            return;
 
-        for(int i = 0; i < _inputLength; i++){
-            for(int j = 0; j < _outputLength; j++){
-                lastZ[j] += input[i]*_weights[i][j];
-                out[j] = reLu(lastZ[j]);
-            }
+        _weights = transpose(_weights);
+        if(_gradients != null)
+            _gradients = transpose(_gradients);
+        _layout = layout;
+    }
+
+    /**
+     * BY_INPUT is inputs x outputs and BY_OUTPUT outputs x inputs, so either way moving to the other is a transpose.
+     */
+    private double[] transpose(double[] values){
+        int rows = _layout == WeightLayout.BY_INPUT ? _inputLength : _outputLength;
+        int cols = _layout == WeightLayout.BY_INPUT ? _outputLength : _inputLength;
+        double[] transposed = new double[values.length];
+
+        for(int r=0; r<rows; r++){
+            for(int c=0; c<cols; c++)
+                transposed[c*rows + r] = values[r*cols + c];
         }
 
+        return transposed;
+    }
 
-        return out;
+    /**
+     * The input is read as one vector straight from the tensor's array, whatever shape the previous layer gave it.
+     */
+    private double[] fullyConnectedForwardPass(Tensor input){
+        lastInput = input;
+        forRange(_outputLength, _inputLength, _forwardOutputs);
+
+        return _output;
     }
 
+    /**
+     * Works out the outputs from to to. Every output adds up the inputs in the same order whatever part of the
+     * outputs it is in, so they can be done on any number of threads.
+     */
+    private void forwardOutputs(int from, int to){
+        double[] in = lastInput.data();
+        int offset = lastInput.offset();
+
+        if(_layout == WeightLayout.BY_OUTPUT){
+            //z = row j . input, and its activation straight away while z is still in a register
+            for(int j = from; j < to; j++){
+                lastZ[j] = getKernels().dot(0, _weights, j*_inputLength, in, offset, _inputLength);
+                _output[j] = reLu(lastZ[j]);
+            }
+            return;
+        }
+
+        Arrays.fill(lastZ, from, to, 0);
 
+        //z += input[i] * weights[i], one row of the weights at a time, an input of 0 adds nothing
+        for(int i = 0; i < _inputLength; i++){
+            if(in[offset+i] != 0)
+                getKernels().axpy(in[offset+i], _weights, i*_outputLength + from, lastZ, from, to-from);
+        }
 
-    @Override
-    public double[] getOutput(List<double[][]> input) throws Exception {
-        return getOutput(matrixToVector(input));
+        for(int j = from; j < to; j++){
+            _output[j] = reLu(lastZ[j]);
+        }
     }
 
-    @Override
-    public double[] getOutput(double[] input) throws Exception {
-        double[] forwardPass = fullyConnectedForwardPass(input);
 
-        return get_nextLayer() !=null?get_nextLayer().getOutput(forwardPass):forwardPass;
-    }
 
     @Override
-    public void backPropagation(List<double[][]> dLdO) {
-        backPropagation(matrixToVector(dLdO));
+    public double[] getOutput(Tensor input) throws Exception {
+        if(input.size() != _inputLength)
+            throw new Exception("Expected "+_inputLength+" inputs but got "+input.size());
+
+        double[] forwardPass = fullyConnectedForwardPass(input);
+
+        return get_nextLayer() !=null?get_nextLayer().getOutput(_outputTensor):forwardPass;
     }
 
     /**
@@ -78,40 +172,220 @@ public class FullyConnectedLayer extends Layer{
      *      This would cause an issue where it will only recognise a particular image set only as the desired outputs.<br/>
      */
     @Override
-    public void backPropagation(double[] dL_dO) {
-        double[] dl_dx = new double[_inputLength];
-        double dO_dZ;
-        double dZ_dW;
-        double dL_dW;
-        double dZ_dX;
+    public void backPropagation(Tensor dLdO) {
+        if(dLdO.size() != _outputLength)
+            throw new IllegalArgumentException("Expected "+_outputLength+" errors but got "+dLdO.size());
+
+        double[] dL_dO = dLdO.data();
+        int o = dLdO.offset();
+
+        //dL_dO*dO_dZ is the same for every input, so it is worked out once per output
+        for (int j = 0; j < _outputLength; j++) {
+            _dLdZ[j] = dL_dO[o+j] * derivative_relu(lastZ[j]);
+        }
 
-        for(int k=0; k<_inputLength;  k++) {
+        if(isRecordingUpdates() && _gradients == null)
+            _gradients = new double[_weights.length];
 
-            double dl_dx_sum = 0;
+        forRange(_inputLength, 2L*_outputLength, _backwardInputs);
 
-            for (int j = 0; j < _outputLength; j++) {
-                dO_dZ = derivative_relu(lastZ[j]);
-                dZ_dW = lastInput[k];
+        if(get_previousLayer() !=null)//back propagation if there is a previous layer
+            get_previousLayer().backPropagation(_dLdXTensor);
+    }
 
-                dL_dW = dL_dO[j] * dO_dZ * dZ_dW; //this is the cost.
+    /**
+     * Updates the weights of the inputs from to to and works out their dL/dX, every input only touches its own weights.
+     * On the scalar kernels both layouts do the same multiplications and additions in the same order.<br/>
+     * A row whose update is 0 (an input of 0 BY_INPUT, an output without error BY_OUTPUT) is only read, which gives the
+     * same weights and dL/dX without writing them back, so Hogwild workers only write the weights their sample moves.
+     */
+    private void backwardInputs(int from, int to){
+        double[] input = lastInput.data();
+        int offset = lastInput.offset();
+
+        double[] dl_dx = _dLdX;
 
-                dZ_dX = _weights[k][j];
+        if(_layout == WeightLayout.BY_OUTPUT){
+            Arrays.fill(dl_dx, from, to, 0);
 
-                _weights[k][j] -= dL_dW * LEARNING_RATE;
-                //subtract the cost from the weights
-                // (multiply with a LEARNING_RATE to control how much you want the cost to quickly influence the NN)
+            //the rank-1 update W -= LEARNING_RATE * dL_dZ x input, a row at a time, each row first adding itself
+            //to dL/dX with the weights from before the update
+            for(int j=0; j<_outputLength; j++){
+                if(_dLdZ[j] == 0)
+                    continue;
 
-                //we need to now propagate this to the previous layer too.
-                //here the error is dz_dx and that is the previous wight (before correction)
-                if(get_previousLayer() !=null) //only do this calculation if there is a previous layer
-                    dl_dx_sum += dL_dO[j] * dO_dZ * dZ_dX;
+                getKernels().updateAndAxpy(_dLdZ[j], LEARNING_RATE, input, offset+from, _weights, j*_inputLength+from,
+                        dl_dx, from, to-from);
+                if(isRecordingUpdates())
+                    getKernels().axpy(_dLdZ[j], input, offset+from, _gradients, j*_inputLength+from, to-from);
+            }
+            return;
+        }
+
+        for(int k=from; k<to;  k++) {
+            double dZ_dW = input[offset+k];
+
+            if(dZ_dW == 0){
+                dl_dx[k] = getKernels().dot(0, _dLdZ, 0, _weights, k*_outputLength, _outputLength);
+                continue;
             }
 
-            dl_dx[k] = dl_dx_sum;
+            //dL_dW = dL_dZ * dZ_dW is the cost, it is subtracted from the weights
+            // (multiply with a LEARNING_RATE to control how much you want the cost to quickly influence the NN)
+            //we need to now propagate this to the previous layer too.
+            //here the error is dz_dx and that is the previous wight (before correction)
+            dl_dx[k] = getKernels().updateAndDot(_dLdZ, 0, dZ_dW, LEARNING_RATE, _weights, k*_outputLength, _outputLength);
+            if(isRecordingUpdates())
+                getKernels().axpy(dZ_dW, _dLdZ, 0, _gradients, k*_outputLength, _outputLength);
         }
+    }
 
-        if(get_previousLayer() !=null)//back propagation if there is a previous layer
-            get_previousLayer().backPropagation(dl_dx);
+    /**
+     * The inputs of every sample are a row of X (batchSize x inputs), so all the outputs are one multiplication:
+     * Z = X*W, with W as inputs x outputs (BY_OUTPUT is the transpose of that). Every output adds up the same products
+     * in the same order as for a single sample.
+     */
+    @Override
+    public double[] getOutputs(Tensor inputs, int batchSize) throws Exception {
+        if(inputs.size() != batchSize*_inputLength)
+            throw new Exception("Expected "+batchSize+"x"+_inputLength+" inputs but got "+inputs.size());
+
+        _lastInputs = inputs;
+        _batchZ = batchTensor(_batchZ, batchSize, 1, 1, _outputLength);
+        _batchOutput = batchTensor(_batchOutput, batchSize, 1, 1, _outputLength);
+
+        double[] z = _batchZ.data();
+        double[] output = _batchOutput.data();
+        Gemm gemm = getKernels().gemm();
+
+        if(_layout == WeightLayout.BY_INPUT)
+            gemm.multiply(false, false, batchSize, _outputLength, _inputLength, 1, inputs.data(), inputs.offset(), _inputLength,
+                    _weights, 0, _outputLength, 0, z, 0, _outputLength);
+        else
+            gemm.multiply(false, true, batchSize, _outputLength, _inputLength, 1, inputs.data(), inputs.offset(), _inputLength,
+                    _weights, 0, _inputLength, 0, z, 0, _outputLength);
+
+        for(int k=0; k<batchSize*_outputLength; k++)
+            output[k] = reLu(z[k]);
+
+        return get_nextLayer() !=null?get_nextLayer().getOutputs(_batchOutput, batchSize):output;
+    }
+
+    /**
+     * With dL/dZ of every sample as a row of E (batchSize x outputs), the gradient of the whole batch is X^T*E, which
+     * adds up the samples in order, and dL/dX is E*W^T.
+     */
+    @Override
+    public void backPropagation(Tensor dLdO, int batchSize) {
+        if(dLdO.size() != batchSize*_outputLength)
+            throw new IllegalArgumentException("Expected "+batchSize+"x"+_outputLength+" errors but got "+dLdO.size());
+
+        _batchDLdZ = batchTensor(_batchDLdZ, batchSize, 1, 1, _outputLength);
+
+        double[] dL_dO = dLdO.data();
+        double[] z = _batchZ.data();
+        double[] dLdZ = _batchDLdZ.data();
+        for(int k=0; k<batchSize*_outputLength; k++)
+            dLdZ[k] = dL_dO[dLdO.offset()+k] * derivative_relu(z[k]);
+
+        if(_gradients == null)
+            _gradients = new double[_weights.length];
+
+        Gemm gemm = getKernels().gemm();
+        double[] in = _lastInputs.data();
+        int offset = _lastInputs.offset();
+
+        if(_layout == WeightLayout.BY_INPUT)
+            gemm.multiply(true, false, _inputLength, _outputLength, batchSize, 1, in, offset, _inputLength,
+                    dLdZ, 0, _outputLength, 1, _gradients, 0, _outputLength);
+        else
+            gemm.multiply(true, false, _outputLength, _inputLength, batchSize, 1, dLdZ, 0, _outputLength,
+                    in, offset, _inputLength, 1, _gradients, 0, _inputLength);
+
+        if(get_previousLayer() == null)
+            return;
+
+        _batchDLdX = batchTensor(_batchDLdX, batchSize, 1, 1, _inputLength);
+        double[] dLdX = _batchDLdX.data();
+
+        if(_layout == WeightLayout.BY_INPUT)
+            gemm.multiply(false, true, batchSize, _inputLength, _outputLength, 1, dLdZ, 0, _outputLength,
+                    _weights, 0, _outputLength, 0, dLdX, 0, _inputLength);
+        else
+            gemm.multiply(false, false, batchSize, _inputLength, _outputLength, 1, dLdZ, 0, _outputLength,
+                    _weights, 0, _inputLength, 0, dLdX, 0, _inputLength);
+
+        get_previousLayer().backPropagation(_batchDLdX, batchSize);
+    }
+
+    @Override
+    public void applyGradients(int samples) {
+        if(_gradients == null)
+            return;
+
+        getKernels().axpy(-LEARNING_RATE/samples, _gradients, 0, _weights, 0, _weights.length);
+        Arrays.fill(_gradients, 0);
+    }
+
+    /**
+     * The replica shares the weights array, so the layout must not change after it is made.
+     */
+    @Override
+    public Layer replicate() {
+        FullyConnectedLayer replica = withSettings(new FullyConnectedLayer(_inputLength, _outputLength, SEED, LEARNING_RATE, _weights));
+        replica._layout = _layout;
+        return replica;
+    }
+
+    @Override
+    public void reduceGradients(Layer replica) {
+        double[] gradients = ((FullyConnectedLayer)replica)._gradients;
+        if(gradients == null)
+            return;
+
+        if(_gradients == null)
+            _gradients = new double[_weights.length];
+
+        getKernels().axpy(1, gradients, 0, _gradients, 0, _gradients.length);
+        Arrays.fill(gradients, 0);
+    }
+
+    @Override
+    public double[] copyWeights() {
+        return _weights.clone();
+    }
+
+    /**
+     * The weights have to be in the layout they were copied in.
+     */
+    @Override
+    public void restoreWeights(double[] weights) {
+        System.arraycopy(weights, 0, _weights, 0, _weights.length);
+    }
+
+    /**
+     * The recorded changes are dL/dW like the gradients of a batch, the weights moved by -LEARNING_RATE times them.
+     */
+    @Override
+    public UpdateLoss compareUpdates(double[] start) {
+        if(_gradients == null)
+            _gradients = new double[_weights.length];
+
+        double lost = 0;
+        double recorded = 0;
+
+        for(int i=0; i<_weights.length; i++){
+            double change = -LEARNING_RATE*_gradients[i];
+            lost += Math.abs(_weights[i] - start[i] - change);
+            recorded += Math.abs(change);
+        }
+
+        Arrays.fill(_gradients, 0);
+        return new UpdateLoss(lost, recorded);
+    }
+
+    double[] getWeights() {
+        return _weights;
     }
 
     @Override
@@ -139,7 +413,7 @@ public class FullyConnectedLayer extends Layer{
 
         for(int i=0; i<_inputLength; i++){
             for(int j=0; j<_outputLength; j++){
-                this._weights[i][j] = rand.nextGaussian();
+                this._weights[_layout == WeightLayout.BY_INPUT ? i*_outputLength + j : j*_inputLength + i] = rand.nextGaussian();
             }
         }
     }
@@ -155,4 +429,12 @@ public class FullyConnectedLayer extends Layer{
             return LEEK;
         else return 1;
     }
+
+    /**
+     * The shape of the layer, e.g. "FullyConnectedLayer 968 to 10".
+     */
+    @Override
+    public String toString() {
+        return "FullyConnectedLayer "+_inputLength+" to "+_outputLength;
+    }
 }
@@ -0,0 +1,172 @@
+package com.behrainwala.layers;
+
+import com.behrainwala.data.Parallel;
+import com.behrainwala.data.Tensor;
+
+import java.util.Arrays;
+
+/**
+ * <b>NOTE:</b><br/>
+ * The mean of every channel, so the output is channels x 1 x 1: a {@link FullyConnectedLayer} after it takes one
+ * value per channel instead of every value of the channel, which takes most of the weights out of it. Going back every
+ * input of a channel gets error/(rows*cols).<br/>
+ *<br/>
+ * Like the max pool a batch is pooled as one input with the channels of all its samples (see {@link MaxPoolLayer}).<br/>
+ */
+public class GlobalAveragePoolLayer extends Layer {
+
+    private final int _inLength;
+    private final int _inRows;
+    private final int _inCols;
+
+    //kept between samples so a training step does not allocate anything, with room for the channels of the biggest
+    //batch so far of which _channels are in use
+    private Tensor _output;
+    private Tensor _dLdX;
+    private int _channels;
+
+    //every channel is averaged on its own, so both passes are split over the channels (see Parallel)
+    private Tensor _lastInput;
+    private Tensor _lastError;
+    private final Parallel.Body _poolChannels = this::poolChannels;
+    private final Parallel.Body _errorChannels = this::errorChannels;
+
+    public GlobalAveragePoolLayer(int _inLength, int inRows, int inCols) {
+        this._inLength = _inLength;
+        _inRows = inRows;
+        _inCols = inCols;
+
+        setBatchSize(1);
+    }
+
+    /**
+     * Makes room for the channels of batchSize samples.
+     */
+    private void setBatchSize(int batchSize){
+        _channels = batchSize*_inLength;
+        _output = batchTensor(_output, batchSize, _inLength, 1, 1);
+        _dLdX = batchTensor(_dLdX, batchSize, _inLength, _inRows, _inCols);
+    }
+
+    private Tensor globalAveragePoolForwardPass(Tensor input, int batchSize){
+        setBatchSize(batchSize);
+        _lastInput = input;
+        forRange(_channels, (long)_inRows*_inCols, _poolChannels);
+
+        return _output;
+    }
+
+    /**
+     * Averages the channels from to to of the input (read straight from its array).
+     */
+    private void poolChannels(int from, int to){
+        double[] in = _lastInput.data();
+        int size = _inRows*_inCols;
+
+        for(int l=from; l<to; l++){
+            int channel = _lastInput.offset() + l*size;
+            double sum = 0;
+
+            for(int i=channel; i<channel+size; i++)
+                sum += in[i];
+
+            _output.set(l, 0, 0, sum/size);
+        }
+    }
+
+    @Override
+    public double[] getOutput(Tensor input) throws Exception {
+        if(input.size() != _inLength*_inRows*_inCols)
+            throw new Exception("Expected "+_inLength*_inRows*_inCols+" inputs but got "+input.size());
+
+        Tensor outputPool = globalAveragePoolForwardPass(input, 1);
+
+        if(get_nextLayer()!=null)
+            return get_nextLayer().getOutput(outputPool);
+        else
+            throw new Exception("This cannot be the last layer");
+    }
+
+    @Override
+    public double[] getOutputs(Tensor inputs, int batchSize) throws Exception {
+        if(inputs.size() != batchSize*_inLength*_inRows*_inCols)
+            throw new Exception("Expected "+batchSize+"x"+_inLength*_inRows*_inCols+" inputs but got "+inputs.size());
+
+        Tensor outputPool = globalAveragePoolForwardPass(inputs, batchSize);
+
+        if(get_nextLayer()!=null)
+            return get_nextLayer().getOutputs(outputPool, batchSize);
+        else
+            throw new Exception("This cannot be the last layer");
+    }
+
+    @Override
+    public void backPropagation(Tensor dLdO) {
+        if(dLdO.size() != getOutputElements())
+            throw new IllegalArgumentException("Expected "+getOutputElements()+" errors but got "+dLdO.size());
+
+        _lastError = dLdO;
+        forRange(_channels, (long)_inRows*_inCols, _errorChannels);
+
+        if(get_previousLayer()!=null)
+            get_previousLayer().backPropagation(_dLdX);
+    }
+
+    @Override
+    public void backPropagation(Tensor dLdO, int batchSize) {
+        if(dLdO.size() != batchSize*getOutputElements())
+            throw new IllegalArgumentException("Expected "+batchSize+"x"+getOutputElements()+" errors but got "+dLdO.size());
+
+        _lastError = dLdO;
+        forRange(_channels, (long)_inRows*_inCols, _errorChannels);
+
+        if(get_previousLayer()!=null)
+            get_previousLayer().backPropagation(_dLdX, batchSize);
+    }
+
+    /**
+     * Gives every input of the channels from to to the error of its channel, divided by the size of the channel.
+     */
+    private void errorChannels(int from, int to){
+        double[] error = _lastError.data();
+        int size = _inRows*_inCols;
+
+        for(int l=from; l<to; l++){
+            int plane = _dLdX.index(l, 0, 0);
+            Arrays.fill(_dLdX.data(), plane, plane+size, error[_lastError.offset()+l]/size);
+        }
+    }
+
+    @Override
+    public Layer replicate() {
+        return withSettings(new GlobalAveragePoolLayer(_inLength, _inRows, _inCols));
+    }
+
+    @Override
+    public int getOutputLength() {
+        return _inLength;
+    }
+
+    @Override
+    public int getOutputRows() {
+        return 1;
+    }
+
+    @Override
+    public int getOutputCols() {
+        return 1;
+    }
+
+    @Override
+    public int getOutputElements() {
+        return _inLength;
+    }
+
+    /**
+     * The shape of the layer, e.g. "GlobalAveragePoolLayer 8x24x24".
+     */
+    @Override
+    public String toString() {
+        return "GlobalAveragePoolLayer "+_inLength+"x"+_inRows+"x"+_inCols;
+    }
+}
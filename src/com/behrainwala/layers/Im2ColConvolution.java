@@ -0,0 +1,171 @@
+package com.behrainwala.layers;
+
+import com.behrainwala.data.Gemm;
+import com.behrainwala.data.Kernels;
+import com.behrainwala.data.Tensor;
+
+/**
+ * <b>NOTE:</b><br/>
+ * The convolutions of a {@link ConvolutionLayer} done as matrix multiplications.<br/>
+ *<br/>
+ * For every input channel the patches the filters are laid on are unrolled into a column matrix C of
+ * K = filterSize*filterSize rows and P = outRows*outCols columns: C[x*filterSize+y][r*outCols+c] is the input value at
+ * (r*stepSize+x, c*stepSize+y). With the filters as a F x K matrix W (filter f is row f):<br/>
+ * 1. forward -> O = W*C, the F x P output of the channel, which is exactly output channels i*F to i*F+F-1.<br/>
+ * 2. filter gradient -> dL/dW = dL/dO*C^T.<br/>
+ * 3. input gradient -> dL/dC = W^T*dL/dO, every value of it is then added back to the input position it was copied
+ *    from (col2im).<br/>
+ *<br/>
+ * When the layer sums over the channels the column matrices of all the channels are stacked into one of
+ * inLength*K rows, which they already are in memory, and every filter is a row of inLength*K values. The same three
+ * multiplications then give the F x P output of all the channels at once.<br/>
+ *<br/>
+ * The multiplications are done by the {@link Gemm} of the layer's kernels. Every output value adds up the same products
+ * in the same order as the direct convolution, so the forward pass and the filter gradient give the same results as
+ * {@link ConvolutionMode#DIRECT} with the scalar kernels.<br/>
+ */
+final class Im2ColConvolution {
+    private final int _inLength;
+    private final int _inRows;
+    private final int _inCols;
+    private final int _filterSize;
+    private final int _stepSize;
+    private final int _outRows;
+    private final int _outCols;
+    private final int _numFilters;
+
+    private final int _k;
+    private final int _p;
+    //every group of channels is multiplied with the filters on its own, all of them at once when summing
+    private final int _groups;
+    private final int _groupK;
+
+    //the column matrix of every input channel, kept from the forward pass for the filter gradient
+    private final double[] _columns;
+    private final double[] _columnGradient;
+    private final double[] _filterGradient;
+
+    Im2ColConvolution(int inLength, int inRows, int inCols, int filterSize, int stepSize, int numFilters, boolean sumChannels) {
+        _inLength = inLength;
+        _inRows = inRows;
+        _inCols = inCols;
+        _filterSize = filterSize;
+        _stepSize = stepSize;
+        _numFilters = numFilters;
+        _outRows = (inRows-filterSize)/stepSize+1;
+        _outCols = (inCols-filterSize)/stepSize+1;
+
+        _k = filterSize*filterSize;
+        _p = _outRows*_outCols;
+        _groups = sumChannels ? 1 : inLength;
+        _groupK = sumChannels ? inLength*_k : _k;
+
+        _columns = new double[inLength*_k*_p];
+        _columnGradient = new double[_groupK*_p];
+        _filterGradient = new double[numFilters*_groupK];
+    }
+
+    /**
+     * Writes the convolution of every input channel with every filter into output, channel i*numFilters+f, or the
+     * sums over the channels into channel f.
+     */
+    void forward(Tensor input, Tensor filters, Tensor output, Kernels kernels){
+        Gemm gemm = kernels.gemm();
+        unroll(input);
+
+        for(int g=0; g<_groups; g++){
+            //O = W * C
+            gemm.multiply(false, false, _numFilters, _p, _groupK, 1, filters.data(), filters.offset(), _groupK,
+                    _columns, g*_groupK*_p, _p, 0, output.data(), output.offset() + g*_numFilters*_p, _p);
+        }
+    }
+
+    /**
+     * Only unrolls the input into the column matrices, for when the forward pass was done another way but the backward
+     * pass is done here.
+     */
+    void unroll(Tensor input){
+        for(int i=0; i<_inLength; i++){
+            im2col(input.data(), input.offset() + i*_inRows*_inCols, i*_k*_p);
+        }
+    }
+
+    /**
+     * Adds -learningRate*dL/dW to filtersDelta and, when dLdX is not null, dL/dX to dLdX.
+     * The filters must still be the ones the forward pass used and the columns must be of its input
+     * (see {@link #unroll}).
+     */
+    void backward(Tensor dLdO, Tensor filters, Tensor filtersDelta, Tensor dLdX, double learningRate, Kernels kernels){
+        Gemm gemm = kernels.gemm();
+        double[] delta = filtersDelta.data();
+
+        for(int g=0; g<_groups; g++){
+            int columns = g*_groupK*_p;
+            int errors = dLdO.offset() + g*_numFilters*_p;
+
+            //dL/dW = dL/dO * C^T
+            gemm.multiply(false, true, _numFilters, _groupK, _p, 1, dLdO.data(), errors, _p,
+                    _columns, columns, _p, 0, _filterGradient, 0, _groupK);
+
+            //the gradient has the same layout as the filters
+            for(int k=0; k<_filterGradient.length; k++){
+                delta[filtersDelta.offset() + k] += _filterGradient[k]*(learningRate*-1);
+            }
+
+            if(dLdX == null)
+                continue;
+
+            //dL/dC = W^T * dL/dO
+            gemm.multiply(true, false, _groupK, _p, _numFilters, 1, filters.data(), filters.offset(), _groupK,
+                    dLdO.data(), errors, _p, 0, _columnGradient, 0, _p);
+
+            int channels = _groupK/_k;
+            for(int j=0; j<channels; j++){
+                col2im(dLdX.data(), dLdX.offset() + (g*channels+j)*_inRows*_inCols, j*_k*_p);
+            }
+        }
+    }
+
+    private void im2col(double[] in, int inOffset, int columns){
+        for(int x=0; x<_filterSize; x++){
+            for(int y=0; y<_filterSize; y++){
+                int row = columns + (x*_filterSize + y)*_p;
+
+                for(int r=0; r<_outRows; r++){
+                    int from = inOffset + (r*_stepSize + x)*_inCols + y;
+                    int to = row + r*_outCols;
+
+                    if(_stepSize == 1){
+                        System.arraycopy(in, from, _columns, to, _outCols);
+                        continue;
+                    }
+
+                    for(int c=0; c<_outCols; c++){
+                        _columns[to + c] = in[from + c*_stepSize];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds every value of the column gradient from gradientOffset on to the input position its column value was copied
+     * from.
+     */
+    private void col2im(double[] dLdX, int offset, int gradientOffset){
+        for(int x=0; x<_filterSize; x++){
+            for(int y=0; y<_filterSize; y++){
+                int row = gradientOffset + (x*_filterSize + y)*_p;
+
+                for(int r=0; r<_outRows; r++){
+                    int to = offset + (r*_stepSize + x)*_inCols + y;
+                    int from = row + r*_outCols;
+
+                    for(int c=0; c<_outCols; c++){
+                        dLdX[to + c*_stepSize] += _columnGradient[from + c];
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.behrainwala.layers;
+
+import com.behrainwala.data.Kernels;
+import com.behrainwala.data.MatrixUtility;
+import com.behrainwala.data.Tensor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <b>NOTE:</b><br/>
+ * Picks the fastest {@link KernelProvider} for every layer by timing all of them on the layer itself.<br/>
+ *<br/>
+ * Every candidate is installed and then runs forward and backward passes of the layer on its own for the run time
+ * (half a second by default), its fastest pass counts. The backward pass gets a small error that is not 0 anywhere,
+ * so every candidate does all of its work (a layer may skip what an error of 0 leaves as it is), and the weights are
+ * put back afterwards, so the layer trains from the same start whatever was tried on it.<br/>
+ *<br/>
+ * The choices are kept in a properties file, keyed by the shape of the layer (its toString), the number of threads and
+ * whether the vector module is there. A layer that is already in the file gets its provider without being timed again,
+ * delete the file to tune everything again, e.g. after adding a provider.<br/>
+ *<br/>
+ * Nothing is printed unless the autotuner is verbose, then every choice is printed with the times it was picked from,
+ * along with anything that went wrong on the way (a provider that could not run, a cache file that could not be read
+ * or written, a provider service that could not be loaded).<br/>
+ */
+public final class KernelAutotuner {
+    public static final long DEFAULT_RUN_MILLIS = 500;
+
+    //every candidate runs for at least the run time and at least WARMUP_RUNS+TIMED_RUNS passes
+    private static final int WARMUP_RUNS = 3;
+    private static final int TIMED_RUNS = 5;
+    private static final long SEED = 1;
+    //the size of the errors the backward passes are timed with
+    private static final double ERROR_SCALE = 1e-3;
+
+    //takes the place of the next layer while timing, so only the layer itself runs
+    private static final Layer SINK = new Sink();
+
+    private final Path _cacheFile;
+    private final long _runNanos;
+    private final boolean _verbose;
+    private final Properties _choices = new Properties();
+    private boolean _changed;
+
+    public KernelAutotuner(String cacheFile) {
+        this(cacheFile, DEFAULT_RUN_MILLIS, false);
+    }
+
+    /**
+     * Reads the choices of earlier runs from cacheFile if it is there, with a null file nothing is read or saved.
+     * Every candidate runs for runMillis on every layer that is not in the file, a shorter time tunes faster but the
+     * vector kernels may not be fully compiled by then (with 0 every candidate only runs a few passes).
+     */
+    public KernelAutotuner(String cacheFile, long runMillis, boolean verbose) {
+        if(runMillis < 0)
+            throw new IllegalArgumentException("The run time cannot be negative, not "+runMillis);
+
+        _cacheFile = cacheFile != null ? Path.of(cacheFile) : null;
+        _runNanos = runMillis*1_000_000L;
+        _verbose = verbose;
+
+        for(String error : KernelProviders.getLoadErrors())
+            log(error);
+
+        if(_cacheFile == null || !Files.exists(_cacheFile))
+            return;
+
+        try(InputStream in = Files.newInputStream(_cacheFile)){
+            _choices.load(in);
+        }catch(IOException e){
+            log(e.getMessage());
+        }
+    }
+
+    public long getRunMillis() {
+        return _runNanos/1_000_000L;
+    }
+
+    public boolean isVerbose() {
+        return _verbose;
+    }
+
+    /**
+     * Installs the fastest provider for the layer, which takes inputs values, and returns it.
+     */
+    public KernelProvider<?> tune(Layer layer, int inputs){
+        String key = key(layer);
+        String saved = _choices.getProperty(key);
+
+        if(saved != null){
+            KernelProvider<?> provider = KernelProviders.find(layer, saved);
+
+            if(provider != null){
+                KernelProviders.install(provider, layer);
+                log("Autotune "+layer+": "+saved+" (saved)");
+                return provider;
+            }
+        }
+
+        Layer next = layer.get_nextLayer();
+        Layer previous = layer.get_previousLayer();
+        layer.set_nextLayer(SINK);
+        layer.set_previousLayer(null);
+
+        Tensor input = randomInput(inputs);
+        Tensor error = timingError(layer.getOutputElements());
+
+        KernelProvider<?> best = null;
+        long bestTime = Long.MAX_VALUE;
+        StringBuilder times = new StringBuilder();
+
+        try {
+            for(KernelProvider<?> provider : KernelProviders.forLayer(layer)){
+                try {
+                    long time = timeProvider(provider, layer, input, error);
+
+                    times.append(times.length() > 0 ? ", " : "").append(provider.getName()).append(' ').append(millis(time));
+                    if(time < bestTime){
+                        best = provider;
+                        bestTime = time;
+                    }
+                }catch(Exception e){
+                    log(provider.getName()+" could not run "+layer+": "+e.getMessage());
+                }
+            }
+        } finally {
+            layer.set_nextLayer(next);
+            layer.set_previousLayer(previous);
+        }
+
+        if(best == null)
+            throw new IllegalStateException("No kernel provider could run "+layer);
+
+        KernelProviders.install(best, layer);
+        log("Autotune "+layer+": "+best.getName()+" ("+times+")");
+
+        _choices.setProperty(key, best.getName());
+        _changed = true;
+        return best;
+    }
+
+    /**
+     * Writes the choices to the file, if there is one and anything was tuned.
+     */
+    public void save(){
+        if(_cacheFile == null || !_changed)
+            return;
+
+        try(OutputStream out = Files.newOutputStream(_cacheFile)){
+            _choices.store(out, "Kernel providers picked by KernelAutotuner, delete this file to tune again");
+            _changed = false;
+        }catch(IOException e){
+            log(e.getMessage());
+        }
+    }
+
+    private void log(String message){
+        if(_verbose)
+            System.out.println(message);
+    }
+
+    private static String key(Layer layer){
+        return layer+" on "+ForkJoinPool.getCommonPoolParallelism()+" threads"
+                +(Kernels.isVectorAvailable() ? " with vector" : "");
+    }
+
+    /**
+     * Values between 0 and 1, like the scaled images.
+     */
+    static Tensor randomInput(int inputs){
+        Random random = new Random(SEED);
+        double[] values = new double[inputs];
+
+        for(int i=0; i<inputs; i++)
+            values[i] = random.nextDouble();
+
+        return Tensor.vector(values);
+    }
+
+    /**
+     * Random errors of about ERROR_SCALE, none of them 0. They are timed with their signs flipped on every other pass.
+     */
+    static Tensor timingError(int outputs){
+        Random random = new Random(SEED);
+        double[] values = new double[outputs];
+
+        for(int j=0; j<outputs; j++)
+            values[j] = (random.nextBoolean() ? 1 : -1)*ERROR_SCALE*(0.5 + random.nextDouble());
+
+        return Tensor.vector(values);
+    }
+
+    /**
+     * Installs the provider on the layer and times it, see {@link #time}. The backward passes move the weights, they
+     * are put back as they were before this returns.
+     */
+    long timeProvider(KernelProvider<?> provider, Layer layer, Tensor input, Tensor error) throws Exception {
+        KernelProviders.install(provider, layer);
+        double[] weights = layer.copyWeights();
+
+        try {
+            return time(layer, input, error);
+        } finally {
+            if(weights != null)
+                layer.restoreWeights(weights);
+        }
+    }
+
+    /**
+     * The fastest time in nanoseconds of a forward and backward pass after the warm up runs. The vector kernels in
+     * particular are only fast once the JIT has fully compiled them, which takes a lot more than a few passes, so
+     * the candidate keeps running for the run time and the fastest pass is the time it gets to once it is compiled.
+     */
+    private long time(Layer layer, Tensor input, Tensor error) throws Exception {
+        //every other pass goes back the way the one before it went, so the weights stay around where they started
+        //instead of pushing more and more relu outputs to 0, which the layers skip
+        Tensor back = Tensor.vector(new double[error.size()]);
+        MatrixUtility.axpy(-1, error, back);
+
+        long start = System.nanoTime();
+        long best = Long.MAX_VALUE;
+
+        for(int run=0; run<WARMUP_RUNS+TIMED_RUNS || System.nanoTime()-start < _runNanos; run++){
+            long runStart = System.nanoTime();
+            pass(layer, input, run%2 == 0 ? error : back);
+
+            if(run >= WARMUP_RUNS)
+                best = Math.min(best, System.nanoTime()-runStart);
+        }
+
+        return best;
+    }
+
+    private static void pass(Layer layer, Tensor input, Tensor error) throws Exception {
+        layer.getOutput(input);
+        layer.backPropagation(error);
+    }
+
+    private static String millis(long nanos){
+        return String.format(Locale.ROOT, "%.3f ms", nanos/1e6);
+    }
+
+    private static final class Sink extends Layer {
+        @Override
+        public double[] getOutput(Tensor input) {
+            return null;
+        }
+
+        @Override
+        public void backPropagation(Tensor dLdO) {
+        }
+
+        @Override
+        public double[] getOutputs(Tensor inputs, int batchSize) {
+            return null;
+        }
+
+        @Override
+        public void backPropagation(Tensor dLdO, int batchSize) {
+        }
+
+        @Override
+        public Layer replicate() {
+            return new Sink();
+        }
+
+        @Override
+        public int getOutputLength() {
+            return 0;
+        }
+
+        @Override
+        public int getOutputRows() {
+            return 0;
+        }
+
+        @Override
+        public int getOutputCols() {
+            return 0;
+        }
+
+        @Override
+        public int getOutputElements() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.behrainwala.layers;
+
+/**
+ * <b>NOTE:</b><br/>
+ * One way of running the passes of a type of layer: which {@link com.behrainwala.data.Kernels} it uses, whether it is
+ * split over threads and, for a convolution, which {@link ConvolutionMode}.<br/>
+ *<br/>
+ * The built in providers are listed by {@link KernelProviders}, more can be added as a service: a jar with the class
+ * name in META-INF/services/com.behrainwala.layers.KernelProvider. A provider only changes how a layer works out its
+ * results, never its weights, so it can be switched at any time between two passes.<br/>
+ */
+public interface KernelProvider<L extends Layer> {
+
+    /**
+     * The layers this provider can run, it is offered for every layer of this type.
+     */
+    Class<L> getLayerType();
+
+    /**
+     * The name the provider is logged and saved under, it has to be unique for its type of layer.
+     */
+    String getName();
+
+    /**
+     * Whether the provider can run this layer on this machine, e.g. the vector kernels need the module to be there.
+     */
+    boolean supports(L layer);
+
+    /**
+     * Switches the layer over to this provider.
+     */
+    void install(L layer);
+}
@@ -0,0 +1,218 @@
+package com.behrainwala.layers;
+
+import com.behrainwala.data.Kernels;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <b>NOTE:</b><br/>
+ * The {@link KernelProvider}s there are for every type of layer, the built in ones first and then the ones found
+ * as a service.<br/>
+ *<br/>
+ * +------------------------+----------------------------------------------------------------------------------+<br/>
+ * | naive                  | scalar kernels on one thread, the plain loops (what the *2 layers used to be)    |<br/>
+ * | parallel               | scalar kernels, split over the common ForkJoin pool                              |<br/>
+ * | simd                   | jdk.incubator.vector kernels on one thread                                       |<br/>
+ * | simd-parallel          | jdk.incubator.vector kernels, split over the common ForkJoin pool                |<br/>
+ * | blocked(-simd)         | convolutions only, {@link ConvolutionMode#IM2COL} on the cache blocked GEMM      |<br/>
+ * | winograd(-simd)        | convolutions only, {@link ConvolutionMode#WINOGRAD} (3x3 filters, step 1)        |<br/>
+ * | fft(-simd)             | convolutions only, {@link ConvolutionMode#FFT}                                   |<br/>
+ * | gemv(-simd)(-parallel) | fully connected only, {@link WeightLayout#BY_OUTPUT}                             |<br/>
+ * +------------------------+----------------------------------------------------------------------------------+<br/>
+ *<br/>
+ * The convolution providers are there for {@link ConvolutionLayer} and {@link ConvolutionPoolLayer}, the convolutions
+ * of naive, parallel and simd are {@link ConvolutionMode#DIRECT} and their fully connected layers
+ * {@link WeightLayout#BY_INPUT}. The pool layers do not use the kernels, so they only have naive and parallel. The
+ * parallel providers are only offered when the pool has more than one thread, the simd ones when the vector module is
+ * there. The GEMM of the blocked providers splits big products over the pool by itself.<br/>
+ */
+public final class KernelProviders {
+    public static final String NAIVE = "naive";
+
+    private static final List<KernelProvider<?>> BUILT_IN = builtIn();
+
+    //why a provider service could not be loaded, see KernelAutotuner
+    private static final List<String> LOAD_ERRORS = new ArrayList<>();
+    private static final List<KernelProvider<?>> LOADED = load();
+
+    private KernelProviders() {
+    }
+
+    private static List<KernelProvider<?>> builtIn(){
+        List<KernelProvider<?>> providers = new ArrayList<>();
+        addConvolutionProviders(providers, ConvolutionLayer.class);
+        addConvolutionProviders(providers, ConvolutionPoolLayer.class);
+
+        providers.add(new Standard<>(MaxPoolLayer.class, NAIVE, false, false, null, null));
+        providers.add(new Standard<>(MaxPoolLayer.class, "parallel", false, true, null, null));
+        providers.add(new Standard<>(AveragePoolLayer.class, NAIVE, false, false, null, null));
+        providers.add(new Standard<>(AveragePoolLayer.class, "parallel", false, true, null, null));
+        providers.add(new Standard<>(GlobalAveragePoolLayer.class, NAIVE, false, false, null, null));
+        providers.add(new Standard<>(GlobalAveragePoolLayer.class, "parallel", false, true, null, null));
+
+        WeightLayout byInput = WeightLayout.BY_INPUT;
+        WeightLayout byOutput = WeightLayout.BY_OUTPUT;
+        providers.add(new Standard<>(FullyConnectedLayer.class, NAIVE, false, false, null, byInput));
+        providers.add(new Standard<>(FullyConnectedLayer.class, "parallel", false, true, null, byInput));
+        providers.add(new Standard<>(FullyConnectedLayer.class, "simd", true, false, null, byInput));
+        providers.add(new Standard<>(FullyConnectedLayer.class, "simd-parallel", true, true, null, byInput));
+        providers.add(new Standard<>(FullyConnectedLayer.class, "gemv", false, false, null, byOutput));
+        providers.add(new Standard<>(FullyConnectedLayer.class, "gemv-parallel", false, true, null, byOutput));
+        providers.add(new Standard<>(FullyConnectedLayer.class, "gemv-simd", true, false, null, byOutput));
+        providers.add(new Standard<>(FullyConnectedLayer.class, "gemv-simd-parallel", true, true, null, byOutput));
+        return providers;
+    }
+
+    private static <L extends Layer> void addConvolutionProviders(List<KernelProvider<?>> providers, Class<L> type){
+        providers.add(new Standard<>(type, NAIVE, false, false, ConvolutionMode.DIRECT, null));
+        providers.add(new Standard<>(type, "parallel", false, true, ConvolutionMode.DIRECT, null));
+        providers.add(new Standard<>(type, "simd", true, false, ConvolutionMode.DIRECT, null));
+        providers.add(new Standard<>(type, "simd-parallel", true, true, ConvolutionMode.DIRECT, null));
+        providers.add(new Standard<>(type, "blocked", false, false, ConvolutionMode.IM2COL, null));
+        providers.add(new Standard<>(type, "blocked-simd", true, false, ConvolutionMode.IM2COL, null));
+        providers.add(new Standard<>(type, "winograd", false, false, ConvolutionMode.WINOGRAD, null));
+        providers.add(new Standard<>(type, "winograd-simd", true, false, ConvolutionMode.WINOGRAD, null));
+        providers.add(new Standard<>(type, "fft", false, false, ConvolutionMode.FFT, null));
+        providers.add(new Standard<>(type, "fft-simd", true, false, ConvolutionMode.FFT, null));
+    }
+
+    private static List<KernelProvider<?>> load(){
+        List<KernelProvider<?>> providers = new ArrayList<>();
+
+        try {
+            for(KernelProvider<?> provider : ServiceLoader.load(KernelProvider.class))
+                providers.add(provider);
+        } catch (ServiceConfigurationError e) {
+            LOAD_ERRORS.add(e.getMessage());
+        }
+
+        return providers;
+    }
+
+    static List<String> getLoadErrors(){
+        return List.copyOf(LOAD_ERRORS);
+    }
+
+    /**
+     * Every provider that can run this layer, in the order they were listed.
+     */
+    public static List<KernelProvider<?>> forLayer(Layer layer){
+        List<KernelProvider<?>> providers = new ArrayList<>();
+
+        for(KernelProvider<?> provider : BUILT_IN)
+            if(supports(provider, layer))
+                providers.add(provider);
+
+        for(KernelProvider<?> provider : LOADED)
+            if(supports(provider, layer))
+                providers.add(provider);
+
+        return providers;
+    }
+
+    /**
+     * The provider with this name that can run this layer, or null if there is none.
+     */
+    public static KernelProvider<?> find(Layer layer, String name){
+        for(KernelProvider<?> provider : forLayer(layer))
+            if(provider.getName().equals(name))
+                return provider;
+
+        return null;
+    }
+
+    /**
+     * Switches the layer over to the provider, which has to be one of {@link #forLayer} for it.
+     */
+    public static void install(KernelProvider<?> provider, Layer layer){
+        if(!supports(provider, layer))
+            throw new IllegalArgumentException(provider.getName()+" cannot run "+layer);
+
+        installChecked(provider, layer);
+    }
+
+    private static <L extends Layer> boolean supports(KernelProvider<L> provider, Layer layer){
+        return provider.getLayerType().isInstance(layer) && provider.supports(provider.getLayerType().cast(layer));
+    }
+
+    private static <L extends Layer> void installChecked(KernelProvider<L> provider, Layer layer){
+        provider.install(provider.getLayerType().cast(layer));
+    }
+
+    /**
+     * The built in providers are all a choice of kernels, threads and the mode of a convolution or the layout of a
+     * fully connected layer.
+     */
+    private static final class Standard<L extends Layer> implements KernelProvider<L> {
+        private final Class<L> _layerType;
+        private final String _name;
+        private final boolean _vector;
+        private final boolean _parallel;
+        private final ConvolutionMode _mode;
+        private final WeightLayout _layout;
+
+        private Standard(Class<L> layerType, String name, boolean vector, boolean parallel, ConvolutionMode mode,
+                         WeightLayout layout) {
+            _layerType = layerType;
+            _name = name;
+            _vector = vector;
+            _parallel = parallel;
+            _mode = mode;
+            _layout = layout;
+        }
+
+        @Override
+        public Class<L> getLayerType() {
+            return _layerType;
+        }
+
+        @Override
+        public String getName() {
+            return _name;
+        }
+
+        @Override
+        public boolean supports(L layer) {
+            if(_vector && !Kernels.isVectorAvailable())
+                return false;
+            if(_parallel && ForkJoinPool.getCommonPoolParallelism() < 2)
+                return false;
+
+            ConvolutionLayer convolution = convolution(layer);
+            return convolution == null || convolution.supportsMode(_mode);
+        }
+
+        @Override
+        public void install(L layer) {
+            layer.setKernels(_vector ? Kernels.best() : Kernels.SCALAR);
+            layer.setParallel(_parallel);
+
+            ConvolutionLayer convolution = convolution(layer);
+            if(convolution != null)
+                convolution.setMode(_mode);
+
+            if(layer instanceof FullyConnectedLayer fc)
+                fc.setLayout(_layout);
+        }
+
+        /**
+         * The convolution of a convolution or fused convolution and pool layer, null for the other layers.
+         */
+        private static ConvolutionLayer convolution(Layer layer){
+            if(layer instanceof ConvolutionLayer conv)
+                return conv;
+            if(layer instanceof ConvolutionPoolLayer fused)
+                return fused.getConvolution();
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return _name;
+        }
+    }
+}
@@ -1,60 +1,115 @@
 package com.behrainwala.layers;
 
-import java.util.ArrayList;
-import java.util.List;
+import com.behrainwala.data.Kernels;
+import com.behrainwala.data.Parallel;
+import com.behrainwala.data.Tensor;
 
 public abstract class Layer {
     private Layer _nextLayer;
     private Layer _previousLayer;
+    private Kernels _kernels = Kernels.SCALAR;
+    private boolean _parallel = true;
+    private boolean _recordingUpdates;
+
+    /**
+     * Runs the forward pass of this layer and all the layers after it, returning the output of the last layer.
+     * A layer reads its input in whatever shape it needs through a {@link Tensor#reshape} view, so e.g.
+     * a fully connected layer takes the output of a pooling layer as one vector without copying it.<br/>
+     * Every layer keeps its output and gradient buffers between samples, so the returned array (and every tensor
+     * passed between the layers) is only valid until the next call.
+     */
+    public abstract double[] getOutput(Tensor input) throws Exception;
+
+    /**
+     * Takes dL/dO for the output of this layer, updates this layer and passes dL/dX on to the previous layer.
+     */
+    public abstract void backPropagation(Tensor dLdO);
+
+    /**
+     * Runs the forward pass of batchSize samples through this layer and all the layers after it, returning the outputs
+     * of the last layer one sample after the other. The samples are laid out one after the other in inputs, so sample
+     * b of a layer with L output channels is channels b*L to b*L+L-1 of its output, and a batch of one is laid out the
+     * same as a single sample. The returned array can be longer than the outputs of the batch, as the buffers of a
+     * layer keep the size of the biggest batch so far.<br/>
+     * The layers with weights keep them as they are, see {@link #backPropagation(Tensor, int)}.
+     */
+    public abstract double[] getOutputs(Tensor inputs, int batchSize) throws Exception;
+
+    /**
+     * Takes dL/dO for the outputs of the last batch, adds the gradients of the weights of this layer for every sample
+     * to the ones it already has and passes dL/dX of the batch on to the previous layer. dL/dX is worked out with the
+     * weights the forward pass used, they only change in {@link #applyGradients}.
+     */
+    public abstract void backPropagation(Tensor dLdO, int batchSize);
+
+    /**
+     * Moves the weights by the mean of the gradients added up since the last call, over the given number of samples,
+     * times the learning rate, and starts adding up again from 0. Layers without weights have nothing to do.
+     */
+    public void applyGradients(int samples) {
+    }
 
-    public abstract double[] getOutput(List<double[][]> input) throws Exception;
-    public abstract double[] getOutput(double[] input) throws Exception;
-
-    public abstract void backPropagation(List<double[][]> dLdO);
-    public abstract void backPropagation(double[] dLdO);
     public abstract int getOutputLength();
     public abstract int getOutputRows();
     public abstract int getOutputCols();
     public abstract int getOutputElements();
 
-    public double[] matrixToVector(List<double[][]> input){
-        int length = input.size();
-        int rows = input.get(0).length;
-        int columns = input.get(0)[0].length;
-
-        double[] vector = new double[length*rows*columns];
-
-        int i=0;
-        for (double[][] doubles : input) {
-            for (int r = 0; r < rows; r++) {
-                for (int c = 0; c < columns; c++) {
-                    vector[i] = doubles[r][c];
-                    i++;
-                }
-            }
-        }
+    /**
+     * A copy of this layer for another replica of the network (see
+     * {@link com.behrainwala.Network.NeuralNetwork#setReplicas}). It shares the weights of this layer but has its own
+     * buffers and gradients, so the two can run a batch at the same time on different threads. The copy has the same
+     * kernels and settings and is not linked to any other layer.
+     */
+    public abstract Layer replicate();
+
+    /**
+     * Adds the gradients replica added up to the ones of this layer and sets those of replica back to 0, replica must
+     * be a replica of this layer. Layers without weights have nothing to do.
+     */
+    public void reduceGradients(Layer replica) {
+    }
 
-        return vector;
+    public boolean isRecordingUpdates() {
+        return _recordingUpdates;
     }
 
-    public List<double[][]> vectorToMatrix(double[] input, int length, int rows, int cols){
-        List<double[][]> matrixList = new ArrayList<>();
+    /**
+     * Whether {@link #backPropagation(Tensor)} also adds every change it makes to the weights to the gradients of this
+     * layer (the ones batches add up in), so that a Hogwild run can work out how many of them were lost, see
+     * {@link com.behrainwala.Network.NeuralNetwork#trainHogwild}. Off by default.
+     */
+    public void setRecordingUpdates(boolean recording) {
+        _recordingUpdates = recording;
+    }
 
-        int i=0;
-        for(int l=0; l<length; l++){
-            double[][] matrix = new double[rows][cols];
+    /**
+     * The weights of this layer in a new array, or null for layers without weights.
+     */
+    public double[] copyWeights() {
+        return null;
+    }
 
-            for(int r=0; r<rows; r++){
-                for(int c=0; c<cols; c++){
-                    matrix[r][c] = input[i];
-                    i++;
-                }
-            }
+    /**
+     * Puts back weights from {@link #copyWeights}, taken with the same kernel provider installed.
+     */
+    public void restoreWeights(double[] weights) {
+    }
 
-            matrixList.add(matrix);
-        }
+    /**
+     * Compares the weights with start (from {@link #copyWeights}) plus the changes recorded in the gradients since
+     * then, and sets the gradients back to 0. The gradients of the replicas have to be reduced into this layer first.
+     */
+    public UpdateLoss compareUpdates(double[] start) {
+        return UpdateLoss.NONE;
+    }
 
-        return matrixList;
+    /**
+     * Gives a new replica the kernels and threading of this layer, see {@link #replicate}.
+     */
+    protected <T extends Layer> T withSettings(T replica) {
+        replica.setKernels(getKernels());
+        replica.setParallel(isParallel());
+        return replica;
     }
 
     public Layer get_nextLayer() {
@@ -72,4 +127,59 @@ public abstract class Layer {
     public void set_previousLayer(Layer _previousLayer) {
         this._previousLayer = _previousLayer;
     }
+
+    public Kernels getKernels() {
+        return _kernels;
+    }
+
+    /**
+     * The inner loops the layer runs on, see {@link Kernels}.
+     */
+    public void setKernels(Kernels kernels) {
+        _kernels = kernels;
+    }
+
+    public boolean isParallel() {
+        return _parallel;
+    }
+
+    /**
+     * Whether the layer splits its passes over the common ForkJoin pool (see {@link Parallel}), the results are the
+     * same either way.
+     */
+    public void setParallel(boolean parallel) {
+        _parallel = parallel;
+    }
+
+    /**
+     * A tensor of batchSize samples of channels x rows x cols: buffer itself when it already has that shape, otherwise
+     * a view over the array of buffer when it is big enough, so a layer only allocates again for a bigger batch.
+     */
+    protected static Tensor batchTensor(Tensor buffer, int batchSize, int channels, int rows, int cols) {
+        int size = batchSize*channels*rows*cols;
+
+        if(buffer != null && buffer.channels() == batchSize*channels && buffer.rows() == rows && buffer.cols() == cols)
+            return buffer;
+
+        double[] data = buffer != null && buffer.data().length >= size ? buffer.data() : new double[size];
+        return new Tensor(data, 0, batchSize*channels, rows, cols);
+    }
+
+    /**
+     * Sample b of a batch laid out as in {@link #getOutputs}, seen as channels x rows x cols.
+     */
+    protected static Tensor sample(Tensor batch, int b, int channels, int rows, int cols) {
+        return new Tensor(batch.data(), batch.offset() + b*channels*rows*cols, channels, rows, cols);
+    }
+
+    /**
+     * Runs body over the items 0 to count through {@link Parallel#forRange} when the layer is parallel, otherwise all
+     * of them on the calling thread.
+     */
+    protected void forRange(int count, long workPerItem, Parallel.Body body) {
+        if(_parallel)
+            Parallel.forRange(count, workPerItem, body);
+        else
+            body.run(0, count);
+    }
 }
@@ -1,8 +1,15 @@
 package com.behrainwala.layers;
 
-import java.util.ArrayList;
-import java.util.List;
+import com.behrainwala.data.Parallel;
+import com.behrainwala.data.Tensor;
 
+import java.util.Arrays;
+
+/**
+ * <b>NOTE:</b><br/>
+ * Every channel is pooled on its own, so a batch is pooled as one input with the channels of all its samples: sample b
+ * is channels b*inLength to b*inLength+inLength-1 (see {@link Layer#getOutputs}).<br/>
+ */
 public class MaxPoolLayer extends Layer{
 
     private final int _stepSize;
@@ -10,8 +17,21 @@ public class MaxPoolLayer extends Layer{
     private final int _inLength;
     private final int inRows;
     private final int inCols;
-    private List<int[][]> _lastMaxRow;
-    private List<int[][]> _lastMaxCol;
+
+    //kept between samples so a training step does not allocate anything, the winner of every output is packed into
+    //one index r*inCols+c into its input channel (-1 when the output is 0), see MaxPooling. All of them have room for
+    //the channels of the biggest batch so far and _channels are in use
+    private Tensor _output;
+    private Tensor _dLdX;
+    private int[] _argmax;
+    private MaxPooling[] _pooling;
+    private int _channels;
+
+    //every channel is pooled on its own, so both passes are split over the channels (see Parallel)
+    private Tensor _lastInput;
+    private Tensor _lastError;
+    private final Parallel.Body _poolChannels = this::poolChannels;
+    private final Parallel.Body _errorChannels = this::errorChannels;
 
     public MaxPoolLayer(int _stepSize, int _windowSize, int _inLength, int inRows, int inCols) {
         this._stepSize = _stepSize;
@@ -19,98 +39,157 @@ public class MaxPoolLayer extends Layer{
         this._inLength = _inLength;
         this.inRows = inRows;
         this.inCols = inCols;
-    }
-
-    private List<double[][]> maxPoolForwardPass(List<double[][]> input){
-        List<double[][]> output = new ArrayList<>();
-        _lastMaxRow = new ArrayList<>();
-        _lastMaxCol = new ArrayList<>();
 
+        _argmax = new int[0];
+        _pooling = new MaxPooling[0];
+        setBatchSize(1);
+    }
 
-        for (double[][] doubles : input) {
-            output.add(pool(doubles));
+    /**
+     * Makes room for the channels of batchSize samples.
+     */
+    private void setBatchSize(int batchSize){
+        _channels = batchSize*_inLength;
+        _output = batchTensor(_output, batchSize, _inLength, getOutputRows(), getOutputCols());
+        _dLdX = batchTensor(_dLdX, batchSize, _inLength, inRows, inCols);
+
+        if(_argmax.length < _output.size())
+            _argmax = new int[_output.size()];
+
+        if(_pooling.length < _channels){
+            int had = _pooling.length;
+            _pooling = Arrays.copyOf(_pooling, _channels);
+            for(int l=had; l<_channels; l++)
+                _pooling[l] = new MaxPooling(_windowSize, _stepSize, inRows, inCols);
         }
-
-        return output;
     }
 
-    private double[][] pool(double[][] input){
-        double[][] output = new double[getOutputRows()][getOutputCols()];
+    private Tensor maxPoolForwardPass(Tensor input, int batchSize){
+        setBatchSize(batchSize);
+        _lastInput = input;
+        forRange(_channels, (long)inRows*inCols, _poolChannels);
 
-        int[][] maxRows = new int[getOutputRows()][getOutputCols()];
-        int[][] maxCols = new int[getOutputRows()][getOutputCols()];
+        return _output;
+    }
 
-        for(int r=0; r< getOutputRows(); r+=_stepSize){
-            for(int c=0; c<getOutputCols(); c+=_stepSize){
+    private void poolChannels(int from, int to){
+        for (int l=from; l<to; l++) {
+            pool(_lastInput, l);
+        }
+    }
 
-                double max = 0.0;
-                maxRows[r][c] = -1;
-                maxCols[r][c] = -1;
+    /**
+     * Pools channel l of the input (read straight from its array) into channel l of the output. Output (r,c) is the
+     * max of the window at input (r*stepSize, c*stepSize).
+     */
+    private void pool(Tensor input, int l){
+        MaxPooling pooling = _pooling[l];
+        int inBase = input.offset() + l*inRows*inCols;
+
+        for(int r=0; r<inRows; r++){
+            if(pooling.isUsed(r))
+                pooling.poolRow(input.data(), inBase + r*inCols, r);
+        }
 
-                for(int x=0; x< _windowSize; x++){
-                    for(int y=0; y< _windowSize; y++){
-                        if(max < input[r+x][c+y]) {
-                            max = input[r + x][c + y];
-                            maxRows[r][c] = r+x;
-                            maxCols[r][c] = c+y;
-                        }
-                    }
-                }
+        int outBase = l*getOutputRows()*getOutputCols();
+        pooling.poolColumns(_output.data(), _output.offset() + outBase, _argmax, outBase);
+    }
 
-                output[r][c]=max;
-            }
-        }
+    @Override
+    public double[] getOutput(Tensor input) throws Exception {
+        if(input.size() != _inLength*inRows*inCols)
+            throw new Exception("Expected "+_inLength*inRows*inCols+" inputs but got "+input.size());
 
-        _lastMaxRow.add(maxRows);
-        _lastMaxCol.add(maxCols);
-        return output;
+        Tensor outputPool = maxPoolForwardPass(input, 1);
 
+        if(get_nextLayer()!=null)
+            return get_nextLayer().getOutput(outputPool);
+        else
+            throw new Exception("This cannot be the last layer");
     }
 
     @Override
-    public double[] getOutput(List<double[][]> input) throws Exception {
-        List<double[][]> outputPool = maxPoolForwardPass(input);
+    public double[] getOutputs(Tensor inputs, int batchSize) throws Exception {
+        if(inputs.size() != batchSize*_inLength*inRows*inCols)
+            throw new Exception("Expected "+batchSize+"x"+_inLength*inRows*inCols+" inputs but got "+inputs.size());
+
+        Tensor outputPool = maxPoolForwardPass(inputs, batchSize);
 
         if(get_nextLayer()!=null)
-            return get_nextLayer().getOutput(outputPool);
+            return get_nextLayer().getOutputs(outputPool, batchSize);
         else
             throw new Exception("This cannot be the last layer");
     }
 
     @Override
-    public double[] getOutput(double[] input) throws Exception {
-        return getOutput(vectorToMatrix(input, _inLength, inRows, inCols));
+    public void backPropagation(Tensor dLdO) {
+        if(dLdO.size() != getOutputElements())
+            throw new IllegalArgumentException("Expected "+getOutputElements()+" errors but got "+dLdO.size());
+
+        maxPoolBackwardPass(dLdO);
+
+        if(get_previousLayer()!=null)
+            get_previousLayer().backPropagation(_dLdX);
     }
 
     @Override
-    public void backPropagation(List<double[][]> dLdO) {
-        List<double[][]>dX_dL = new ArrayList<>();
-
-        int l=0;
-        for(double[][] array:dLdO){
-            double[][] error = new double[inRows][inCols];
-
-            for(int r=0; r<getOutputRows(); r++){
-                for(int c=0; c<getOutputCols(); c++){
-                    int max_x = _lastMaxRow.get(l)[r][c];
-                    int max_y = _lastMaxCol.get(l)[r][c];
-
-                    if(max_x != -1){
-                        error[max_x][max_y] += array[r][c];
-                    }
-                }
+    public void backPropagation(Tensor dLdO, int batchSize) {
+        if(dLdO.size() != batchSize*getOutputElements())
+            throw new IllegalArgumentException("Expected "+batchSize+"x"+getOutputElements()+" errors but got "+dLdO.size());
+
+        maxPoolBackwardPass(dLdO);
+
+        if(get_previousLayer()!=null)
+            get_previousLayer().backPropagation(_dLdX, batchSize);
+    }
+
+    /**
+     * The errors go back to the channels of the last forward pass, a single sample or a whole batch.
+     */
+    private void maxPoolBackwardPass(Tensor dLdO){
+        _lastError = dLdO;
+        _dLdX.fill(0);
+
+        forRange(_channels, getOutputRows()*getOutputCols(), _errorChannels);
+    }
+
+    /**
+     * Passes the error of every output of the channels from to to back to the input it was the max of.
+     */
+    private void errorChannels(int from, int to){
+        double[] error = _lastError.data();
+        double[] dLdX = _dLdX.data();
+        int pooled = getOutputRows()*getOutputCols();
+
+        for(int l=from; l<to; l++){
+            int base = _dLdX.index(l, 0, 0);
+            int e = _lastError.offset() + l*pooled;
+
+            for(int k=l*pooled; k<(l+1)*pooled; k++, e++){
+                if(_argmax[k] != -1)
+                    dLdX[base + _argmax[k]] += error[e];
             }
-            dX_dL.add(error);
-            l++;
         }
+    }
 
-        if(get_previousLayer()!=null)
-            get_previousLayer().backPropagation(dX_dL);
+    int getWindowSize() {
+        return _windowSize;
+    }
+
+    int getStepSize() {
+        return _stepSize;
+    }
+
+    /**
+     * The number of channels, rows and columns coming in.
+     */
+    int[] getInputShape() {
+        return new int[]{_inLength, inRows, inCols};
     }
 
     @Override
-    public void backPropagation(double[] dLdO) {
-        backPropagation(vectorToMatrix(dLdO, getOutputLength(), getOutputRows(), getOutputCols()));
+    public Layer replicate() {
+        return withSettings(new MaxPoolLayer(_stepSize, _windowSize, _inLength, inRows, inCols));
     }
 
     @Override
@@ -132,4 +211,12 @@ public class MaxPoolLayer extends Layer{
     public int getOutputElements() {
         return _inLength*getOutputCols()*getOutputRows();
     }
+
+    /**
+     * The shape of the layer, e.g. "MaxPoolLayer 8x24x24 window 3 step 2".
+     */
+    @Override
+    public String toString() {
+        return "MaxPoolLayer "+_inLength+"x"+inRows+"x"+inCols+" window "+_windowSize+" step "+_stepSize;
+    }
 }
@@ -0,0 +1,142 @@
+package com.behrainwala.layers;
+
+/**
+ * <b>NOTE:</b><br/>
+ * The max pool of one channel, for {@link MaxPoolLayer} and {@link ConvolutionPoolLayer}. Output (r,c) is the max of
+ * the windowSize x windowSize values at row r*stepSize and column c*stepSize, or 0 when none of them is above 0.
+ * The winner is the first value with the max going along the rows of the window, its index r*inCols+c goes into one
+ * packed int[] (-1 when the output is 0).<br/>
+ *<br/>
+ * The max of a window is the max over its rows of the max of each row, so it is done in two passes:<br/>
+ * 1. poolRow takes the max of every window across an input row, into rowMax (inRows x outCols)<br/>
+ * 2. poolColumns takes the max of the windowSize rowMax rows of every output row, into the output<br/>
+ * That is 2*windowSize values looked at per output instead of windowSize*windowSize. Across a row every value is in
+ * about windowSize/stepSize windows; when that is DEQUE_OVERLAP or more the first pass slides a monotonic deque along
+ * the row instead: it holds the columns that can still be the max of a window, their values going down from front to
+ * back. A new value first drops every smaller one off the back, so every value goes in and out once instead of being
+ * looked at again for every window it is in. Equal values are kept, so the front is always the first max of the window.
+ * The second pass goes along whole rows, the direction the values are next to each other in, and just compares them.<br/>
+ *<br/>
+ * Channels that are pooled at the same time need an instance each.<br/>
+ */
+final class MaxPooling {
+    //the deque is only worth it for windows that overlap a lot: whether a value drops others off the back cannot be
+    //predicted, so a value costs about as much as a dozen plain compares. On 16x64x64 the scan took a third of the
+    //time with a window of 3 and step 2 and was still ahead at 9 with step 1, the deque was 20% faster at 15
+    private static final int DEQUE_OVERLAP = 12;
+
+    private final int _windowSize;
+    private final int _stepSize;
+    private final int _inCols;
+    private final int _outRows;
+    private final int _outCols;
+
+    //the max of every window across every input row, and its index r*inCols+c
+    private final double[] _rowMax;
+    private final int[] _rowArgmax;
+    private final int[] _deque;
+    private final double[] _dequeValues;
+
+    MaxPooling(int windowSize, int stepSize, int inRows, int inCols) {
+        _windowSize = windowSize;
+        _stepSize = stepSize;
+        _inCols = inCols;
+        _outRows = (inRows-windowSize)/stepSize + 1;
+        _outCols = (inCols-windowSize)/stepSize + 1;
+
+        _rowMax = new double[inRows*_outCols];
+        _rowArgmax = new int[inRows*_outCols];
+        _deque = new int[inCols];
+        _dequeValues = new double[inCols];
+    }
+
+    /**
+     * Whether a window covers input row r, the other rows never have to be pooled (or worked out).
+     */
+    boolean isUsed(int r){
+        return r < (_outRows-1)*_stepSize + _windowSize && r%_stepSize < _windowSize;
+    }
+
+    /**
+     * The first pass, for input row r which starts at values[offset].
+     */
+    void poolRow(double[] values, int offset, int r){
+        int out = r*_outCols;
+        int index = r*_inCols;
+
+        if(_windowSize < DEQUE_OVERLAP*_stepSize){
+            for(int c=0; c<_outCols; c++, out++){
+                int col = c*_stepSize;
+                int best = col;
+
+                for(int y=col+1; y<col+_windowSize; y++){
+                    if(values[offset+best] < values[offset+y])
+                        best = y;
+                }
+
+                _rowMax[out] = values[offset+best];
+                _rowArgmax[out] = index+best;
+            }
+            return;
+        }
+
+        //the deque runs from head to tail, with the values next to their columns so the back is checked without
+        //going back to the row. The windows overlap, so the last column in it is always in the next window too
+        int head = 0;
+        int tail = 0;
+        int next = 0;
+
+        for(int c=0; c<_outCols; c++, out++){
+            int col = c*_stepSize;
+
+            while(_deque[head] < col)
+                head++;
+
+            for(; next<col+_windowSize; next++){
+                double value = values[offset+next];
+                while(tail > head && _dequeValues[tail-1] < value)
+                    tail--;
+
+                _deque[tail] = next;
+                _dequeValues[tail++] = value;
+            }
+
+            _rowMax[out] = _dequeValues[head];
+            _rowArgmax[out] = index+_deque[head];
+        }
+    }
+
+    /**
+     * The second pass, once every used row went through poolRow. The output starts at output[outOffset] and the
+     * winners at argmax[argmaxOffset], both outRows x outCols. Every output row goes over the rowMax rows of its
+     * windows in order, whole rows at a time, so only a later row with a bigger max takes over.
+     */
+    void poolColumns(double[] output, int outOffset, int[] argmax, int argmaxOffset){
+        for(int r=0; r<_outRows; r++){
+            int out = outOffset + r*_outCols;
+            int arg = argmaxOffset + r*_outCols;
+            int first = r*_stepSize*_outCols;
+
+            System.arraycopy(_rowMax, first, output, out, _outCols);
+            System.arraycopy(_rowArgmax, first, argmax, arg, _outCols);
+
+            for(int x=1; x<_windowSize; x++){
+                int row = first + x*_outCols;
+
+                for(int c=0; c<_outCols; c++){
+                    if(output[out+c] < _rowMax[row+c]){
+                        output[out+c] = _rowMax[row+c];
+                        argmax[arg+c] = _rowArgmax[row+c];
+                    }
+                }
+            }
+
+            for(int c=0; c<_outCols; c++){
+                if(output[out+c] <= 0){
+                    output[out+c] = 0.0;
+                    argmax[arg+c] = -1;
+                }
+            }
+        }
+    }
+}
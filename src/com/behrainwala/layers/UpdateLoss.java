@@ -0,0 +1,22 @@
+package com.behrainwala.layers;
+
+/**
+ * How far the weights of a layer are from where the changes recorded since a start point should have moved them, see
+ * {@link Layer#compareUpdates}.<br/>
+ * lost -> the sum over the weights of |weight - (start + recorded changes)|, what the weights missed (or got too much).<br/>
+ * recorded -> the sum over the weights of |recorded changes|, what they should have moved by.<br/>
+ */
+public record UpdateLoss(double lost, double recorded) {
+    public static final UpdateLoss NONE = new UpdateLoss(0, 0);
+
+    public UpdateLoss plus(UpdateLoss other) {
+        return new UpdateLoss(lost + other.lost, recorded + other.recorded);
+    }
+
+    /**
+     * The part of the recorded changes that did not make it into the weights, 0 when nothing was recorded.
+     */
+    public double fraction() {
+        return recorded == 0 ? 0 : lost/recorded;
+    }
+}
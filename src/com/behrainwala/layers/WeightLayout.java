@@ -0,0 +1,37 @@
+package com.behrainwala.layers;
+
+/**
+ * How a {@link FullyConnectedLayer} keeps its weights in its one flat array.
+ */
+public enum WeightLayout {
+    /**
+     * The weights of every input in a row (inputs x outputs). Going forward every input adds its row to the outputs,
+     * going back every row is updated and gives the dL/dX of its input, each row once.
+     */
+    BY_INPUT,
+    /**
+     * The weights of every output in a row (outputs x inputs). Going forward every output is one dot product over its
+     * row and gets its activation straight away, going back every row gets the rank-1 update and adds itself to
+     * dL/dX.
+     */
+    BY_OUTPUT,
+    /**
+     * Every layer picks one of the others from its shape and kernels, see {@link #choose}.
+     */
+    AUTO;
+
+    //below this many outputs the rows of BY_INPUT are too short for the vector kernels
+    private static final int VECTOR_OUTPUTS = 128;
+
+    /**
+     * The layout that is fastest for the shape, from timing both on one thread.<br/>
+     * With the plain java kernels BY_INPUT is as fast or faster (968 to 10: 7 us forward and 10 us back against 8 and
+     * 13 us), and it is the layout the weights have always had.<br/>
+     * The vector kernels need long rows, so with few outputs BY_OUTPUT wins (3000 to 32: 20 us forward and 49 us back
+     * against 44 and 58 us, at 64 outputs still 151 us in all against 170 us) and from 128 outputs on BY_INPUT
+     * (3000 to 128: 294 us in all against 318 us).
+     */
+    public static WeightLayout choose(int outLength, boolean vectorKernels){
+        return vectorKernels && outLength < VECTOR_OUTPUTS ? BY_OUTPUT : BY_INPUT;
+    }
+}
@@ -0,0 +1,332 @@
+package com.behrainwala.layers;
+
+import com.behrainwala.data.Tensor;
+
+/**
+ * <b>NOTE:</b><br/>
+ * The forward pass of a {@link ConvolutionLayer} with 3x3 filters and a step size of 1 using Winograd's minimal
+ * filtering algorithm F(m x m, 3x3) (Lavin and Gray, "Fast Algorithms for Convolutional Neural Networks").<br/>
+ *<br/>
+ * The output is split in m x m tiles, each of them only depends on an (m+2) x (m+2) tile d of the input:<br/>
+ * Y = A^T [ (G g G^T) . (B^T d B) ] A<br/>
+ * where g is the filter and . multiplies value by value. G g G^T is worked out once per filter (whenever the filters
+ * have changed) and B^T d B once per input tile for all the filters, which leaves (m+2)^2 multiplications per tile
+ * and filter instead of 9*m^2: 16 instead of 36 for F(2x2,3x3) and 36 instead of 144 for F(4x4,3x3).<br/>
+ * The bigger tiles save more but lose more precision, F(4x4,3x3) is still accurate to about 1e-13 for our values.<br/>
+ *<br/>
+ * Input values outside the image are read as 0 and only the part of a tile that is inside the output is written.<br/>
+ * When the layer sums over the channels, the sum is taken of the products U . V, before the output transform.<br/>
+ */
+final class WinogradConvolution {
+    //B^T and A^T are written out in the input and output transforms
+    private static final double[] G_2 = {
+            1,    0,   0,
+            0.5,  0.5, 0.5,
+            0.5, -0.5, 0.5,
+            0,    0,   1
+    };
+
+    private static final double[] G_4 = {
+            1/4.0,   0,       0,
+            -1/6.0,  -1/6.0,  -1/6.0,
+            -1/6.0,  1/6.0,   -1/6.0,
+            1/24.0,  1/12.0,  1/6.0,
+            1/24.0,  -1/12.0, 1/6.0,
+            0,       0,       1
+    };
+
+    private static final int R = 3;
+
+    /**
+     * The output tile size used by {@link ConvolutionLayer}. F(4x4,3x3) needs fewer multiplications per output, but
+     * its transforms have more additions, and on 28x28 up to 128x128 inputs it times slower than F(2x2,3x3).
+     */
+    static final int DEFAULT_TILE_SIZE = 2;
+
+    private final int _inLength;
+    private final int _inRows;
+    private final int _inCols;
+    private final int _numFilters;
+    private final int _outRows;
+    private final int _outCols;
+    //channels of a group are summed into the same outputs, every group has its own outputs
+    private final int _groups;
+    private final int _groupChannels;
+
+    private final int _m;
+    private final int _alpha;
+    private final double[] _g;
+
+    //G g G^T of every filter, alpha x alpha each
+    private final double[] _transformedFilters;
+
+    private final double[] _tile;
+    //B^T d B of the tile of every channel of a group
+    private final double[] _transformedTiles;
+    private final double[] _product;
+    private final double[] _temp;
+    private final double[] _result;
+
+    WinogradConvolution(int inLength, int inRows, int inCols, int numFilters, int tileSize, boolean sumChannels) {
+        if(tileSize != 2 && tileSize != 4)
+            throw new IllegalArgumentException("Only F(2x2,3x3) and F(4x4,3x3) are supported, not "+tileSize);
+
+        _inLength = inLength;
+        _inRows = inRows;
+        _inCols = inCols;
+        _numFilters = numFilters;
+        _outRows = inRows-R+1;
+        _outCols = inCols-R+1;
+        _groups = sumChannels ? 1 : inLength;
+        _groupChannels = sumChannels ? inLength : 1;
+
+        _m = tileSize;
+        _alpha = tileSize+R-1;
+        _g = tileSize == 2 ? G_2 : G_4;
+
+        _transformedFilters = new double[numFilters*_groupChannels*_alpha*_alpha];
+        _tile = new double[_alpha*_alpha];
+        _transformedTiles = new double[_groupChannels*_alpha*_alpha];
+        _product = new double[_alpha*_alpha];
+        _temp = new double[_alpha*_alpha];
+        _result = new double[_m*_m];
+    }
+
+    /**
+     * Works out G g G^T for every filter (every channel of it when summing), this has to be called again every time
+     * the filters change.
+     */
+    void setFilters(Tensor filters){
+        for(int f=0; f<filters.channels(); f++){
+            //G g is alpha x 3, (G g) G^T is alpha x alpha
+            multiply(_g, _alpha, R, filters.data(), filters.index(f, 0, 0), R, false, _temp, 0);
+            multiply(_temp, _alpha, R, _g, 0, _alpha, true, _transformedFilters, f*_alpha*_alpha);
+        }
+    }
+
+    /**
+     * Writes the convolution of every input channel with every filter into output, channel i*numFilters+f, or the
+     * sums over the channels into channel f.<br/>
+     * Every input tile is transformed once for all the filters. When summing, the products of all the channels are
+     * added up before the output transform, so it is done once per filter instead of once per channel and filter.
+     */
+    void forward(Tensor input, Tensor output){
+        //a group at a time, so without summing every channel is done on its own like the direct convolution
+        for(int g=0; g<_groups; g++){
+            if(_m == 2)
+                forward2(input, output, g);
+            else
+                forward4(input, output, g);
+        }
+    }
+
+    /**
+     * forward of group g for F(4x4,3x3).
+     */
+    private void forward4(Tensor input, Tensor output, int g){
+        int tileRows = (_outRows + 3)/4;
+        int tileCols = (_outCols + 3)/4;
+
+        for(int tr=0; tr<tileRows; tr++){
+            for(int tc=0; tc<tileCols; tc++){
+                int row = tr*4;
+                int col = tc*4;
+
+                for(int j=0; j<_groupChannels; j++){
+                    readTile(input.data(), input.offset() + (g*_groupChannels+j)*_inRows*_inCols, row, col);
+                    inputTransform4(_tile, _transformedTiles, j*36);
+                }
+
+                for(int f=0; f<_numFilters; f++){
+                    multiplyTiles(f*_groupChannels);
+                    outputTransform4(output.data(), output.index(g*_numFilters+f, row, col), row, col);
+                }
+            }
+        }
+    }
+
+    /**
+     * forward of group g for F(2x2,3x3), with the transforms written out on local variables as they are only
+     * additions. Every tile is only a few hundred operations, so all of it is kept in this one method.
+     */
+    private void forward2(Tensor input, Tensor output, int g){
+        int tileRows = (_outRows + 1)/2;
+        int tileCols = (_outCols + 1)/2;
+
+        double[] in = input.data();
+        double[] out = output.data();
+        double[] u = _transformedFilters;
+        double[] v = _transformedTiles;
+
+        for(int tr=0; tr<tileRows; tr++){
+            for(int tc=0; tc<tileCols; tc++){
+                int row = tr*2;
+                int col = tc*2;
+
+                for(int j=0; j<_groupChannels; j++){
+                    double[] d = _tile;
+                    readTile(in, input.offset() + (g*_groupChannels+j)*_inRows*_inCols, row, col);
+
+                    //B^T d, column by column
+                    double t00 = d[0]-d[8],  t01 = d[1]-d[9],  t02 = d[2]-d[10],  t03 = d[3]-d[11];
+                    double t10 = d[4]+d[8],  t11 = d[5]+d[9],  t12 = d[6]+d[10],  t13 = d[7]+d[11];
+                    double t20 = d[8]-d[4],  t21 = d[9]-d[5],  t22 = d[10]-d[6],  t23 = d[11]-d[7];
+                    double t30 = d[4]-d[12], t31 = d[5]-d[13], t32 = d[6]-d[14],  t33 = d[7]-d[15];
+
+                    //(B^T d) B, row by row
+                    int t = j*16;
+                    v[t] = t00-t02;    v[t+1] = t01+t02;  v[t+2] = t02-t01;  v[t+3] = t01-t03;
+                    v[t+4] = t10-t12;  v[t+5] = t11+t12;  v[t+6] = t12-t11;  v[t+7] = t11-t13;
+                    v[t+8] = t20-t22;  v[t+9] = t21+t22;  v[t+10] = t22-t21; v[t+11] = t21-t23;
+                    v[t+12] = t30-t32; v[t+13] = t31+t32; v[t+14] = t32-t31; v[t+15] = t31-t33;
+                }
+
+                boolean fullRows = row+1 < _outRows;
+                boolean fullCols = col+1 < _outCols;
+
+                //the transform of the first channel is kept on local variables for all the filters
+                double v00 = v[0],  v01 = v[1],  v02 = v[2],  v03 = v[3];
+                double v10 = v[4],  v11 = v[5],  v12 = v[6],  v13 = v[7];
+                double v20 = v[8],  v21 = v[9],  v22 = v[10], v23 = v[11];
+                double v30 = v[12], v31 = v[13], v32 = v[14], v33 = v[15];
+
+                for(int f=0; f<_numFilters; f++){
+                    //M = U . V, summed over the channels of the group
+                    int k = f*_groupChannels*16;
+                    double m00 = u[k]*v00,    m01 = u[k+1]*v01,  m02 = u[k+2]*v02,  m03 = u[k+3]*v03;
+                    double m10 = u[k+4]*v10,  m11 = u[k+5]*v11,  m12 = u[k+6]*v12,  m13 = u[k+7]*v13;
+                    double m20 = u[k+8]*v20,  m21 = u[k+9]*v21,  m22 = u[k+10]*v22, m23 = u[k+11]*v23;
+                    double m30 = u[k+12]*v30, m31 = u[k+13]*v31, m32 = u[k+14]*v32, m33 = u[k+15]*v33;
+
+                    for(int t=16; t<_groupChannels*16; t+=16){
+                        k += 16;
+                        m00 += u[k]*v[t];       m01 += u[k+1]*v[t+1];   m02 += u[k+2]*v[t+2];   m03 += u[k+3]*v[t+3];
+                        m10 += u[k+4]*v[t+4];   m11 += u[k+5]*v[t+5];   m12 += u[k+6]*v[t+6];   m13 += u[k+7]*v[t+7];
+                        m20 += u[k+8]*v[t+8];   m21 += u[k+9]*v[t+9];   m22 += u[k+10]*v[t+10]; m23 += u[k+11]*v[t+11];
+                        m30 += u[k+12]*v[t+12]; m31 += u[k+13]*v[t+13]; m32 += u[k+14]*v[t+14]; m33 += u[k+15]*v[t+15];
+                    }
+
+                    //A^T M, then (A^T M) A
+                    double a0 = m00+m10+m20, a1 = m01+m11+m21, a2 = m02+m12+m22, a3 = m03+m13+m23;
+                    double b0 = m10-m20-m30, b1 = m11-m21-m31, b2 = m12-m22-m32, b3 = m13-m23-m33;
+
+                    int o = output.index(g*_numFilters+f, row, col);
+                    out[o] = a0+a1+a2;
+                    if(fullCols)
+                        out[o+1] = a1-a2-a3;
+                    if(fullRows){
+                        out[o+_outCols] = b0+b1+b2;
+                        if(fullCols)
+                            out[o+_outCols+1] = b1-b2-b3;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * For F(4x4,3x3): the product M = U . V summed over the channels of a group, into _product. The filter transforms
+     * U are read from filter on.
+     */
+    private void multiplyTiles(int filter){
+        int size = _alpha*_alpha;
+        double[] u = _transformedFilters;
+        double[] v = _transformedTiles;
+
+        int uOffset = filter*size;
+        for(int k=0; k<size; k++)
+            _product[k] = u[uOffset+k]*v[k];
+
+        for(int j=1; j<_groupChannels; j++){
+            uOffset += size;
+            int vOffset = j*size;
+            for(int k=0; k<size; k++)
+                _product[k] += u[uOffset+k]*v[vOffset+k];
+        }
+    }
+
+    /**
+     * B^T d B for F(4x4,3x3), first every column then every row.
+     */
+    private void inputTransform4(double[] d, double[] v, int offset){
+        for(int c=0; c<6; c++)
+            inputTransform(d, c, 6, _temp, c, 6);
+        for(int r=0; r<6; r++)
+            inputTransform(_temp, r*6, 1, v, offset + r*6, 1);
+    }
+
+    /**
+     * A^T M A for F(4x4,3x3), through the columns of M and then the rows without storing anything in between but
+     * 4 x 6 values. Only the part of the 4x4 tile at (row, col) that is inside the output is written.
+     */
+    private void outputTransform4(double[] out, int o, int row, int col){
+        double[] m = _product;
+        double[] t = _temp;
+        int rows = Math.min(4, _outRows-row);
+        int cols = Math.min(4, _outCols-col);
+
+        //A^T M, column by column
+        for(int c=0; c<6; c++){
+            double s12 = m[6+c]+m[12+c], d12 = m[6+c]-m[12+c], s34 = m[18+c]+m[24+c], d34 = m[18+c]-m[24+c];
+            t[c] = m[c] + s12 + s34;
+            t[6+c] = d12 + 2*d34;
+            t[12+c] = s12 + 4*s34;
+            t[18+c] = d12 + 8*d34 + m[30+c];
+        }
+
+        //(A^T M) A, row by row
+        for(int r=0; r<rows; r++){
+            int a = r*6;
+            double s12 = t[a+1]+t[a+2], d12 = t[a+1]-t[a+2], s34 = t[a+3]+t[a+4], d34 = t[a+3]-t[a+4];
+            _result[0] = t[a] + s12 + s34;
+            _result[1] = d12 + 2*d34;
+            _result[2] = s12 + 4*s34;
+            _result[3] = d12 + 8*d34 + t[a+5];
+
+            System.arraycopy(_result, 0, out, o + r*_outCols, cols);
+        }
+    }
+
+    /**
+     * The F(4x4,3x3) B^T times one column (or row) of 6 values, read and written with the given strides.
+     * The same as multiplying by the matrix, but without all the multiplications by 0 and 1.
+     */
+    private static void inputTransform(double[] d, int offset, int stride, double[] out, int outOffset, int outStride){
+        double d0 = d[offset], d1 = d[offset+stride], d2 = d[offset+2*stride], d3 = d[offset+3*stride];
+        double d4 = d[offset+4*stride], d5 = d[offset+5*stride];
+        out[outOffset] = 4*d0 - 5*d2 + d4;
+        out[outOffset+outStride] = -4*d1 - 4*d2 + d3 + d4;
+        out[outOffset+2*outStride] = 4*d1 - 4*d2 - d3 + d4;
+        out[outOffset+3*outStride] = -2*d1 - d2 + 2*d3 + d4;
+        out[outOffset+4*outStride] = 2*d1 - d2 - 2*d3 + d4;
+        out[outOffset+5*outStride] = 4*d1 - 5*d3 + d5;
+    }
+
+    private void readTile(double[] in, int channel, int row, int col){
+        for(int x=0; x<_alpha; x++){
+            for(int y=0; y<_alpha; y++){
+                int r = row+x;
+                int c = col+y;
+                _tile[x*_alpha + y] = r < _inRows && c < _inCols ? in[channel + r*_inCols + c] : 0;
+            }
+        }
+    }
+
+    /**
+     * out = a * b, or a * b^T when transB. a is rows x inner and the result rows x cols, so b is inner x cols
+     * (cols x inner when transposed).
+     */
+    private static void multiply(double[] a, int rows, int inner, double[] b, int bOffset, int cols, boolean transB,
+                                 double[] out, int outOffset){
+        for(int i=0; i<rows; i++){
+            for(int j=0; j<cols; j++){
+                double sum = 0;
+                for(int k=0; k<inner; k++){
+                    double bValue = transB ? b[bOffset + j*inner + k] : b[bOffset + k*cols + j];
+                    sum += a[i*inner + k]*bValue;
+                }
+                out[outOffset + i*cols + j] = sum;
+            }
+        }
+    }
+}
@@ -0,0 +1,855 @@
+package com.behrainwala.layers;
+
+import com.behrainwala.data.Kernels;
+import com.behrainwala.data.Tensor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * <b>NOTE:</b><br/>
+ * Checks every {@link ConvolutionMode} against DIRECT on random inputs and filters, and times them.<br/>
+ * Run it after changing any of the convolution algorithms; for every shape it prints the biggest difference from the
+ * DIRECT output and the time of one forward pass. The limits in {@link ConvolutionMode#choose} come from these
+ * timings, run it with and without --add-modules jdk.incubator.vector to time both kinds of kernels. It lives under
+ * test so it does not ship with the library, and it exits with 1 when any check fails.<br/>
+ *<br/>
+ * After that the gradients of every mode are checked against finite differences: with the loss L = sum of g*O for
+ * fixed random g, dL/dX[i] should be (L(X[i]+h) - L(X[i]-h))/2h and the same for every filter value. The shapes
+ * include step sizes that do not fit the input exactly, so some input values are not used by any output.<br/>
+ *<br/>
+ * Then {@link MaxPoolLayer} is checked against going over every window on its own, on small whole numbers so there
+ * are plenty of ties and windows with nothing above 0: the output and dL/dX (so the winners) should be exactly the same.
+ * {@link AveragePoolLayer} and {@link GlobalAveragePoolLayer} are checked the same way, up to TOLERANCE as they add
+ * up in a different order.
+ * Last every mode of a {@link ConvolutionPoolLayer} is checked against the convolution and max pool layer it fuses:
+ * the output, dL/dX and the filters after a backward pass should all be the same.<br/>
+ *<br/>
+ * Finally a batch is run through a convolution, a pool and a {@link FullyConnectedLayer} with
+ * {@link Layer#getOutputs}, for every kind of pool, mode and weight layout, and checked against the same layers
+ * taking the samples one at a time: the outputs and dL/dX of every sample should be the same, and after
+ * {@link Layer#applyGradients} every weight should have moved by the mean of what one backward pass of every sample
+ * on its own moves it by. The same goes for the batch split over the layers and a {@link Layer#replicate} of them,
+ * with the gradients of the replica added to the layers.<br/>
+ *<br/>
+ * After the batches the same layers and a replica take turns at training single samples while recording their updates (see
+ * {@link Layer#setRecordingUpdates}), as the Hogwild workers do but one after the other, so no update can be lost:
+ * {@link Layer#compareUpdates} should find the weights where the recorded changes put them, and a weight moved on
+ * purpose afterwards should be counted as lost by exactly that much.<br/>
+ *<br/>
+ * Last the {@link KernelAutotuner} is checked on fully connected layers: every provider should come out of being timed
+ * with its weights exactly as they were, and {@link KernelAutotuner#tune} should install one of the providers that ran,
+ * again with the weights as they were. The times of every provider are printed next to those of training passes with
+ * errors of the size real ones have, to see that the layouts are compared on the same work (an error of 0 would let a
+ * layout skip the update altogether), but they do not fail the check as they depend on the machine.<br/>
+ */
+public class ConvolutionCheck {
+    private static final long SEED = 123;
+    private static final double TOLERANCE = 1e-9;
+    private static final double STEP = 1e-5;
+    private static final double GRADIENT_TOLERANCE = 1e-6;
+    private static final int BATCH = 3;
+
+    //inLength, inRows, inCols, numFilters, filterSize, stepSize, summing over the channels (1) or not (0)
+    private static final int[][] SHAPES = {
+            {1, 28, 28, 8, 3, 1, 0},
+            {8, 26, 26, 8, 3, 1, 0},
+            {8, 26, 26, 8, 3, 1, 1},
+            {1, 28, 28, 8, 5, 1, 0},
+            {1, 28, 28, 8, 5, 2, 0},
+            {8, 24, 24, 16, 5, 1, 1},
+            {1, 64, 64, 8, 7, 1, 0},
+            {1, 28, 28, 4, 11, 1, 0},
+            {1, 128, 128, 4, 7, 1, 0},
+            {1, 128, 128, 4, 15, 1, 0},
+            {4, 128, 128, 4, 15, 1, 1},
+            {2, 9, 9, 3, 3, 1, 0},
+            {2, 9, 9, 3, 3, 1, 1},
+            {2, 9, 9, 3, 4, 2, 0},
+            {3, 9, 9, 2, 4, 2, 1},
+    };
+
+    //the same, small enough to take the finite differences of every value
+    private static final int[][] GRADIENT_SHAPES = {
+            {2, 9, 9, 3, 3, 1, 0},
+            {2, 9, 9, 3, 3, 1, 1},
+            {2, 9, 8, 3, 3, 2, 0},
+            {3, 10, 9, 2, 3, 2, 1},
+            {2, 11, 10, 2, 4, 3, 0},
+            {3, 11, 11, 2, 4, 3, 1},
+            {1, 12, 12, 2, 5, 1, 0},
+            {2, 12, 13, 2, 5, 2, 1},
+    };
+
+    //windowSize, stepSize of the pools the pool and fused layers are checked with
+    private static final int[][] POOLS = {
+            {2, 2},
+            {3, 2},
+            {3, 3},
+            {2, 3},
+            {4, 1},
+            {5, 2},
+            {13, 1},
+    };
+
+    //inLength, inRows, inCols of the pools
+    private static final int[][] POOL_SHAPES = {
+            {3, 24, 24},
+            {2, 9, 9},
+            {1, 10, 7},
+            {2, 13, 12},
+    };
+
+    //inputs, outputs of the fully connected layers the autotuner is checked on
+    private static final int[][] FC_SHAPES = {
+            {1000, 64},
+            {3000, 128},
+    };
+    //how long the autotuner runs every provider in checkAutotune
+    private static final long AUTOTUNE_MILLIS = 100;
+
+    public static void main(String[] args) throws Exception {
+        boolean failed = checkForward();
+        failed |= checkGradients();
+        failed |= checkPooling();
+        failed |= checkFusion();
+        failed |= checkBatches();
+        failed |= checkRecording();
+        failed |= checkAutotune();
+
+        System.out.println(failed ? "FAILED" : "All checks passed");
+        if(failed)
+            System.exit(1);
+    }
+
+    /**
+     * Every mode against DIRECT, true if one of them differs by more than TOLERANCE.
+     */
+    private static boolean checkForward(){
+        boolean failed = false;
+
+        for(int[] shape : SHAPES){
+            Random random = new Random(SEED);
+            Tensor input = new Tensor(shape[0], shape[1], shape[2]);
+            for(int i=0; i<input.size(); i++)
+                input.data()[i] = random.nextGaussian();
+
+            ConvolutionLayer direct = layer(shape, ConvolutionMode.DIRECT, 0.1);
+            Tensor expected = direct.convolutionForwardPass(input);
+
+            StringBuilder line = new StringBuilder();
+            line.append(String.format("%dx%dx%d, %d filters %dx%d%s, step %d (auto: %s)%n", shape[0], shape[1], shape[2],
+                    shape[3], shape[4], shape[4], shape[6] == 1 ? "x"+shape[0] : "", shape[5],
+                    ConvolutionMode.choose(shape[4], shape[5], shape[1], shape[2], Kernels.isVectorAvailable())));
+
+            for(ConvolutionMode mode : ConvolutionMode.values()){
+                if(!supports(shape, mode))
+                    continue;
+
+                ConvolutionLayer layer = layer(shape, mode, 0.1);
+                Tensor output = layer.convolutionForwardPass(input);
+
+                double difference = maxDifference(output, expected);
+
+                if(difference > TOLERANCE)
+                    failed = true;
+
+                line.append(String.format("    %-8s max difference %.2e, %8.3f ms%n", mode, difference, time(layer, input)));
+            }
+
+            //ConvolutionLayer only uses F(2x2,3x3), F(4x4,3x3) is checked on its own
+            if(shape[4] == 3 && shape[5] == 1){
+                WinogradConvolution winograd = new WinogradConvolution(shape[0], shape[1], shape[2], shape[3], 4, shape[6] == 1);
+                Tensor output = new Tensor(expected.channels(), expected.rows(), expected.cols());
+                winograd.setFilters(direct.getFilters());
+                winograd.forward(input, output);
+
+                double difference = maxDifference(output, expected);
+                if(difference > TOLERANCE)
+                    failed = true;
+
+                line.append(String.format("    %-8s max difference %.2e%n", "F(4x4)", difference));
+            }
+
+            System.out.print(line);
+        }
+
+        System.out.println(failed ? "FAILED: a mode differs from DIRECT by more than "+TOLERANCE : "All modes match DIRECT");
+        return failed;
+    }
+
+    /**
+     * The input and filter gradients of every mode against finite differences, true if one of them is off by more
+     * than GRADIENT_TOLERANCE.
+     */
+    private static boolean checkGradients() throws Exception {
+        boolean failed = false;
+
+        for(int[] shape : GRADIENT_SHAPES){
+            System.out.printf("gradients %dx%dx%d, %d filters %dx%d%s, step %d%n", shape[0], shape[1], shape[2],
+                    shape[3], shape[4], shape[4], shape[6] == 1 ? "x"+shape[0] : "", shape[5]);
+
+            for(ConvolutionMode mode : ConvolutionMode.values()){
+                if(!supports(shape, mode))
+                    continue;
+
+                Random random = new Random(SEED);
+                Tensor input = new Tensor(shape[0], shape[1], shape[2]);
+                for(int i=0; i<input.size(); i++)
+                    input.data()[i] = random.nextGaussian();
+
+                //with a learning rate of 1 the filters change by exactly -dL/dW
+                ConvolutionLayer layer = layer(shape, mode, 1);
+                LinearLoss loss = new LinearLoss(layer.getOutputElements(), random);
+                LinearLoss previous = new LinearLoss(0, random);
+                layer.set_nextLayer(loss);
+                layer.set_previousLayer(previous);
+
+                Tensor filters = layer.getFilters();
+                double[] before = filters.data().clone();
+
+                layer.getOutput(input);
+                layer.backPropagation(Tensor.vector(loss._weights.clone()));
+                double[] inputGradient = previous._gradient.data().clone();
+                double[] filterGradient = new double[before.length];
+                for(int k=0; k<before.length; k++)
+                    filterGradient[k] = before[k]-filters.data()[k];
+
+                System.arraycopy(before, 0, filters.data(), 0, before.length);
+                layer.setMode(layer.getMode());
+
+                double inputError = 0;
+                for(int i=0; i<input.size(); i++)
+                    inputError = Math.max(inputError, Math.abs(derivative(layer, input, input.data(), i)-inputGradient[i]));
+
+                double filterError = 0;
+                for(int k=0; k<before.length; k++)
+                    filterError = Math.max(filterError, Math.abs(derivative(layer, input, filters.data(), k)-filterGradient[k]));
+
+                if(inputError > GRADIENT_TOLERANCE || filterError > GRADIENT_TOLERANCE)
+                    failed = true;
+
+                System.out.printf("    %-8s dL/dX max error %.2e, dL/dW max error %.2e%n", mode, inputError, filterError);
+            }
+        }
+
+        System.out.println(failed ? "FAILED: a gradient is off by more than "+GRADIENT_TOLERANCE : "All gradients match");
+        return failed;
+    }
+
+    /**
+     * The pool layers against going over every window, true if the output or dL/dX of the max pool differ at all or
+     * those of the average pools by more than TOLERANCE.
+     */
+    private static boolean checkPooling() throws Exception {
+        boolean failed = false;
+
+        for(int[] shape : POOL_SHAPES){
+            for(int[] window : POOLS){
+                if(shape[1] < window[0] || shape[2] < window[0])
+                    continue;
+
+                Random random = new Random(SEED);
+                Tensor input = new Tensor(shape[0], shape[1], shape[2]);
+                for(int i=0; i<input.size(); i++)
+                    input.data()[i] = random.nextInt(5)-2;
+
+                MaxPoolLayer pool = new MaxPoolLayer(window[1], window[0], shape[0], shape[1], shape[2]);
+                LinearLoss loss = new LinearLoss(pool.getOutputElements(), random);
+                LinearLoss previous = new LinearLoss(0, random);
+                pool.set_nextLayer(loss);
+                pool.set_previousLayer(previous);
+
+                pool.getOutput(input);
+                pool.backPropagation(Tensor.vector(loss._weights));
+
+                Tensor expected = new Tensor(shape[0], pool.getOutputRows(), pool.getOutputCols());
+                Tensor expectedGradient = new Tensor(shape[0], shape[1], shape[2]);
+
+                for(int l=0; l<shape[0]; l++){
+                    for(int r=0; r<pool.getOutputRows(); r++){
+                        for(int c=0; c<pool.getOutputCols(); c++){
+                            double max = 0.0;
+                            int maxRow = -1;
+                            int maxCol = -1;
+
+                            for(int x=0; x<window[0]; x++){
+                                for(int y=0; y<window[0]; y++){
+                                    if(max < input.get(l, r*window[1]+x, c*window[1]+y)){
+                                        max = input.get(l, r*window[1]+x, c*window[1]+y);
+                                        maxRow = r*window[1]+x;
+                                        maxCol = c*window[1]+y;
+                                    }
+                                }
+                            }
+
+                            expected.set(l, r, c, max);
+                            if(maxRow != -1)
+                                expectedGradient.add(l, maxRow, maxCol, loss._weights[expected.index(l, r, c)]);
+                        }
+                    }
+                }
+
+                double difference = Math.max(maxDifference(loss._input, expected), maxDifference(previous._gradient, expectedGradient));
+                if(difference != 0){
+                    failed = true;
+                    System.out.printf("%s differs by %.2e%n", pool, difference);
+                }
+
+                AveragePoolLayer average = new AveragePoolLayer(window[1], window[0], shape[0], shape[1], shape[2]);
+                average.set_nextLayer(loss);
+                average.set_previousLayer(previous);
+                average.getOutput(input);
+                average.backPropagation(Tensor.vector(loss._weights));
+
+                double scale = 1.0/(window[0]*window[0]);
+                expectedGradient.fill(0);
+
+                for(int l=0; l<shape[0]; l++){
+                    for(int r=0; r<average.getOutputRows(); r++){
+                        for(int c=0; c<average.getOutputCols(); c++){
+                            double sum = 0;
+                            double error = loss._weights[expected.index(l, r, c)]*scale;
+
+                            for(int x=0; x<window[0]; x++){
+                                for(int y=0; y<window[0]; y++){
+                                    sum += input.get(l, r*window[1]+x, c*window[1]+y);
+                                    expectedGradient.add(l, r*window[1]+x, c*window[1]+y, error);
+                                }
+                            }
+
+                            expected.set(l, r, c, sum*scale);
+                        }
+                    }
+                }
+
+                difference = Math.max(maxDifference(loss._input, expected), maxDifference(previous._gradient, expectedGradient));
+                if(difference > TOLERANCE){
+                    failed = true;
+                    System.out.printf("%s differs by %.2e%n", average, difference);
+                }
+            }
+
+            GlobalAveragePoolLayer global = new GlobalAveragePoolLayer(shape[0], shape[1], shape[2]);
+            Random random = new Random(SEED);
+            Tensor input = new Tensor(shape[0], shape[1], shape[2]);
+            for(int i=0; i<input.size(); i++)
+                input.data()[i] = random.nextGaussian();
+
+            LinearLoss loss = new LinearLoss(shape[0], random);
+            LinearLoss previous = new LinearLoss(0, random);
+            global.set_nextLayer(loss);
+            global.set_previousLayer(previous);
+            global.getOutput(input);
+            global.backPropagation(Tensor.vector(loss._weights));
+
+            double difference = 0;
+            int size = shape[1]*shape[2];
+            for(int l=0; l<shape[0]; l++){
+                double sum = 0;
+                for(int i=0; i<size; i++){
+                    sum += input.data()[l*size+i];
+                    difference = Math.max(difference, Math.abs(previous._gradient.data()[l*size+i]-loss._weights[l]/size));
+                }
+                difference = Math.max(difference, Math.abs(loss._input.data()[l]-sum/size));
+            }
+
+            if(difference > TOLERANCE){
+                failed = true;
+                System.out.printf("%s differs by %.2e%n", global, difference);
+            }
+        }
+
+        System.out.println(failed ? "FAILED: a pool differs from going over every window" : "All pools match");
+        return failed;
+    }
+
+    /**
+     * Every mode of the fused layer against the two layers, for every shape and pool that fits. True if the output,
+     * dL/dX or the filters after one backward pass differ by more than TOLERANCE.
+     */
+    private static boolean checkFusion() throws Exception {
+        double maxDifference = 0;
+
+        for(int[] shape : SHAPES){
+            for(int[] window : POOLS){
+                for(ConvolutionMode mode : ConvolutionMode.values()){
+                    if(!supports(shape, mode))
+                        continue;
+
+                    ConvolutionLayer convolution = layer(shape, mode, 0.1);
+                    if(convolution.getOutputRows() < window[0] || convolution.getOutputCols() < window[0])
+                        continue;
+
+                    MaxPoolLayer pool = new MaxPoolLayer(window[1], window[0], convolution.getOutputLength(),
+                            convolution.getOutputRows(), convolution.getOutputCols());
+                    ConvolutionPoolLayer fused = new ConvolutionPoolLayer(layer(shape, mode, 0.1), pool);
+                    fused.setKernels(Kernels.best());
+
+                    Random random = new Random(SEED);
+                    Tensor input = new Tensor(shape[0], shape[1], shape[2]);
+                    for(int i=0; i<input.size(); i++)
+                        input.data()[i] = random.nextGaussian();
+
+                    LinearLoss loss = new LinearLoss(pool.getOutputElements(), random);
+                    LinearLoss previous = new LinearLoss(0, random);
+                    LinearLoss fusedPrevious = new LinearLoss(0, random);
+
+                    convolution.set_previousLayer(previous);
+                    convolution.set_nextLayer(pool);
+                    pool.set_previousLayer(convolution);
+                    pool.set_nextLayer(loss);
+                    fused.set_previousLayer(fusedPrevious);
+                    fused.set_nextLayer(loss);
+
+                    double expected = convolution.getOutput(input)[0];
+                    double output = fused.getOutput(input)[0];
+                    pool.backPropagation(Tensor.vector(loss._weights));
+                    fused.backPropagation(Tensor.vector(loss._weights));
+
+                    double difference = Math.abs(output-expected);
+                    difference = Math.max(difference, maxDifference(fusedPrevious._gradient, previous._gradient));
+                    difference = Math.max(difference, maxDifference(fused.getConvolution().getFilters(), convolution.getFilters()));
+                    maxDifference = Math.max(maxDifference, difference);
+
+                    if(difference > TOLERANCE)
+                        System.out.printf("fused %s differs by %.2e on %s%n", mode, difference, fused);
+                }
+            }
+        }
+
+        boolean failed = maxDifference > TOLERANCE;
+        System.out.println(failed ? "FAILED: a fused layer differs by more than "+TOLERANCE
+                : String.format("All fused layers match, max difference %.2e", maxDifference));
+        return failed;
+    }
+
+    /**
+     * Every kind of pool, mode and layout of a batch of BATCH against the samples on their own. True if an output,
+     * dL/dX or a weight after applying the gradients differs by more than TOLERANCE.
+     */
+    private static boolean checkBatches() throws Exception {
+        double maxDifference = 0;
+
+        for(int[] shape : GRADIENT_SHAPES){
+            for(ConvolutionMode mode : ConvolutionMode.values()){
+                for(WeightLayout layout : new WeightLayout[]{WeightLayout.BY_INPUT, WeightLayout.BY_OUTPUT}){
+                    for(String pool : new String[]{"max", "fused", "average", "global"}){
+                        if(!supports(shape, mode))
+                            continue;
+
+                        Random random = new Random(SEED);
+                        Layer[] batch = chain(shape, mode, layout, pool);
+                        Layer first = batch[0];
+                        Layer last = batch[batch.length-1];
+                        int inputs = shape[0]*shape[1]*shape[2];
+                        int outputs = last.getOutputElements();
+
+                        Tensor input = new Tensor(BATCH*shape[0], shape[1], shape[2]);
+                        for(int i=0; i<input.size(); i++)
+                            input.data()[i] = random.nextGaussian();
+                        Tensor errors = new Tensor(BATCH, 1, outputs);
+                        for(int i=0; i<errors.size(); i++)
+                            errors.data()[i] = random.nextGaussian();
+
+                        LinearLoss previous = new LinearLoss(0, random);
+                        first.set_previousLayer(previous);
+
+                        double[] output = first.getOutputs(input, BATCH).clone();
+                        last.backPropagation(errors, BATCH);
+                        for(Layer layer : batch)
+                            layer.applyGradients(BATCH);
+
+                        //the weights every sample moves to on its own, added up as the moves from the start
+                        double[] start = weights(chain(shape, mode, layout, pool));
+                        double[] expected = start.clone();
+                        double difference = 0;
+
+                        for(int b=0; b<BATCH; b++){
+                            Layer[] single = chain(shape, mode, layout, pool);
+                            LinearLoss singlePrevious = new LinearLoss(0, random);
+                            single[0].set_previousLayer(singlePrevious);
+
+                            double[] singleOutput = single[0].getOutput(Layer.sample(input, b, shape[0], shape[1], shape[2]));
+                            for(int j=0; j<outputs; j++)
+                                difference = Math.max(difference, Math.abs(output[b*outputs+j]-singleOutput[j]));
+
+                            single[single.length-1].backPropagation(Layer.sample(errors, b, 1, 1, outputs));
+                            Tensor dLdX = singlePrevious._gradient;
+                            for(int i=0; i<inputs; i++)
+                                difference = Math.max(difference, Math.abs(previous._gradient.data()[previous._gradient.offset()+b*inputs+i]
+                                        - dLdX.data()[dLdX.offset()+i]));
+
+                            double[] moved = weights(single);
+                            for(int k=0; k<expected.length; k++)
+                                expected[k] += (moved[k]-start[k])/BATCH;
+                        }
+
+                        double[] actual = weights(batch);
+                        for(int k=0; k<expected.length; k++)
+                            difference = Math.max(difference, Math.abs(actual[k]-expected[k]));
+
+                        //the first sample on the layers and the others on a replica of them, added up into the layers
+                        Layer[] layers = chain(shape, mode, layout, pool);
+                        Layer[] replica = new Layer[layers.length];
+                        for(int i=0; i<layers.length; i++){
+                            replica[i] = layers[i].replicate();
+                            if(i > 0){
+                                replica[i].set_previousLayer(replica[i-1]);
+                                replica[i-1].set_nextLayer(replica[i]);
+                            }
+                        }
+
+                        layers[0].getOutputs(Layer.sample(input, 0, shape[0], shape[1], shape[2]), 1);
+                        layers[layers.length-1].backPropagation(Layer.sample(errors, 0, 1, 1, outputs), 1);
+                        replica[0].getOutputs(new Tensor(input.data(), inputs, (BATCH-1)*shape[0], shape[1], shape[2]), BATCH-1);
+                        replica[replica.length-1].backPropagation(new Tensor(errors.data(), outputs, BATCH-1, 1, outputs), BATCH-1);
+
+                        for(int i=0; i<layers.length; i++){
+                            layers[i].reduceGradients(replica[i]);
+                            layers[i].applyGradients(BATCH);
+                        }
+
+                        actual = weights(replica);
+                        for(int k=0; k<expected.length; k++)
+                            difference = Math.max(difference, Math.abs(actual[k]-expected[k]));
+
+                        maxDifference = Math.max(maxDifference, difference);
+                        if(difference > TOLERANCE)
+                            System.out.printf("batch of %s %s %s differs by %.2e on %s%n", pool, mode, layout, difference, first);
+                    }
+                }
+            }
+        }
+
+        boolean failed = maxDifference > TOLERANCE;
+        System.out.println(failed ? "FAILED: a batch differs by more than "+TOLERANCE
+                : String.format("All batches match the samples on their own, max difference %.2e", maxDifference));
+        return failed;
+    }
+
+    private static boolean checkRecording() throws Exception {
+        double maxDifference = 0;
+        //moved on purpose into the last weight of the fully connected layer, it has to show up as lost
+        double moved = 0.5;
+
+        for(int[] shape : GRADIENT_SHAPES){
+            for(ConvolutionMode mode : ConvolutionMode.values()){
+                for(WeightLayout layout : new WeightLayout[]{WeightLayout.BY_INPUT, WeightLayout.BY_OUTPUT}){
+                    for(String pool : new String[]{"max", "fused", "average", "global"}){
+                        if(!supports(shape, mode))
+                            continue;
+
+                        Random random = new Random(SEED);
+                        Layer[] layers = chain(shape, mode, layout, pool);
+                        Layer[] replica = new Layer[layers.length];
+                        for(int i=0; i<layers.length; i++){
+                            replica[i] = layers[i].replicate();
+                            if(i > 0){
+                                replica[i].set_previousLayer(replica[i-1]);
+                                replica[i-1].set_nextLayer(replica[i]);
+                            }
+                        }
+
+                        double[][] start = new double[layers.length][];
+                        for(int i=0; i<layers.length; i++){
+                            start[i] = layers[i].copyWeights();
+                            layers[i].setRecordingUpdates(true);
+                            replica[i].setRecordingUpdates(true);
+                        }
+
+                        int outputs = layers[layers.length-1].getOutputElements();
+                        for(int b=0; b<2*BATCH; b++){
+                            Layer[] worker = b%2 == 0 ? layers : replica;
+                            Tensor input = new Tensor(shape[0], shape[1], shape[2]);
+                            for(int i=0; i<input.size(); i++)
+                                input.data()[i] = random.nextGaussian();
+                            Tensor errors = new Tensor(1, 1, outputs);
+                            for(int i=0; i<errors.size(); i++)
+                                errors.data()[i] = random.nextGaussian();
+
+                            worker[0].getOutput(input);
+                            worker[worker.length-1].backPropagation(errors);
+                        }
+
+                        double[] weights = ((FullyConnectedLayer)layers[layers.length-1]).getWeights();
+                        weights[weights.length-1] += moved;
+
+                        UpdateLoss lost = UpdateLoss.NONE;
+                        for(int i=0; i<layers.length; i++){
+                            layers[i].setRecordingUpdates(false);
+                            replica[i].setRecordingUpdates(false);
+                            layers[i].reduceGradients(replica[i]);
+                            if(start[i] != null)
+                                lost = lost.plus(layers[i].compareUpdates(start[i]));
+                        }
+
+                        double difference = Math.abs(lost.lost() - moved);
+                        if(lost.recorded() == 0)
+                            difference = Double.POSITIVE_INFINITY;
+
+                        maxDifference = Math.max(maxDifference, difference);
+                        if(difference > TOLERANCE)
+                            System.out.printf("recorded updates of %s %s %s are off by %.2e on %s%n", pool, mode, layout,
+                                    difference, layers[0]);
+                    }
+                }
+            }
+        }
+
+        boolean failed = maxDifference > TOLERANCE;
+        System.out.println(failed ? "FAILED: the recorded updates are off by more than "+TOLERANCE
+                : String.format("All recorded updates match the weights, max difference %.2e", maxDifference));
+        return failed;
+    }
+
+    private static boolean checkAutotune() throws Exception {
+        boolean failed = false;
+        KernelAutotuner autotuner = new KernelAutotuner(null, AUTOTUNE_MILLIS, false);
+
+        for(int[] shape : FC_SHAPES){
+            FullyConnectedLayer layer = new FullyConnectedLayer(shape[0], shape[1], SEED, 0.1);
+
+            Tensor input = KernelAutotuner.randomInput(shape[0]);
+            Tensor tuningError = KernelAutotuner.timingError(shape[1]);
+            //another error of about the same size, a much bigger one would push half the relu outputs to 0 on the
+            //first pass over the same input, which training over different samples does not
+            Random random = new Random(SEED);
+            Tensor trainingError = Tensor.vector(new double[shape[1]]);
+            for(int j=0; j<shape[1]; j++)
+                trainingError.data()[j] = 1e-3*random.nextGaussian();
+
+            //the weights every provider that ran started from, in the layout it keeps them in
+            Map<String, double[]> ran = new HashMap<>();
+            StringBuilder times = new StringBuilder();
+
+            for(KernelProvider<?> provider : KernelProviders.forLayer(layer)){
+                KernelProviders.install(provider, layer);
+                double[] start = layer.copyWeights();
+
+                long tunedTime;
+                long trainingTime;
+                try {
+                    tunedTime = autotuner.timeProvider(provider, layer, input, tuningError);
+                    trainingTime = autotuner.timeProvider(provider, layer, input, trainingError);
+                }catch(Exception e){
+                    times.append(String.format("%n    %-20s could not run: %s", provider.getName(), e.getMessage()));
+                    continue;
+                }
+
+                ran.put(provider.getName(), start);
+                if(!Arrays.equals(start, layer.copyWeights())){
+                    System.out.println(provider.getName()+" left the weights of "+layer+" changed");
+                    failed = true;
+                }
+
+                times.append(String.format("%n    %-20s %-9s tuned %8.3f ms, training %8.3f ms", provider.getName(),
+                        layer.getLayout(), tunedTime/1e6, trainingTime/1e6));
+            }
+
+            KernelProvider<?> picked = autotuner.tune(layer, shape[0]);
+            System.out.printf("%s, picked %s%s%n", layer, picked.getName(), times);
+
+            double[] start = ran.get(picked.getName());
+            if(start == null){
+                System.out.println("The autotuner picked "+picked.getName()+" for "+layer+", which did not run");
+                failed = true;
+            }
+            else if(!Arrays.equals(start, layer.copyWeights())){
+                System.out.println("The autotuner left the weights of "+layer+" changed");
+                failed = true;
+            }
+        }
+
+        System.out.println(failed ? "FAILED: the autotuner changed the weights or picked a provider that did not run"
+                : "The autotuner keeps the weights and picks a provider that ran");
+        return failed;
+    }
+
+    /**
+     * A convolution, the pool and a fully connected layer of 3 outputs, linked.
+     */
+    private static Layer[] chain(int[] shape, ConvolutionMode mode, WeightLayout layout, String pool){
+        ConvolutionLayer convolution = layer(shape, mode, 0.1);
+        int channels = convolution.getOutputLength();
+        int rows = convolution.getOutputRows();
+        int cols = convolution.getOutputCols();
+
+        Layer[] layers = switch(pool){
+            case "max" -> new Layer[]{convolution, new MaxPoolLayer(1, 2, channels, rows, cols)};
+            case "fused" -> new Layer[]{new ConvolutionPoolLayer(convolution, new MaxPoolLayer(1, 2, channels, rows, cols))};
+            case "average" -> new Layer[]{convolution, new AveragePoolLayer(1, 2, channels, rows, cols)};
+            default -> new Layer[]{convolution, new GlobalAveragePoolLayer(channels, rows, cols)};
+        };
+
+        Layer last = layers[layers.length-1];
+        FullyConnectedLayer fullyConnected = new FullyConnectedLayer(last.getOutputElements(), 3, SEED, 0.1);
+        fullyConnected.setKernels(Kernels.best());
+        fullyConnected.setLayout(layout);
+
+        Layer[] chain = Arrays.copyOf(layers, layers.length+1);
+        chain[layers.length] = fullyConnected;
+
+        for(int i=0; i<chain.length; i++){
+            chain[i].setKernels(Kernels.best());
+            if(i > 0){
+                chain[i].set_previousLayer(chain[i-1]);
+                chain[i-1].set_nextLayer(chain[i]);
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * The filters and the weights of a chain, one after the other.
+     */
+    private static double[] weights(Layer[] chain){
+        ConvolutionLayer convolution = chain[0] instanceof ConvolutionPoolLayer fused ? fused.getConvolution()
+                : (ConvolutionLayer)chain[0];
+        Tensor filters = convolution.getFilters();
+        double[] weights = ((FullyConnectedLayer)chain[chain.length-1]).getWeights();
+
+        double[] values = Arrays.copyOfRange(filters.data(), filters.offset(), filters.offset()+filters.size()+weights.length);
+        System.arraycopy(weights, 0, values, filters.size(), weights.length);
+        return values;
+    }
+
+    /**
+     * (L(v+h) - L(v-h))/2h for value k of values, which is either the input or the filters of the layer.
+     */
+    private static double derivative(ConvolutionLayer layer, Tensor input, double[] values, int k) throws Exception {
+        double value = values[k];
+
+        values[k] = value+STEP;
+        layer.setMode(layer.getMode()); //the filters may have changed
+        double plus = layer.getOutput(input)[0];
+
+        values[k] = value-STEP;
+        layer.setMode(layer.getMode());
+        double minus = layer.getOutput(input)[0];
+
+        values[k] = value;
+        layer.setMode(layer.getMode());
+        return (plus-minus)/(2*STEP);
+    }
+
+    private static boolean supports(int[] shape, ConvolutionMode mode){
+        if(mode == ConvolutionMode.AUTO)
+            return false;
+
+        return mode != ConvolutionMode.WINOGRAD || (shape[4] == 3 && shape[5] == 1);
+    }
+
+    private static ConvolutionLayer layer(int[] shape, ConvolutionMode mode, double learningRate){
+        ConvolutionLayer layer = new ConvolutionLayer(shape[4], shape[5], shape[0], shape[1], shape[2], SEED, shape[3], learningRate, shape[6] == 1);
+        layer.setKernels(Kernels.best());
+        layer.setMode(mode);
+        return layer;
+    }
+
+    private static double maxDifference(Tensor output, Tensor expected){
+        double difference = 0;
+        for(int i=0; i<output.size(); i++)
+            difference = Math.max(difference, Math.abs(output.data()[i]-expected.data()[i]));
+        return difference;
+    }
+
+    /**
+     * Milliseconds per forward pass, after warming up. The filters are marked as changed every time, like in training.
+     */
+    private static double time(ConvolutionLayer layer, Tensor input){
+        int runs = 1;
+        long elapsed;
+        do {
+            runs *= 2;
+            long start = System.nanoTime();
+            for(int i=0; i<runs; i++){
+                layer.setMode(layer.getMode());
+                layer.convolutionForwardPass(input);
+            }
+            elapsed = System.nanoTime()-start;
+        } while(elapsed < 200_000_000L);
+
+        return elapsed/1e6/runs;
+    }
+
+    /**
+     * As the next layer the loss is the sum of its inputs times the fixed weights, so dL/dO are the weights, and it
+     * keeps the inputs. As the previous layer it keeps the dL/dX it is given.
+     */
+    private static final class LinearLoss extends Layer {
+        private final double[] _weights;
+        private Tensor _input;
+        private Tensor _gradient;
+
+        private LinearLoss(int inputs, Random random){
+            _weights = new double[inputs];
+            for(int i=0; i<inputs; i++)
+                _weights[i] = random.nextGaussian();
+        }
+
+        private LinearLoss(double[] weights){
+            _weights = weights;
+        }
+
+        @Override
+        public double[] getOutput(Tensor input) {
+            _input = input;
+            double sum = 0;
+            for(int i=0; i<_weights.length; i++)
+                sum += _weights[i]*input.data()[input.offset()+i];
+            return new double[]{sum};
+        }
+
+        /**
+         * The loss of every sample of the batch, which is laid out as in {@link Layer#getOutputs}.
+         */
+        @Override
+        public double[] getOutputs(Tensor inputs, int batchSize) {
+            _input = inputs;
+            double[] sums = new double[batchSize];
+            for(int b=0; b<batchSize; b++){
+                for(int i=0; i<_weights.length; i++)
+                    sums[b] += _weights[i]*inputs.data()[inputs.offset()+b*_weights.length+i];
+            }
+            return sums;
+        }
+
+        @Override
+        public void backPropagation(Tensor dLdX) {
+            _gradient = dLdX;
+        }
+
+        @Override
+        public void backPropagation(Tensor dLdX, int batchSize) {
+            _gradient = dLdX;
+        }
+
+        @Override
+        public Layer replicate() {
+            return withSettings(new LinearLoss(_weights));
+        }
+
+        @Override
+        public int getOutputLength() {
+            return 1;
+        }
+
+        @Override
+        public int getOutputRows() {
+            return 1;
+        }
+
+        @Override
+        public int getOutputCols() {
+            return 1;
+        }
+
+        @Override
+        public int getOutputElements() {
+            return 1;
+        }
+    }
+}